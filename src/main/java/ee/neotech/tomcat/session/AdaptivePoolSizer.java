@@ -0,0 +1,112 @@
+package ee.neotech.tomcat.session;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Grows and shrinks connection pool between configured bounds based on observed borrow wait and number of connections in use.
+ * <p>
+ * Borrows and returns are registered by request threads, {@link #adjust(GenericObjectPool)} is called periodically by a single
+ * background thread. Pool grows by half when more than 1% of borrows in the last interval waited longer than target (i.e. p99 of
+ * borrow wait exceeds it) or threads are waiting for connection right now. Pool shrinks by a quarter after
+ * {@value #SHRINK_AFTER_INTERVALS} intervals in a row with less than half of connections in use. Minimum number of idle connections
+ * follows peak usage, so connections for the next burst are created by the background thread instead of requests.
+ * </p>
+ */
+class AdaptivePoolSizer {
+
+    private final Log log = LogFactory.getLog(AdaptivePoolSizer.class);
+
+    static final int SHRINK_AFTER_INTERVALS = 30;
+
+    private final int minTotal;
+    private final int maxTotal;
+    private final int minIdle;
+    private final long targetWaitNanos;
+
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peakInUse = new AtomicInteger();
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder slowBorrows = new LongAdder();
+
+    private int quietIntervals;
+
+    /**
+     * @param minTotal lower bound of pool size, pool is not shrunk below configured size
+     * @param maxTotal upper bound of pool size
+     * @param minIdle lower bound of idle connections kept
+     * @param targetWaitMillis borrow wait considered acceptable
+     */
+    AdaptivePoolSizer(int minTotal, int maxTotal, int minIdle, long targetWaitMillis) {
+        this.minTotal = minTotal;
+        this.maxTotal = Math.max(minTotal, maxTotal);
+        this.minIdle = minIdle;
+        this.targetWaitNanos = TimeUnit.MILLISECONDS.toNanos(targetWaitMillis);
+    }
+
+    void borrowed(long waitNanos) {
+        borrows.increment();
+        if (waitNanos > targetWaitNanos) {
+            slowBorrows.increment();
+        }
+        int n = inUse.incrementAndGet();
+        int peak;
+        while (n > (peak = peakInUse.get()) && !peakInUse.compareAndSet(peak, n)) {
+            // retry
+        }
+    }
+
+    void returned() {
+        inUse.decrementAndGet();
+    }
+
+    /**
+     * Applies new size to the pool, if needed
+     */
+    void adjust(GenericObjectPool<?> pool) {
+        int current = pool.getMaxTotal();
+        int peak = peakInUse.getAndSet(inUse.get());
+        long total = borrows.sumThenReset();
+        long slow = slowBorrows.sumThenReset();
+
+        int target = current;
+        if (pool.getNumWaiters() > 0 || slow * 100 > total) {
+            target = Math.min(maxTotal, Math.max(current + 1, current * 3 / 2));
+            quietIntervals = 0;
+        } else if (peak < current / 2) {
+            if (++quietIntervals >= SHRINK_AFTER_INTERVALS) {
+                target = Math.max(minTotal, Math.max(peak * 2, current * 3 / 4));
+                quietIntervals = 0;
+            }
+        } else {
+            quietIntervals = 0;
+        }
+        target = Math.max(minTotal, target);
+
+        if (target != current) {
+            if (log.isInfoEnabled()) {
+                log.info("Resizing Redis connection pool: maxTotal " + current + " -> " + target + " (peak in use: " + peak + ", slow borrows: "
+                        + slow + "/" + total + ", waiting: " + pool.getNumWaiters() + ")");
+            }
+            // idle connections above maxIdle are closed on return, so pool keeps what it has grown to
+            pool.setMaxIdle(target);
+            pool.setMaxTotal(target);
+        }
+        pool.setMinIdle(Math.max(minIdle, Math.min(target, peak)));
+
+        try {
+            pool.preparePool();
+        } catch (Exception e) {
+            log.warn("Failed to create idle Redis connections: " + e.getMessage());
+        }
+    }
+
+    int getInUse() {
+        return inUse.get();
+    }
+}
@@ -0,0 +1,21 @@
+package ee.neotech.tomcat.session;
+
+/**
+ * Defines how concurrent requests to the same session are processed.
+ */
+public enum ConcurrencyPolicy {
+
+    /** All concurrent requests share the same session object (default) */
+    SHARED,
+
+    /** Requests to the same session are processed one at a time. Next request waits (bounded by accessWaitTimeout) until previous one ends */
+    SERIALIZED,
+
+    /**
+     * Requests share the same session object, attribute reads are shared and modifications are exclusive. Session is serialized under
+     * read lock, so saved data is always a consistent snapshot even while session is used by other requests. Attribute values
+     * being serialized may read the session, but must not modify it: read lock is not upgradeable, so such modification fails
+     * with {@link IllegalStateException}
+     */
+    READ_WRITE
+}
@@ -1,12 +1,9 @@
 package ee.neotech.tomcat.session;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 
 public class DiskSessionManager extends NonStickySessionManager {
 
@@ -17,9 +14,11 @@ public class DiskSessionManager extends NonStickySessionManager {
         File file = new File(path, id);
 
         if (file.exists()) {
-            try (FileInputStream is = new FileInputStream(file); ByteArrayOutputStream bos = new ByteArrayOutputStream();) {
-                copyLarge(is, bos, new byte[1024]);
-                return bos.toByteArray();
+            try {
+                // reads directly into array of file size, no intermediate copies
+                return Files.readAllBytes(file.toPath());
+            } catch (NoSuchFileException e) {
+                return null; // deleted concurrently
             }
         } else {
             return null;
@@ -27,16 +26,6 @@ public class DiskSessionManager extends NonStickySessionManager {
 
     }
 
-    private static long copyLarge(InputStream input, OutputStream output, byte[] buffer) throws IOException {
-        long count = 0;
-        int n = 0;
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
-            count += n;
-        }
-        return count;
-    }
-
     @Override
     protected void save(String id, byte[] data, int expireSeconds) throws Exception {
         File file = new File(path, id);
@@ -53,9 +42,9 @@ public class DiskSessionManager extends NonStickySessionManager {
     }
 
     @Override
-    protected synchronized void delete(String id) throws Exception {
-        File file = new File(path, id);
-        file.delete();
+    protected void delete(String id) throws Exception {
+        // deletion is atomic on file system level, concurrent deletes of the same file are harmless
+        Files.deleteIfExists(new File(path, id).toPath());
     }
 
     @Override
@@ -5,6 +5,13 @@ import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.catalina.LifecycleException;
 import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
@@ -17,6 +24,7 @@ import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.JedisSentinelPool;
 import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 import redis.clients.util.Pool;
 
 public abstract class GenericRedisSessionManager extends NonStickySessionManager {
@@ -31,10 +39,63 @@ public abstract class GenericRedisSessionManager extends NonStickySessionManager
     protected String sentinelMaster = null;
     Set<String> sentinelSet = Collections.emptySet();
 
-    protected Pool<Jedis> jedisPool;
+    /**
+     * Initializes connection pools of all managers in parallel, so contexts do not wait for each other's Redis (or Sentinel) connectivity
+     */
+    private static final ExecutorService STARTUP_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "RedisSessionManagerStartup");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    protected volatile Pool<Jedis> jedisPool;
+
+    private boolean asyncStartup = false;
+    private long startupWaitTimeout = 2000;
+    private boolean sharedPool = false;
+    private volatile RedisPoolRegistry.Entry poolEntry;
 
     protected JedisPoolConfig jedisPoolConfig = new JedisPoolConfig();
 
+    private boolean poolAdaptive = false;
+    private int poolAdaptiveMaxTotal = 64;
+    private long poolAdaptiveTargetWait = 2;
+
+    /**
+     * Gives access to commons pool of Jedis pool, so it could be resized while in use
+     */
+    interface ResizablePool {
+        GenericObjectPool<Jedis> getInternalPool();
+    }
+
+    static class ResizableJedisPool extends JedisPool implements ResizablePool {
+        ResizableJedisPool(JedisPoolConfig config, String host, int port, int timeout, String password) {
+            super(config, host, port, timeout, password);
+        }
+
+        @Override
+        public GenericObjectPool<Jedis> getInternalPool() {
+            return internalPool;
+        }
+    }
+
+    static class ResizableJedisSentinelPool extends JedisSentinelPool implements ResizablePool {
+        ResizableJedisSentinelPool(String masterName, Set<String> sentinels, JedisPoolConfig config, int timeout, String password) {
+            super(masterName, sentinels, config, timeout, password);
+        }
+
+        /**
+         * Internal pool is recreated with initial configuration on master switch, sizer adjusts it again on next run
+         */
+        @Override
+        public GenericObjectPool<Jedis> getInternalPool() {
+            return internalPool;
+        }
+    }
+
     /**
      * Set the value for the {@code lifo} configuration attribute for pools
      * created with this configuration instance.
@@ -279,6 +340,118 @@ public abstract class GenericRedisSessionManager extends NonStickySessionManager
         jedisPoolConfig.setMinIdle(minIdle);
     }
 
+    /**
+     * @param poolAdaptive if true, pool size is adjusted every second between poolMaxTotal and poolAdaptiveMaxTotal based on borrow wait
+     * and number of connections in use. Otherwise pool is sized statically by poolXXX attributes
+     */
+    public final void setPoolAdaptive(boolean poolAdaptive) {
+        this.poolAdaptive = poolAdaptive;
+    }
+
+    /**
+     * @param poolAdaptiveMaxTotal upper bound of adaptive pool size
+     */
+    public final void setPoolAdaptiveMaxTotal(int poolAdaptiveMaxTotal) {
+        this.poolAdaptiveMaxTotal = poolAdaptiveMaxTotal;
+    }
+
+    /**
+     * @param poolAdaptiveTargetWait borrow wait in milliseconds, adaptive pool grows when p99 of borrow wait exceeds it
+     */
+    public final void setPoolAdaptiveTargetWait(long poolAdaptiveTargetWait) {
+        this.poolAdaptiveTargetWait = poolAdaptiveTargetWait;
+    }
+
+    /**
+     * @param asyncStartup if true, connection pool is created (and Sentinel master discovered) in background, so context startup does
+     * not wait for Redis. Requests wait for the pool up to startupWaitTimeout, failed initialization is retried by the next request
+     */
+    public final void setAsyncStartup(boolean asyncStartup) {
+        this.asyncStartup = asyncStartup;
+    }
+
+    /**
+     * @param startupWaitTimeout maximum time in milliseconds a request waits for connection pool initialized in background,
+     * before the connection attempt is retried
+     */
+    public final void setStartupWaitTimeout(long startupWaitTimeout) {
+        this.startupWaitTimeout = startupWaitTimeout;
+    }
+
+    /**
+     * @param sharedPool if true, managers of all contexts with the same connection configuration (host and port or Sentinels, database,
+     * password and timeout) share one connection pool. Pool settings of the first started manager are used
+     */
+    public final void setSharedPool(boolean sharedPool) {
+        this.sharedPool = sharedPool;
+    }
+
+    /**
+     * @return number of managers using the same connection pool, including this one
+     */
+    public int getPoolReferences() {
+        RedisPoolRegistry.Entry entry = poolEntry;
+        return entry != null ? RedisPoolRegistry.getReferences(entry) : 0;
+    }
+
+    /**
+     * @return current maximum number of connections, changes over time if pool is adaptive
+     */
+    public int getPoolCurrentMaxTotal() {
+        Pool<Jedis> pool = jedisPool;
+        return pool instanceof ResizablePool ? ((ResizablePool) pool).getInternalPool().getMaxTotal() : jedisPoolConfig.getMaxTotal();
+    }
+
+    public int getPoolNumActive() {
+        Pool<Jedis> pool = jedisPool;
+        return pool != null ? pool.getNumActive() : 0;
+    }
+
+    public int getPoolNumIdle() {
+        Pool<Jedis> pool = jedisPool;
+        return pool != null ? pool.getNumIdle() : 0;
+    }
+
+    public int getPoolNumWaiters() {
+        Pool<Jedis> pool = jedisPool;
+        return pool != null ? pool.getNumWaiters() : 0;
+    }
+
+    /**
+     * Borrows connection from the pool, borrow wait is recorded to metrics
+     * @return connection, must be released by {@link #releaseConnection(Jedis)}
+     */
+    protected final Jedis getConnection() {
+        long start = System.nanoTime();
+        Pool<Jedis> pool = jedisPool;
+        if (pool == null) {
+            pool = awaitPool();
+        }
+        Jedis jedis = pool.getResource();
+        long wait = System.nanoTime() - start;
+        getMetrics().borrowWaitTime.record(wait);
+
+        AdaptivePoolSizer sizer = getPoolSizer();
+        if (sizer != null) {
+            sizer.borrowed(wait);
+        }
+        return jedis;
+    }
+
+    protected final void releaseConnection(Jedis jedis) {
+        jedis.close();
+
+        AdaptivePoolSizer sizer = getPoolSizer();
+        if (sizer != null) {
+            sizer.returned();
+        }
+    }
+
+    private AdaptivePoolSizer getPoolSizer() {
+        RedisPoolRegistry.Entry entry = poolEntry;
+        return entry != null ? entry.getSizer() : null;
+    }
+
     public final void setHost(String host) {
         this.host = host;
     }
@@ -319,41 +492,178 @@ public abstract class GenericRedisSessionManager extends NonStickySessionManager
 
     @Override
     protected synchronized void startInternal() throws LifecycleException {
-        long start = System.currentTimeMillis();
+        long start = System.nanoTime();
         
         log.info("Redis connection pool: maxTotal="+jedisPoolConfig.getMaxTotal()+", maxIdle="+jedisPoolConfig.getMaxIdle()+", minIdle="+jedisPoolConfig.getMinIdle());
         
         super.startInternal();
 
+        RedisPoolRegistry.Entry entry = acquirePool();
+        poolEntry = entry;
+        if (RedisPoolRegistry.getReferences(entry) > 1) {
+            log.info("Sharing Redis connection pool with " + (RedisPoolRegistry.getReferences(entry) - 1) + " other session managers");
+        }
+
+        if (asyncStartup) {
+            initPoolAsync(entry, start);
+        } else {
+            // waits for the pool being created by another manager sharing it, if there is one
+            entry.init.run();
+            try {
+                poolReady(entry, entry.init.get(), start);
+            } catch (ExecutionException e) {
+                poolEntry = null;
+                RedisPoolRegistry.release(entry);
+                throw e.getCause() instanceof LifecycleException ? (LifecycleException) e.getCause() : new LifecycleException("Error connecting to Redis", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LifecycleException("Interrupted while connecting to Redis", e);
+            }
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        getMetrics().startupTime = elapsed;
+        log.info("Redis session manager initialized in " + elapsed + "ms" + (asyncStartup ? ", connection pool is initialized in background" : "") + ".");
+    }
+
+    private RedisPoolRegistry.Entry acquirePool() {
+        Callable<Pool<Jedis>> factory = new Callable<Pool<Jedis>>() {
+            @Override
+            public Pool<Jedis> call() throws Exception {
+                final Pool<Jedis> pool = createPool();
+
+                // first requests should not pay for connecting, but startup should not wait for it either
+                final int minIdle = jedisPoolConfig.getMinIdle();
+                if (minIdle > 0) {
+                    STARTUP_EXECUTOR.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                pool.addObjects(minIdle);
+                            } catch (Exception e) {
+                                log.warn("Failed to pre-warm Redis connection pool with " + minIdle + " connections: " + e.getMessage());
+                            }
+                        }
+                    });
+                }
+                return pool;
+            }
+        };
+        return sharedPool ? RedisPoolRegistry.acquire(getPoolKey(), factory) : RedisPoolRegistry.createPrivate(factory);
+    }
+
+    /**
+     * @return connection configuration, managers with the same configuration could share connection pool
+     */
+    private String getPoolKey() {
+        String address = sentinelMaster != null ? "sentinel:" + sentinelMaster + "@" + sentinelSet : host + ":" + port;
+        // database is selected on borrowed connections, so connections of one pool must always use the same database
+        return address + "/" + database + "?timeout=" + timeout + "&password=" + password;
+    }
+
+    private Pool<Jedis> createPool() throws LifecycleException {
         try {
             if (sentinelMaster != null) {
 
                 if (sentinelSet != null && sentinelSet.size() > 0) {
-                    jedisPool = new JedisSentinelPool(sentinelMaster, sentinelSet, this.jedisPoolConfig, timeout, password);
+                    // blocks on master discovery
+                    return new ResizableJedisSentinelPool(sentinelMaster, sentinelSet, this.jedisPoolConfig, timeout, password);
                 } else {
                     throw new LifecycleException(
                             "Error configuring Redis Sentinel connection pool: expected both `sentinelMaster` and `sentiels` to be configured");
                 }
             } else {
-                jedisPool = new JedisPool(this.jedisPoolConfig, host, port, timeout, password);
+                return new ResizableJedisPool(this.jedisPoolConfig, host, port, timeout, password);
             }
         } catch (Exception e) {
             log.info("Redis session manager failed to initialize");
             throw new LifecycleException("Error connecting to Redis", e);
         }
+    }
+
+    /**
+     * Initializes connection pool on background thread, requests wait for it in {@link #getConnection()}.
+     * Pools of all managers are initialized in parallel, shared pool is initialized once
+     */
+    private void initPoolAsync(final RedisPoolRegistry.Entry entry, final long start) {
+        STARTUP_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                entry.init.run();
+                try {
+                    poolReady(entry, entry.init.get(), start);
+                } catch (ExecutionException e) {
+                    log.error("Failed to initialize Redis connection pool, will retry on first request", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    private synchronized void poolReady(RedisPoolRegistry.Entry entry, Pool<Jedis> pool, long start) {
+        if (poolEntry != entry) {
+            return; // stopped or restarted meanwhile
+        }
+        jedisPool = pool;
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        getMetrics().storeReadyTime = elapsed;
+        if (asyncStartup) {
+            log.info("Redis connection pool initialized in " + elapsed + "ms.");
+        }
+
+        if (poolAdaptive && pool instanceof ResizablePool) {
+            entry.startSizer(new AdaptivePoolSizer(jedisPoolConfig.getMaxTotal(), poolAdaptiveMaxTotal, jedisPoolConfig.getMinIdle(),
+                    poolAdaptiveTargetWait), (ResizablePool) pool, getContext().getName());
+            log.info("Adaptive Redis connection pool: maxTotal=" + jedisPoolConfig.getMaxTotal() + ".." + poolAdaptiveMaxTotal
+                    + ", target borrow wait=" + poolAdaptiveTargetWait + "ms");
+        }
+    }
+
+    /**
+     * Waits for connection pool being initialized in background. Failed initialization is restarted, so Redis not available on startup
+     * is connected later
+     */
+    private Pool<Jedis> awaitPool() {
+        RedisPoolRegistry.Entry entry = poolEntry;
+        if (entry == null) {
+            throw new JedisConnectionException("Redis connection pool is not initialized");
+        }
+        try {
+            return entry.init.get(startupWaitTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new JedisConnectionException("Redis connection pool is not initialized in " + startupWaitTimeout + "ms");
+        } catch (ExecutionException e) {
+            restartPoolInit(entry);
+            throw new JedisConnectionException("Redis connection pool initialization failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Thread interrupted", e);
+        }
+    }
 
-        log.info("Redis session manager initialized in "+(System.currentTimeMillis()-start)+"ms.");
+    private synchronized void restartPoolInit(RedisPoolRegistry.Entry failed) {
+        if (poolEntry == failed && getState().isAvailable()) {
+            RedisPoolRegistry.release(failed);
+            RedisPoolRegistry.Entry entry = acquirePool();
+            poolEntry = entry;
+            initPoolAsync(entry, System.nanoTime());
+        }
     }
 
     @Override
     protected synchronized void stopInternal() throws LifecycleException {
+        RedisPoolRegistry.Entry entry = poolEntry;
+        poolEntry = null;
+
         super.stopInternal();
 
-        try {
-            if (jedisPool != null) {
-                jedisPool.destroy();
-            }
-        } catch (Exception e) {}
+        // pool is destroyed, when it is not used by other managers
+        if (entry != null) {
+            RedisPoolRegistry.release(entry);
+        }
+        jedisPool = null;
     }
     
 }
@@ -0,0 +1,470 @@
+package ee.neotech.tomcat.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Keeps session data within the JVM, for single node deployments, tests and benchmarks.
+ * <p>
+ * Sessions are stored serialized exactly as by other stores, so attributes which could not be serialized are caught the same way as with
+ * Redis. Session TTL is enforced on every access and expired data is reclaimed by a timer wheel advanced by the background process.
+ * Total size of data kept in memory could be capped, least recently used sessions exceeding the cap are spilled to disk by the
+ * background process and read back on access. Stored sessions (including spilled ones) do not survive manager restart.
+ * </p>
+ */
+public class InMemorySessionManager extends NonStickySessionManager {
+
+    private final Log log = LogFactory.getLog(InMemorySessionManager.class);
+
+    /** Timer wheel resolution */
+    private static final long TICK_MILLIS = 1000;
+    /** Timer wheel size, sessions expiring later than a full turn are rescheduled when their slot is passed */
+    private static final int WHEEL_SLOTS = 4096;
+    /** Spilling stops when memory usage drops to this share of the cap, so sessions read back are not spilled again at once */
+    private static final double SPILL_LOW_WATERMARK = 0.9;
+
+    private static final Object DISCARDED = new Object();
+
+    private static final AtomicReferenceFieldUpdater<Entry, Object> CONTENT =
+            AtomicReferenceFieldUpdater.newUpdater(Entry.class, Object.class, "content");
+
+    /**
+     * Stored session data. Entry is replaced by every save, expiration time is updated in place
+     */
+    static final class Entry {
+        final String id;
+        final int size;
+        /** byte[] when kept in memory, Path when spilled, DISCARDED when removed from the store */
+        volatile Object content;
+        volatile long expiresAt;
+        volatile long lastUsed;
+
+        Entry(String id, byte[] data, long expiresAt, long now) {
+            this.id = id;
+            this.size = data.length;
+            this.content = data;
+            this.expiresAt = expiresAt;
+            this.lastUsed = now;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry>[] wheel = newWheel();
+    private final ReentrantLock wheelLock = new ReentrantLock();
+    /** Last processed tick, first run passes every slot */
+    private long wheelTick = Long.MIN_VALUE;
+
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final AtomicLong spillSequence = new AtomicLong();
+    private final ReentrantLock spillLock = new ReentrantLock();
+    private volatile File spillDirectory;
+
+    private long maxBytes = 0;
+    private String spillPath;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static ConcurrentLinkedQueue<Entry>[] newWheel() {
+        ConcurrentLinkedQueue<Entry>[] wheel = new ConcurrentLinkedQueue[WHEEL_SLOTS];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        return wheel;
+    }
+
+    /**
+     * @return current time used for expiration, overridden by tests
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+        super.stopInternal();
+
+        // stored sessions are lost on restart anyway, do not leave spilled files behind
+        for (Entry entry : sessions.values()) {
+            if (sessions.remove(entry.id, entry)) {
+                discard(entry);
+            }
+        }
+        for (ConcurrentLinkedQueue<Entry> slot : wheel) {
+            slot.clear();
+        }
+
+        File dir = spillDirectory;
+        spillDirectory = null;
+        if (dir != null && spillPath == null) {
+            // temporary directory is empty once spilled files are deleted
+            try {
+                Files.deleteIfExists(dir.toPath());
+            } catch (IOException e) {
+                log.warn("Failed to delete session spill directory " + dir, e);
+            }
+        }
+    }
+
+    /**
+     * Removes expired sessions from memory and disk, then spills sessions exceeding the memory cap. Expired sessions are not visible to
+     * load regardless of this
+     */
+    @Override
+    public void processExpires() {
+        processExpires(currentTimeMillis());
+    }
+
+    void processExpires(long now) {
+        long tick = now / TICK_MILLIS;
+        int expired = 0;
+
+        wheelLock.lock();
+        try {
+            // after a long pause every slot is passed once, entries not due yet are rescheduled
+            long from = Math.max(wheelTick + 1, tick - WHEEL_SLOTS + 1);
+            for (long t = from; t <= tick; t++) {
+                ConcurrentLinkedQueue<Entry> slot = wheel[(int) (t % WHEEL_SLOTS)];
+                // entries rescheduled to the same slot are left for the next turn
+                for (int n = slot.size(); n > 0; n--) {
+                    Entry entry = slot.poll();
+                    if (entry == null) {
+                        break;
+                    }
+                    if (sessions.get(entry.id) != entry) {
+                        continue; // replaced or deleted, new entry is scheduled separately
+                    }
+                    if (entry.isExpired(now)) {
+                        if (sessions.remove(entry.id, entry)) {
+                            discard(entry);
+                            expired++;
+                        }
+                    } else {
+                        schedule(entry, tick);
+                    }
+                }
+            }
+            wheelTick = tick;
+        } finally {
+            wheelLock.unlock();
+        }
+
+        if (expired > 0 && log.isDebugEnabled()) {
+            log.debug("Removed " + expired + " expired sessions, " + sessions.size() + " sessions left");
+        }
+
+        if (maxBytes > 0 && residentBytes.get() > maxBytes) {
+            spill();
+        }
+    }
+
+    private void schedule(Entry entry, long afterTick) {
+        if (entry.expiresAt == Long.MAX_VALUE) {
+            return;
+        }
+        long tick = Math.max(entry.expiresAt / TICK_MILLIS, afterTick + 1);
+        wheel[(int) (tick % WHEEL_SLOTS)].add(entry);
+    }
+
+    private void schedule(Entry entry) {
+        schedule(entry, entry.lastUsed / TICK_MILLIS - 1);
+    }
+
+    private static long expiresAt(long now, int expireSeconds) {
+        return expireSeconds > 0 ? now + expireSeconds * 1000L : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return not expired entry or null
+     */
+    private Entry get(String id, long now) {
+        Entry entry = sessions.get(id);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(now)) {
+            if (sessions.remove(id, entry)) {
+                discard(entry);
+            }
+            return null;
+        }
+        return entry;
+    }
+
+    @Override
+    protected byte[] load(String id) throws Exception {
+        while (true) {
+            long now = currentTimeMillis();
+            Entry entry = get(id, now);
+            if (entry == null) {
+                return null;
+            }
+            entry.lastUsed = now;
+
+            Object content = entry.content;
+            if (content instanceof byte[]) {
+                return (byte[]) content;
+            } else if (content instanceof Path) {
+                byte[] data = readSpilled(entry, (Path) content);
+                if (data != null) {
+                    return data;
+                }
+            } else {
+                return null; // removed concurrently
+            }
+            // promoted or spilled again concurrently, read the latest content
+        }
+    }
+
+    /**
+     * Reads the first {@link SessionEnvelope#HEADER_SIZE} bytes only, as Redis does
+     */
+    @Override
+    protected byte[] loadHeader(String id) throws Exception {
+        byte[] data = load(id);
+        return data != null && data.length > SessionEnvelope.HEADER_SIZE ? Arrays.copyOf(data, SessionEnvelope.HEADER_SIZE) : data;
+    }
+
+    /**
+     * Data array is stored as is, manager does not modify arrays passed to the store
+     */
+    @Override
+    protected void save(String id, byte[] data, int expireSeconds) throws Exception {
+        long now = currentTimeMillis();
+        Entry entry = new Entry(id, data, expiresAt(now, expireSeconds), now);
+        residentBytes.addAndGet(entry.size);
+
+        Entry previous = sessions.put(id, entry);
+        if (previous != null) {
+            discard(previous);
+        }
+        schedule(entry);
+    }
+
+    @Override
+    protected void expire(String id, int expireSeconds) throws Exception {
+        long now = currentTimeMillis();
+        Entry entry = get(id, now);
+        if (entry != null) {
+            long expiresAt = expiresAt(now, expireSeconds);
+            boolean earlier = expiresAt < entry.expiresAt;
+            entry.expiresAt = expiresAt;
+            entry.lastUsed = now;
+            if (earlier) {
+                schedule(entry); // later expiration is rescheduled when the current slot is passed
+            }
+        }
+    }
+
+    @Override
+    protected void delete(String id) throws Exception {
+        Entry entry = sessions.remove(id);
+        if (entry != null) {
+            discard(entry);
+        }
+    }
+
+    @Override
+    protected String generateSessionId() {
+        String result;
+        do {
+            result = sessionIdGenerator.generateSessionId();
+        } while (sessions.containsKey(result));
+        return result;
+    }
+
+    /**
+     * Releases memory or spill file of the entry removed from the store
+     */
+    private void discard(Entry entry) {
+        while (true) {
+            Object content = entry.content;
+            if (content == DISCARDED) {
+                return;
+            }
+            if (CONTENT.compareAndSet(entry, content, DISCARDED)) {
+                if (content instanceof byte[]) {
+                    residentBytes.addAndGet(-entry.size);
+                } else {
+                    deleteSpillFile((Path) content);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves least recently used sessions to disk until memory usage drops below low watermark. Runs by one thread at a time
+     */
+    private void spill() {
+        if (!spillLock.tryLock()) {
+            return; // other thread is spilling already
+        }
+        try {
+            long target = (long) (maxBytes * SPILL_LOW_WATERMARK);
+            if (residentBytes.get() <= target) {
+                return;
+            }
+
+            List<Entry> resident = new ArrayList<>();
+            for (Entry entry : sessions.values()) {
+                if (entry.content instanceof byte[]) {
+                    resident.add(entry);
+                }
+            }
+            Collections.sort(resident, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    return Long.compare(a.lastUsed, b.lastUsed);
+                }
+            });
+
+            int spilled = 0;
+            for (Entry entry : resident) {
+                if (residentBytes.get() <= target) {
+                    break;
+                }
+                if (spill(entry)) {
+                    spilled++;
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Spilled " + spilled + " sessions to " + spillDirectory + ", " + residentBytes.get() + " bytes left in memory");
+            }
+        } catch (IOException e) {
+            log.error("Failed to spill sessions to disk, memory cap of " + maxBytes + " bytes is exceeded", e);
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    private boolean spill(Entry entry) throws IOException {
+        Object content = entry.content;
+        if (!(content instanceof byte[])) {
+            return false;
+        }
+        // every spill gets its own file, so readers of previous spill of the same entry never see partially written data
+        Path file = new File(getSpillDirectory(), entry.id + "." + spillSequence.incrementAndGet()).toPath();
+        Files.write(file, (byte[]) content);
+        if (CONTENT.compareAndSet(entry, content, file)) {
+            residentBytes.addAndGet(-entry.size);
+            return true;
+        } else {
+            deleteSpillFile(file); // removed from the store while written
+            return false;
+        }
+    }
+
+    /**
+     * Reads spilled data and moves it back to memory, memory cap is enforced by the background process
+     * @return data or null, if entry content has changed while reading
+     */
+    private byte[] readSpilled(Entry entry, Path file) throws IOException {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (CONTENT.compareAndSet(entry, file, data)) {
+            residentBytes.addAndGet(entry.size);
+            deleteSpillFile(file);
+        }
+        return data;
+    }
+
+    private void deleteSpillFile(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete spilled session file " + file, e);
+        }
+    }
+
+    File getSpillDirectory() throws IOException {
+        File dir = spillDirectory;
+        if (dir == null) {
+            if (spillPath != null) {
+                dir = new File(spillPath);
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Could not create session spill directory " + dir);
+                }
+            } else {
+                // deleted on stop
+                dir = Files.createTempDirectory("tomcat-sessions").toFile();
+            }
+            spillDirectory = dir;
+        }
+        return dir;
+    }
+
+    /**
+     * @return number of stored sessions, including expired ones not removed by background process yet
+     */
+    @Override
+    public int getActiveSessions() {
+        return sessions.size();
+    }
+
+    /**
+     * @return size of session data kept in memory
+     */
+    public long getResidentBytes() {
+        return residentBytes.get();
+    }
+
+    /**
+     * @return number of sessions spilled to disk
+     */
+    public int getSpilledSessions() {
+        int count = 0;
+        for (Entry entry : sessions.values()) {
+            if (entry.content instanceof Path) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public final long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes maximum size of session data kept in memory, sessions exceeding it are spilled to disk by the background process,
+     * so it could be exceeded between its runs. 0 - unlimited
+     */
+    public final void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public final String getSpillPath() {
+        return spillPath;
+    }
+
+    /**
+     * @param spillPath directory for sessions spilled to disk, temporary directory deleted on stop is used if not set
+     */
+    public final void setSpillPath(String spillPath) {
+        this.spillPath = spillPath;
+    }
+}
@@ -1,12 +1,30 @@
 package ee.neotech.tomcat.session;
 
 import java.io.IOException;
+import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
+import javax.servlet.http.HttpSessionAttributeListener;
+
+import org.apache.catalina.Context;
 import org.apache.catalina.session.StandardSession;
 
+import ee.neotech.tomcat.session.NonStickySessionManager.CachedSession;
+import ee.neotech.util.SharedAccessCache.Lease;
+
 public class NonStickySession extends StandardSession {
     private static final long serialVersionUID = 7661325540126449709L;
     
@@ -16,17 +34,154 @@ public class NonStickySession extends StandardSession {
     /** true if session data is modified */
     private volatile boolean modified;
 
+    /** Guards attribute access if {@link ConcurrencyPolicy#READ_WRITE} is used by manager, null otherwise */
+    private final transient StampedLock accessLock;
+
+    /** Thread holding write lock. Allows reentrant access from the writing thread (e.g. from attribute listeners) */
+    private transient volatile Thread writer;
+
+    /**
+     * Session the current thread holds read lock of while serializing it. StampedLock is not reentrant: read lock could not be
+     * reacquired while a writer is waiting, and write lock is never granted to the thread holding read lock
+     */
+    private static final ThreadLocal<NonStickySession> serializing = new ThreadLocal<>();
+
+    /** true if only metadata of the session is loaded from envelope header, attributes are loaded on first access */
+    private transient volatile boolean hollow;
+
+    /** stored data attributes of hollow session were loaded from */
+    private transient volatile byte[] loadedBody;
+
+    /** true if only length and checksum of stored data are kept for comparison, see {@link #compact()} */
+    private transient volatile boolean compacted;
+
+    /** guards loading of attributes of hollow session */
+    private final transient ReentrantLock bodyLock = new ReentrantLock();
+
+    /** true for copy of a session already expired in the store, which is only used to notify listeners */
+    private transient volatile boolean shadow;
+
+    /** Cache leases held by requests using the session, one per {@link #access()} call. Released by {@link #endAccess()} from any thread */
+    final transient Deque<Lease<String, CachedSession>> leases = new ConcurrentLinkedDeque<>();
+
+    /** Attribute value which is kept in serialized form until it is accessed for the first time */
+    static final class LazyAttribute {
+        final byte[] data;
+
+        LazyAttribute(byte[] data) {
+            this.data = data;
+        }
+    }
+
     public NonStickySession(NonStickySessionManager manager) {
         super(manager);
         this.dirty = false;
         this.modified = false;
+        this.accessLock = manager != null && manager.getConcurrencyPolicy() == ConcurrencyPolicy.READ_WRITE ? new StampedLock() : null;
+    }
+
+    private long lockWrite() {
+        if (accessLock == null || writer == Thread.currentThread()) {
+            return 0;
+        }
+        if (serializing.get() == this) {
+            // read lock is not upgradeable, waiting for write lock would never end
+            throw new IllegalStateException("Session " + id + " could not be modified while it is serialized by the same thread");
+        }
+        long stamp = accessLock.writeLock();
+        writer = Thread.currentThread();
+        return stamp;
+    }
+
+    private void unlockWrite(long stamp) {
+        if (stamp != 0) {
+            writer = null;
+            accessLock.unlockWrite(stamp);
+        }
+    }
+
+    private long lockRead() {
+        if (accessLock == null || writer == Thread.currentThread() || serializing.get() == this) {
+            return 0;
+        }
+        long stamp = accessLock.readLock();
+        if (serializing.get() == null) {
+            serializing.set(this);
+        }
+        return stamp;
+    }
+
+    private void unlockRead(long stamp) {
+        if (stamp != 0) {
+            if (serializing.get() == this) {
+                serializing.remove();
+            }
+            accessLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Initializes session from envelope header without attributes
+     */
+    final void initHollow(String id, SessionEnvelope envelope) {
+        this.id = id;
+        this.creationTime = envelope.getCreationTime();
+        this.maxInactiveInterval = envelope.getMaxInactiveInterval();
+        this.isNew = envelope.isNew();
+        this.isValid = envelope.isValid();
+        this.lastAccessedTime = this.thisAccessedTime = System.currentTimeMillis();
+        this.hollow = true;
+    }
+
+    /**
+     * Loads attributes of hollow session
+     */
+    private void ensureBody() {
+        if (!hollow) {
+            return;
+        }
+        bodyLock.lock();
+        try {
+            if (hollow) {
+                loadedBody = getManager().loadBody(this);
+                hollow = false;
+            }
+        } finally {
+            bodyLock.unlock();
+        }
+    }
+
+    final boolean isHollow() {
+        return hollow;
+    }
+
+    /**
+     * @return stored data attributes of initially hollow session were loaded from, null for sessions loaded entirely
+     */
+    final byte[] getLoadedBody() {
+        return loadedBody;
+    }
+
+    /**
+     * Drops stored data attributes were loaded from, as only length and checksum of stored data are kept for comparison from now on.
+     * Checksum is not relied on to detect attributes set to equal values, every change of such session is treated as modification
+     */
+    final void compact() {
+        compacted = true;
+        loadedBody = null;
     }
 
     @Override
     public void setMaxInactiveInterval(int interval) {
-        this.dirty = true;
-        this.modified = true;
-        super.setMaxInactiveInterval(interval);
+        ensureBody(); // metadata change requires whole session to be saved
+        long stamp = lockWrite();
+        try {
+            this.dirty = true;
+            this.modified = true;
+            super.setMaxInactiveInterval(interval);
+        } finally {
+            unlockWrite(stamp);
+        }
     }
     
     @Override
@@ -36,30 +191,156 @@ public class NonStickySession extends StandardSession {
         super.setId(id);
     }
 
+    /**
+     * Lazy value being replaced is not deserialized unless context has attribute listeners, so value which was not accessed since
+     * the session was loaded is not notified by {@link javax.servlet.http.HttpSessionBindingListener#valueUnbound}
+     */
     @Override
     public void setAttribute(String key, Object value) {
-        Object oldValue = getAttribute(key);
-        super.setAttribute(key, value);
+        ensureBody();
+        long stamp = lockWrite();
+        try {
+            Object oldValue = attributes.get(key);
+            if (oldValue instanceof LazyAttribute && hasAttributeListeners()) {
+                // listeners must receive actual replaced value, otherwise it is not deserialized just to be dropped
+                oldValue = resolve(key, (LazyAttribute) oldValue);
+            }
+            super.setAttribute(key, value);
 
-        this.dirty = true;
-        
-        if (!Objects.equals(value, oldValue)) {
-            this.modified = true;
+            this.dirty = true;
+
+            if (compacted || oldValue instanceof LazyAttribute || !Objects.equals(value, oldValue)) {
+                this.modified = true;
+            }
+        } finally {
+            unlockWrite(stamp);
         }
     }
     
     @Override
     public Object getAttribute(String name) {
         this.dirty = true;
-        return super.getAttribute(name);
+        ensureBody();
+
+        if (accessLock == null || writer == Thread.currentThread()) {
+            return doGetAttribute(name);
+        }
+
+        long stamp = accessLock.tryOptimisticRead();
+        if (stamp != 0) {
+            Object value = doGetAttribute(name);
+            if (accessLock.validate(stamp)) {
+                return value;
+            }
+        }
+
+        stamp = accessLock.readLock();
+        try {
+            return doGetAttribute(name);
+        } finally {
+            accessLock.unlockRead(stamp);
+        }
+    }
+
+    private Object doGetAttribute(String name) {
+        Object value = super.getAttribute(name);
+        if (value instanceof LazyAttribute) {
+            value = resolve(name, (LazyAttribute) value);
+        }
+        return value;
+    }
+
+    /**
+     * Deserializes lazy attribute value and replaces it in attributes map
+     * @return deserialized value or null, if value can not be deserialized
+     */
+    private Object resolve(String name, LazyAttribute lazy) {
+        Object value;
+        try {
+            value = getManager().deserializeAttribute(lazy.data);
+        } catch (Exception e) {
+            manager.getContext().getLogger().warn("Failed to deserialize attribute '" + name + "' of session " + id + ". Attribute will be removed", e);
+            attributes.remove(name, lazy);
+            this.modified = true;
+            return null;
+        }
+
+        if (attributes.replace(name, lazy, value)) {
+            return value;
+        } else {
+            // resolved or replaced concurrently
+            return attributes.get(name);
+        }
+    }
+
+    private boolean hasAttributeListeners() {
+        Context context = manager != null ? manager.getContext() : null;
+        if (context == null) {
+            return false;
+        }
+        for (Object listener : context.getApplicationEventListeners()) {
+            if (listener instanceof HttpSessionAttributeListener) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void resolveAll() {
+        for (String name : keys()) {
+            Object value = attributes.get(name);
+            if (value instanceof LazyAttribute) {
+                resolve(name, (LazyAttribute) value);
+            }
+        }
+    }
+
+    @Override
+    protected String[] keys() {
+        ensureBody();
+        return super.keys();
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        ensureBody();
+        if (!isValidInternal()) {
+            throw new IllegalStateException(sm.getString("standardSession.getAttributeNames.ise"));
+        }
+        return Collections.enumeration(new HashSet<>(attributes.keySet()));
+    }
+
+    /**
+     * @return attribute values as is, lazy values are not resolved
+     */
+    Map<String, Object> attributeValues() {
+        return attributes;
+    }
+
+    @Override
+    protected void removeAttributeInternal(String name, boolean notify) {
+        if (notify) {
+            // listeners must receive actual value
+            Object value = attributes.get(name);
+            if (value instanceof LazyAttribute) {
+                resolve(name, (LazyAttribute) value);
+            }
+        }
+        super.removeAttributeInternal(name, notify);
     }
 
     @Override
     public void removeAttribute(String name) {
-        if (this.getAttribute(name) != null) {
-            super.removeAttribute(name);
-            this.dirty = true;
-            this.modified = true;
+        ensureBody();
+        long stamp = lockWrite();
+        try {
+            if (this.getAttribute(name) != null) {
+                super.removeAttribute(name);
+                this.dirty = true;
+                this.modified = true;
+            }
+        } finally {
+            unlockWrite(stamp);
         }
     }
     
@@ -71,6 +352,21 @@ public class NonStickySession extends StandardSession {
         return isValid;
     }
 
+    /**
+     * @return isNew field value, unlike {@link #isNew()} does not require session to be valid
+     */
+    final boolean isNewInternal() {
+        return isNew;
+    }
+
+    public final boolean isShadow() {
+        return shadow;
+    }
+
+    final void markShadow() {
+        this.shadow = true;
+    }
+
     public final boolean isDirty() {
         return dirty;
     }
@@ -78,12 +374,35 @@ public class NonStickySession extends StandardSession {
     public final boolean isModified() {
         return modified;
     }
+
+    /**
+     * Resets modified flag before session data is persisted while session is still in use (checkpoint).
+     * Changes made during or after serialization set the flag again. Dirty flag is kept: requests could still change attribute values
+     * they obtained earlier, so the session is compared with saved data again on unload.
+     */
+    final void clearModified() {
+        this.modified = false;
+    }
+
+    /**
+     * Marks session as modified, so it is saved on unload
+     */
+    final void markModified() {
+        this.dirty = true;
+        this.modified = true;
+    }
     
     @Override
     public NonStickySessionManager getManager() {
         return (NonStickySessionManager)super.getManager();
     }
     
+    @Override
+    public void access() {
+        super.access();
+        getManager().beginAccess(this);
+    }
+
     @Override
     public void endAccess() {
         super.endAccess();
@@ -92,16 +411,20 @@ public class NonStickySession extends StandardSession {
     
     @Override
     public void writeObjectData(ObjectOutputStream stream) throws IOException {
+        ensureBody();
+        long stamp = lockRead();
         long lat = this.lastAccessedTime;
         long tat = this.thisAccessedTime;
         try {
             // prevent serialization of constantly changing data
             this.lastAccessedTime = 0;
             this.thisAccessedTime = 0;
+            resolveAll(); // standard format contains only actual values
             super.writeObjectData(stream);
         } finally {
             this.lastAccessedTime = lat;
             this.thisAccessedTime = tat;
+            unlockRead(stamp);
         }
     }
     
@@ -111,8 +434,108 @@ public class NonStickySession extends StandardSession {
         this.lastAccessedTime = this.thisAccessedTime = System.currentTimeMillis();
     }
 
+    /**
+     * Writes session data where each attribute value is serialized separately.
+     * Attributes that were never accessed since {@link #readLazyObjectData} are written as original bytes.
+     * Attributes are written in name order.
+     * 
+     * @param stream
+     * @throws IOException
+     */
+    public void writeLazyObjectData(ObjectOutputStream stream) throws IOException {
+        ensureBody();
+        long stamp = lockRead();
+        try {
+            doWriteLazyObjectData(stream);
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    private void doWriteLazyObjectData(ObjectOutputStream stream) throws IOException {
+        // name order makes data of equal sessions equal regardless of attribute map iteration order
+        String[] names = keys();
+        Arrays.sort(names);
+
+        List<String> saveNames = new ArrayList<>();
+        List<byte[]> saveValues = new ArrayList<>();
+        for (String name : names) {
+            Object value = attributes.get(name);
+            if (value == null) {
+                continue;
+            } else if (value instanceof LazyAttribute) {
+                saveNames.add(name);
+                saveValues.add(((LazyAttribute) value).data);
+            } else if (isAttributeDistributable(name, value) && !exclude(name, value)) {
+                try {
+                    saveValues.add(getManager().serializeAttribute(value));
+                    saveNames.add(name);
+                } catch (NotSerializableException e) {
+                    manager.getContext().getLogger().warn("Cannot serialize session attribute '" + name + "' for session " + id, e);
+                }
+            } else {
+                removeAttributeInternal(name, true);
+            }
+        }
+
+        writeLazyFormat(stream, creationTime, maxInactiveInterval, isNew, isValid, id, saveNames, saveValues);
+    }
+
+    /**
+     * Writes lazy attributes format from its parts, so data could also be restored without a session instance (see {@link SessionChangeLog}).
+     * Access times are written as 0 to prevent serialization of constantly changing data
+     */
+    static void writeLazyFormat(ObjectOutputStream stream, long creationTime, int maxInactiveInterval, boolean isNew, boolean isValid, String id,
+            List<String> names, List<byte[]> values) throws IOException {
+        stream.writeObject(Long.valueOf(creationTime));
+        stream.writeObject(Long.valueOf(0));
+        stream.writeObject(Integer.valueOf(maxInactiveInterval));
+        stream.writeObject(Boolean.valueOf(isNew));
+        stream.writeObject(Boolean.valueOf(isValid));
+        stream.writeObject(Long.valueOf(0));
+        stream.writeObject(id);
+
+        int n = names.size();
+        stream.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            byte[] data = values.get(i);
+            stream.writeObject(names.get(i));
+            stream.writeInt(data.length);
+            stream.write(data);
+        }
+    }
+
+    /**
+     * Reads session data written by {@link #writeLazyObjectData}. Attribute values are deserialized on first access.
+     * 
+     * @param stream
+     * @throws ClassNotFoundException
+     * @throws IOException
+     */
+    public void readLazyObjectData(ObjectInputStream stream) throws ClassNotFoundException, IOException {
+        authType = null;
+        principal = null;
+        creationTime = ((Long) stream.readObject()).longValue();
+        lastAccessedTime = ((Long) stream.readObject()).longValue();
+        maxInactiveInterval = ((Integer) stream.readObject()).intValue();
+        isNew = ((Boolean) stream.readObject()).booleanValue();
+        isValid = ((Boolean) stream.readObject()).booleanValue();
+        thisAccessedTime = ((Long) stream.readObject()).longValue();
+        id = (String) stream.readObject();
+
+        int n = stream.readInt();
+        for (int i = 0; i < n; i++) {
+            String name = (String) stream.readObject();
+            byte[] data = new byte[stream.readInt()];
+            stream.readFully(data);
+            attributes.put(name, new LazyAttribute(data));
+        }
+
+        this.lastAccessedTime = this.thisAccessedTime = System.currentTimeMillis();
+    }
+
     @Override
     public String toString() {
-        return "NonStickySession ["+(isValid?"V":"I") + (dirty?"D":"") + (modified?"M":"") + (expiring?"E":"") + (isNew?"N":"")+" "+id+"]";
+        return "NonStickySession ["+(isValid?"V":"I") + (hollow?"H":"") + (dirty?"D":"") + (modified?"M":"") + (expiring?"E":"") + (isNew?"N":"")+" "+id+"]";
     }
 }
\ No newline at end of file
@@ -1,16 +1,34 @@
 package ee.neotech.tomcat.session;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.Manifest;
 
+import javax.management.ObjectName;
+
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.LifecycleState;
@@ -20,7 +38,12 @@ import org.apache.catalina.util.CustomObjectInputStream;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
+import ee.neotech.util.FrequencySketch;
+import ee.neotech.util.RequestTimings;
+import ee.neotech.util.RequestTimings.Phase;
+import ee.neotech.util.ReusableByteArrayOutputStream;
 import ee.neotech.util.SharedAccessCache;
+import ee.neotech.util.SharedAccessCache.Lease;
 
 public abstract class NonStickySessionManager extends ManagerBase {
 
@@ -40,19 +63,33 @@ public abstract class NonStickySessionManager extends ManagerBase {
                 log.debug("Loading session data: "+key);
             }
             try {
-                data = NonStickySessionManager.this.load(key);
+                if (lazySessionBody) {
+                    data = loadHeaderData(key);
+                    if (data != null && data.length <= SessionEnvelope.HEADER_SIZE && !SessionEnvelope.isEnvelope(data)) {
+                        data = loadData(key); // data without envelope, body could not be loaded separately
+                    }
+                } else {
+                    data = loadData(key);
+                }
             } catch (Throwable ex) {
                 log.fatal("Failed to load session (id=" + key + ")", ex);
             }
 
+            if (data != null && data.length == SessionEnvelope.HEADER_SIZE && SessionEnvelope.isEnvelope(data)) {
+                return loadHollow(key, data);
+            }
+
             if (data != null) {
                 NonStickySession nss = null;
                 try {
                     nss = fromBinary(data);
+                } catch (SessionEnvelope.UnsupportedFormatException e) {
+                    log.warn("Session id=" + key + " is written by newer version of session manager and is ignored, data is left intact: " + e.getMessage());
+                    return null;
                 } catch (Throwable e) {
                     log.warn("Failed to deserialize session id=" + key + ". Session data will be reset", e);
                     try {
-                        NonStickySessionManager.this.delete(key);
+                        deleteData(key);
                     } catch (Exception ex) {
                         log.error("Failed to delete session (id=" + key + ")", ex);
                     }
@@ -60,17 +97,7 @@ public abstract class NonStickySessionManager extends ManagerBase {
                 }
 
                 if (nss.isActualValid()) {
-                    if (updateExpireOnAccess) {
-                        try {
-                            if (log.isDebugEnabled()) {
-                                log.debug("Updating session id="+key+" expiration. Will expire in "+nss.getMaxInactiveInterval()+" seconds");
-                            }
-                            NonStickySessionManager.this.expire(key, nss.getMaxInactiveInterval());
-                        } catch (Throwable ex) {
-                            log.error("Failed to set session (id=" + key + ") expiration", ex);
-                        }
-                    }
-                    
+                    updateExpiration(key, nss, data);
                     return new CachedSession(data, nss);
                 } else {
                     log.warn("Invalid session is loaded: " + nss + ". Discarding, invalid sessions must not be saved.");
@@ -80,6 +107,152 @@ public abstract class NonStickySessionManager extends ManagerBase {
             return null;
         }
 
+        /**
+         * Creates session from envelope header only, attributes are loaded on first access
+         */
+        private CachedSession loadHollow(String key, byte[] header) {
+            SessionEnvelope envelope;
+            try {
+                envelope = SessionEnvelope.readHeader(header);
+            } catch (IOException e) {
+                log.warn("Session id=" + key + " is written by newer version of session manager and is ignored, data is left intact: " + e.getMessage());
+                return null;
+            }
+
+            if (!envelope.isValid()) {
+                log.warn("Invalid session is loaded: id=" + key + ". Discarding, invalid sessions must not be saved.");
+                return null;
+            }
+
+            NonStickySession nss = createEmptySession();
+            nss.initHollow(key, envelope);
+            updateExpiration(key, nss, header);
+            return new CachedSession(null, nss);
+        }
+
+        @Override
+        protected long weigh(CachedSession cachedSession) {
+            return cachedSession.weight();
+        }
+
+        @Override
+        protected void compact(String key, CachedSession cachedSession) {
+            cachedSession.compact();
+        }
+
+        @Override
+        protected long retainOnRelease(String key, CachedSession cachedSession) {
+            FrequencySketch sketch = hotSessions;
+            if (sketch == null || hotSessionRetention <= 0 || !cachedSession.session.isActualValid()) {
+                return 0;
+            }
+            // version of the session could be checked only against envelope header of data saved or loaded by this node
+            byte[] baseline = cachedSession.baseline();
+            if (baseline == null ? cachedSession.session.isHollow() : !SessionEnvelope.isEnvelope(baseline)) {
+                return 0;
+            }
+            return sketch.estimate(key) >= hotSessionThreshold ? TimeUnit.SECONDS.toMillis(hotSessionRetention) : 0;
+        }
+
+        @Override
+        protected void persist(String key, CachedSession cachedSession) {
+            NonStickySession nss = cachedSession.session;
+            if (nss.isHollow() || (!nss.isDirty() && cachedSession.baseline() != null)) {
+                return; // attributes were not loaded or accessed, so could not be changed
+            }
+            save(cachedSession, "Saving hot session: ");
+        }
+
+        /**
+         * Hot session kept in cache is reused if the store still has the version this node saved or loaded last
+         */
+        @Override
+        protected boolean revalidate(String key, CachedSession cachedSession) {
+            byte[] baseline = cachedSession.baseline();
+            byte[] header = null;
+            if (baseline != null) {
+                try {
+                    header = loadHeaderData(key);
+                } catch (Exception e) {
+                    log.warn("Failed to load header of hot session id=" + key + ", session is reloaded: " + e.getMessage());
+                }
+            }
+            if (header == null || header.length < SessionEnvelope.HEADER_SIZE || !sameHeader(header, baseline)) {
+                metrics.hotSessionReloads.increment();
+                return false;
+            }
+            metrics.hotSessionRevalidations.increment();
+            updateExpiration(key, cachedSession.session, header);
+            return true;
+        }
+
+        /**
+         * @param data loaded session data or its envelope header, tells when the session was last saved
+         */
+        private void updateExpiration(String key, NonStickySession nss, byte[] data) {
+            if (updateExpireOnAccess) {
+                if (isExpirationFresh(key, nss.getMaxInactiveInterval(), data)) {
+                    metrics.skippedExpireRefreshes.increment();
+                    return;
+                }
+                try {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Updating session id="+key+" expiration. Will expire in "+nss.getMaxInactiveInterval()+" seconds");
+                    }
+                    expireData(key, nss.getMaxInactiveInterval());
+                } catch (Throwable ex) {
+                    log.error("Failed to set session (id=" + key + ") expiration", ex);
+                }
+            }
+        }
+
+        @Override
+        protected void checkpoint(String key, CachedSession cachedSession) {
+            NonStickySession nss = cachedSession.session;
+            byte[] baseline = cachedSession.baseline();
+            if (!nss.isActualValid() || nss.isHollow() || (!nss.isDirty() && baseline != null)) {
+                return; // invalid sessions are handled by unload, not accessed sessions could not be changed
+            }
+
+            if (save(cachedSession, "Checkpoint of modified session: ")) {
+                metrics.checkpoints.increment();
+            }
+        }
+
+        /**
+         * Saves session kept in cache, if it is modified
+         * @return true, if session was saved
+         */
+        private boolean save(CachedSession cachedSession, String logPrefix) {
+            NonStickySession nss = cachedSession.session;
+            byte[] baseline = cachedSession.baseline();
+            boolean modified = nss.isModified();
+            // changes made from now on will be saved by next checkpoint or unload, which compare dirty session with saved data
+            nss.clearModified();
+
+            ReusableByteArrayOutputStream buffer = null;
+            try {
+                buffer = serialize(nss, storedLength(baseline));
+                if (modified || !sameBody(buffer, baseline)) {
+                    if (log.isDebugEnabled()) {
+                        log.debug(logPrefix+nss);
+                    }
+                    byte[] binary = buffer.toByteArray();
+                    saveData(nss.getId(), baseline, binary, nss.getMaxInactiveInterval());
+                    cachedSession.binary = binary;
+                    return true;
+                }
+            } catch (Exception e) {
+                nss.markModified();
+                log.warn("Failed to save session " + nss + " kept in cache. Will be saved on unload", e);
+            } finally {
+                if (buffer != null) {
+                    releaseSerializationBuffer(buffer);
+                }
+            }
+            return false;
+        }
+
         @Override
         protected void unload(String key, CachedSession cachedSession) {
             NonStickySession nss = cachedSession.session;
@@ -88,24 +261,32 @@ public abstract class NonStickySessionManager extends ManagerBase {
                     log.debug("Unloading session: "+nss);
                 }
                 
+                byte[] baseline = cachedSession.baseline();
                 if (nss.isActualValid()) { // valid modified/new sessions are saved on unload
-                    if (nss.isDirty() || cachedSession.binary == null) {
+                    if (nss.isHollow()) {
+                        // attributes were not loaded, so could not be changed
+                    } else if (nss.isDirty() || baseline == null) {
                         boolean modified = nss.isModified();
-                        byte[] binary = toBinary(nss);
-                        modified = modified || !Arrays.equals(cachedSession.binary, binary);
-                        
-                        if (modified) {
-                            if (log.isDebugEnabled()) {
-                                log.debug("Saving modified session: "+nss+" new = "+(cachedSession.binary == null));
+                        ReusableByteArrayOutputStream buffer = serialize(nss, storedLength(baseline));
+                        try {
+                            // compare in place, new binary is only copied out of the buffer when it has to be saved
+                            modified = modified || !sameBody(buffer, baseline);
+
+                            if (modified) {
+                                if (log.isDebugEnabled()) {
+                                    log.debug("Saving modified session: "+nss+" new = "+(baseline == null));
+                                }
+                                saveData(nss.getId(), baseline, buffer.toByteArray(), nss.getMaxInactiveInterval());
                             }
-                            NonStickySessionManager.this.save(nss.getId(), binary, nss.getMaxInactiveInterval());
-                        } 
+                        } finally {
+                            releaseSerializationBuffer(buffer);
+                        }
                     }
                 } else {
                     if (log.isDebugEnabled()) {                        
                         log.debug("Deleting invalid session: "+nss);
                     }
-                    NonStickySessionManager.this.delete(nss.getId());
+                    deleteData(nss.getId());
                 }
             } catch (Exception e) {
                 log.error("Failed to unload session " + nss, e);
@@ -114,7 +295,7 @@ public abstract class NonStickySessionManager extends ManagerBase {
     }
 
     static class CachedSession {
-        private byte[] binary;
+        private volatile byte[] binary;
         private final NonStickySession session;
 
         public CachedSession(byte[] binary, NonStickySession session) {
@@ -125,6 +306,43 @@ public abstract class NonStickySessionManager extends ManagerBase {
             this.session = session;
         }
 
+        /**
+         * @return last stored data of the session, or null if session is new or is not loaded from store entirely.
+         * Only envelope header of the data is returned after {@link #compact()}
+         */
+        byte[] baseline() {
+            byte[] b = binary;
+            return b != null ? b : session.getLoadedBody();
+        }
+
+        /**
+         * Keeps only envelope header of the last stored data, it is enough to detect modification by body length and checksum
+         */
+        void compact() {
+            byte[] b = baseline();
+            if (b != null && b.length > SessionEnvelope.HEADER_SIZE && SessionEnvelope.isEnvelope(b)) {
+                binary = Arrays.copyOf(b, SessionEnvelope.HEADER_SIZE);
+                session.compact();
+            }
+        }
+
+        /**
+         * @return estimated heap used by the session: stored data kept for comparison and session attributes, which are estimated by
+         * serialized size of the session
+         */
+        long weight() {
+            long w = CACHED_SESSION_OVERHEAD;
+            byte[] b = binary;
+            if (b != null) {
+                w += b.length;
+            }
+            byte[] loaded = session.getLoadedBody();
+            if (loaded != null) {
+                w += loaded.length;
+            }
+            return w + storedLength(baseline());
+        }
+
         @Override
         public String toString() {
             return "CachedSession [size=" + (binary != null ? binary.length : "null") + " " + session + "]";
@@ -133,12 +351,294 @@ public abstract class NonStickySessionManager extends ManagerBase {
 
     private SessionCache sessionCache;
 
+    /** Estimated heap used by a cached session apart from its data */
+    static final int CACHED_SESSION_OVERHEAD = 512;
+
+    /** Lease acquired by lookup is expected to be claimed by session access soon, otherwise it is considered leaked */
+    private static final long UNCLAIMED_LEASE_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+    /** Leases acquired by current thread. Repeated lookups of the same session within a request share the lease */
+    private final ThreadLocal<Map<String, Lease<String, CachedSession>>> threadLeases = new ThreadLocal<>();
+
+    private static final int MAX_THREAD_LEASES = 8;
+
+    private static final int MIN_SERIALIZATION_BUFFER_SIZE = 1024;
+
+    /**
+     * Precedes data of sessions that are serialized attribute by attribute without envelope (data format version 0).
+     * Standard serialization stream always starts with 0xACED
+     */
+    private static final byte[] LAZY_FORMAT_HEADER = { 'N', 'S', 'L', 1 };
+
+    private static final byte[] EMPTY_ENVELOPE_HEADER = new byte[SessionEnvelope.HEADER_SIZE];
+
+    /** Per thread serialization buffers, reused between requests to avoid allocation and regrowth of temporary arrays */
+    private final ThreadLocal<ReusableByteArrayOutputStream> serializationBuffers = new ThreadLocal<>();
+
+    private static final int MIN_ATTRIBUTE_BUFFER_SIZE = 256;
+
+    /** Per thread buffers of lazy attributes format, each attribute value is serialized separately */
+    private final ThreadLocal<ReusableByteArrayOutputStream> attributeBuffers = new ThreadLocal<>();
+
     protected boolean updateExpireOnAccess = false;
 
+    protected double expireRefreshRatio = 0;
+
+    /** Time until which store expiration of a session set by this node is considered fresh, by session id */
+    private final Map<String, Long> expireRefreshes = new ConcurrentHashMap<>();
+
+    /** Sessions whose expiration is tracked beyond this number are refreshed on every access */
+    private static final int MAX_EXPIRE_REFRESHES = 100000;
+
+    protected int serializationBufferLimit = 1024 * 1024;
+
+    protected boolean lazyAttributes = false;
+
+    protected long loadWaitTimeout = 30000;
+
+    protected int checkpointAge = 0;
+
+    protected int checkpointMaxPerRun = 100;
+
+    private ScheduledExecutorService checkpointer;
+
+    protected ConcurrencyPolicy concurrencyPolicy = ConcurrencyPolicy.SHARED;
+
+    protected long accessWaitTimeout = 30000;
+
+    protected int leaseTimeout = 3600;
+
+    protected int prefetchRetention = 10;
+
+    /** Format readable by previous versions, so nodes could be upgraded one by one */
+    protected int dataFormatVersion = 0;
+
+    protected boolean lazySessionBody = false;
+
+    protected int largeSessionThreshold = 0;
+
+    protected int largeSessionThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    protected int largeSessionQueue = 100;
+
+    private volatile ThreadPoolExecutor largeSessionExecutor;
+
+    protected long cacheMaxBytes = 0;
+
+    protected int hotSessionThreshold = 0;
+
+    protected int hotSessionWindow = 10;
+
+    protected int hotSessionRetention = 30;
+
+    /** Width of hot session sketch rows, memory used is 16 bytes per unit */
+    private static final int HOT_SESSION_SKETCH_WIDTH = 1 << 14;
+
+    private volatile FrequencySketch hotSessions;
+
+    private final SessionProfiler profiler = new SessionProfiler(this);
+
+    private ObjectName profilerName;
+
+    private final SessionManagerMetrics metrics = new SessionManagerMetrics();
+
+    private ObjectName metricsName;
+
     public final void setUpdateExpireOnAccess(boolean updateExpireOnAccess) {
         this.updateExpireOnAccess = updateExpireOnAccess;
     }
 
+    /**
+     * @param expireRefreshRatio share of maxInactiveInterval [0..1) during which store expiration set by a save or a previous refresh is
+     * not refreshed again by updateExpireOnAccess. Session accessed only within that time expires after the rest of the interval
+     * since its last access. 0 - expiration is refreshed on every load
+     */
+    public final void setExpireRefreshRatio(double expireRefreshRatio) {
+        if (expireRefreshRatio < 0 || expireRefreshRatio >= 1) {
+            // at 1 accessed session is not refreshed until its store expiration, so it could expire while in use
+            throw new IllegalArgumentException("Expire refresh ratio must be at least 0 and less than 1: " + expireRefreshRatio);
+        }
+        this.expireRefreshRatio = expireRefreshRatio;
+    }
+
+    /**
+     * Maximum size of the serialization buffer retained by a thread between requests. Larger buffers are discarded after use.
+     * @param serializationBufferLimit size in bytes
+     */
+    public final void setSerializationBufferLimit(int serializationBufferLimit) {
+        this.serializationBufferLimit = serializationBufferLimit;
+    }
+
+    /**
+     * If enabled, session attributes are serialized separately and deserialized only on first access.
+     * Attributes that were not accessed are saved back as original bytes. Sessions in both formats are always readable.
+     * @param lazyAttributes
+     */
+    public final void setLazyAttributes(boolean lazyAttributes) {
+        this.lazyAttributes = lazyAttributes;
+    }
+
+    /**
+     * @param loadWaitTimeout maximum time in milliseconds a request waits for the session being loaded or saved by a concurrent request
+     */
+    public final void setLoadWaitTimeout(long loadWaitTimeout) {
+        this.loadWaitTimeout = loadWaitTimeout;
+    }
+
+    /**
+     * @param checkpointAge sessions held in cache by long running requests are saved (without eviction) every <code>checkpointAge</code> seconds if modified. 0 disables checkpoints
+     */
+    public final void setCheckpointAge(int checkpointAge) {
+        this.checkpointAge = checkpointAge;
+    }
+
+    /**
+     * @param checkpointMaxPerRun maximum number of sessions saved by a checkpoint run (runs are performed every second)
+     */
+    public final void setCheckpointMaxPerRun(int checkpointMaxPerRun) {
+        this.checkpointMaxPerRun = checkpointMaxPerRun;
+    }
+
+    /**
+     * @param concurrencyPolicy name of {@link ConcurrencyPolicy} used for concurrent requests to the same session
+     */
+    public final void setConcurrencyPolicy(String concurrencyPolicy) {
+        this.concurrencyPolicy = ConcurrencyPolicy.valueOf(concurrencyPolicy.trim().toUpperCase());
+    }
+
+    public final ConcurrencyPolicy getConcurrencyPolicy() {
+        return concurrencyPolicy;
+    }
+
+    /**
+     * @param accessWaitTimeout maximum time in milliseconds a request waits for session used by another request with {@link ConcurrencyPolicy#SERIALIZED} policy
+     */
+    public final void setAccessWaitTimeout(long accessWaitTimeout) {
+        this.accessWaitTimeout = accessWaitTimeout;
+    }
+
+    /**
+     * @param leaseTimeout maximum time in seconds a request may hold a session. Sessions not released by then are force-released and logged. 0 - never
+     */
+    public final void setLeaseTimeout(int leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    /**
+     * @param prefetchRetention time in seconds sessions loaded by {@link #prefetch(Collection)} are kept in cache waiting for requests
+     */
+    public final void setPrefetchRetention(int prefetchRetention) {
+        this.prefetchRetention = prefetchRetention;
+    }
+
+    /**
+     * Format of written session data. All formats are always readable, but nodes of previous versions fail to read the envelope
+     * and reset such sessions. Defaults to 0, so nodes could be upgraded one by one. Set to 1 once all nodes are upgraded, it is
+     * required by hot sessions, change log, header-only loads and detection of saves by other nodes.
+     * @param dataFormatVersion 0 - data without header (as written by versions prior to {@link SessionEnvelope}),
+     * 1 - data in {@link SessionEnvelope}
+     */
+    public final void setDataFormatVersion(int dataFormatVersion) {
+        if (dataFormatVersion < 0 || dataFormatVersion > SessionEnvelope.VERSION) {
+            throw new IllegalArgumentException("Unsupported session data format version " + dataFormatVersion);
+        }
+        this.dataFormatVersion = dataFormatVersion;
+    }
+
+    /**
+     * If enabled, only envelope header of a session is loaded on lookup, session attributes are loaded on first access.
+     * Requests which only check that session exists do not transfer and deserialize session data.
+     * Sessions stored without envelope are loaded entirely
+     * @param lazySessionBody
+     */
+    public final void setLazySessionBody(boolean lazySessionBody) {
+        this.lazySessionBody = lazySessionBody;
+    }
+
+    /**
+     * @param largeSessionThreshold serialized size in bytes from which sessions are (de)serialized by dedicated pool instead of request thread. 0 disables the pool
+     */
+    public final void setLargeSessionThreshold(int largeSessionThreshold) {
+        this.largeSessionThreshold = largeSessionThreshold;
+    }
+
+    /**
+     * @param largeSessionThreads number of threads (de)serializing large sessions, limits CPU used by them
+     */
+    public final void setLargeSessionThreads(int largeSessionThreads) {
+        this.largeSessionThreads = largeSessionThreads;
+    }
+
+    /**
+     * @param largeSessionQueue maximum number of large sessions waiting for (de)serialization. When the queue is full, request thread does it itself
+     */
+    public final void setLargeSessionQueue(int largeSessionQueue) {
+        this.largeSessionQueue = largeSessionQueue;
+    }
+
+    /**
+     * @param cacheMaxBytes estimated heap used by cached sessions, exceeding which the cache keeps only checksums of stored data,
+     * does not keep sessions between requests and refuses to load sessions which are not cached (see {@link SessionOverloadValve}).
+     * 0 - unbounded
+     */
+    public final void setCacheMaxBytes(long cacheMaxBytes) {
+        this.cacheMaxBytes = cacheMaxBytes;
+        if (sessionCache != null) {
+            sessionCache.setMaxWeight(cacheMaxBytes);
+        }
+    }
+
+    /**
+     * @param hotSessionThreshold number of lookups within about hotSessionWindow seconds making a session hot. Hot sessions are kept in
+     * cache between requests and reloaded only if changed in store. 0 disables hot session detection
+     */
+    public final void setHotSessionThreshold(int hotSessionThreshold) {
+        this.hotSessionThreshold = hotSessionThreshold;
+    }
+
+    /**
+     * @param hotSessionWindow time in seconds lookup counts are accumulated for, older lookups are gradually forgotten
+     */
+    public final void setHotSessionWindow(int hotSessionWindow) {
+        this.hotSessionWindow = hotSessionWindow;
+    }
+
+    /**
+     * @param hotSessionRetention time in seconds a hot session is kept in cache after the last request using it ends
+     */
+    public final void setHotSessionRetention(int hotSessionRetention) {
+        this.hotSessionRetention = hotSessionRetention;
+    }
+
+    /**
+     * @param profileSampleRate share of saved sessions (0..1) which are profiled attribute by attribute. 0 disables profiling
+     */
+    public final void setProfileSampleRate(double profileSampleRate) {
+        profiler.setSampleRate(profileSampleRate);
+    }
+
+    /**
+     * @param profileSessionSizeWarning serialized session size in bytes exceeding which is logged as warning. 0 disables warnings
+     */
+    public final void setProfileSessionSizeWarning(int profileSessionSizeWarning) {
+        profiler.setSessionSizeWarning(profileSessionSizeWarning);
+    }
+
+    /**
+     * @param profileLogInterval interval of profile summary logging in seconds. 0 disables logging
+     */
+    public final void setProfileLogInterval(int profileLogInterval) {
+        profiler.setLogInterval(profileLogInterval);
+    }
+
+    public final SessionProfiler getProfiler() {
+        return profiler;
+    }
+
+    public final SessionManagerMetrics getMetrics() {
+        return metrics;
+    }
+
     @Override
     public int getRejectedSessions() {
         return 0; // non-sticky sessions are never rejected
@@ -162,6 +662,28 @@ public abstract class NonStickySessionManager extends ManagerBase {
         // sessions are not stored within manager -> do nothing
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void backgroundProcess() {
+        super.backgroundProcess();
+        if (sessionCache != null) {
+            sessionCache.reapExpiredLeases();
+            sessionCache.evictRetained();
+            if (sessionCache.isOverBudget()) {
+                sessionCache.shed();
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (Iterator<Long> it = expireRefreshes.values().iterator(); it.hasNext();) {
+            if (it.next() <= now) {
+                it.remove();
+            }
+        }
+        profiler.logSummaryIfDue();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -213,10 +735,64 @@ public abstract class NonStickySessionManager extends ManagerBase {
 
         loader = getContext().getLoader().getClassLoader();
         sessionCache = new SessionCache();
+        sessionCache.setLoadWaitTimeout(loadWaitTimeout);
+        sessionCache.setExclusiveAccess(concurrencyPolicy == ConcurrencyPolicy.SERIALIZED);
+        sessionCache.setAccessWaitTimeout(accessWaitTimeout);
+        sessionCache.setLeaseTimeout(UNCLAIMED_LEASE_TIMEOUT);
+        sessionCache.setMaxWeight(cacheMaxBytes);
+        metrics.setCache(sessionCache);
+
+        if (checkpointAge > 0) {
+            final String name = "SessionCheckpointer[" + getContext().getName() + "]";
+            checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // sessions become due at different times since they are loaded at different times, frequent small runs spread the load
+            checkpointer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sessionCache.checkpoint(TimeUnit.SECONDS.toMillis(checkpointAge), checkpointMaxPerRun);
+                    } catch (Throwable e) {
+                        log.error("Session checkpoint failed", e);
+                    }
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+
+        if (hotSessionThreshold > 0) {
+            if (dataFormatVersion < SessionEnvelope.VERSION) {
+                log.warn("Hot session detection requires data format version " + SessionEnvelope.VERSION + " and is disabled");
+            } else {
+                hotSessions = new FrequencySketch(HOT_SESSION_SKETCH_WIDTH, TimeUnit.SECONDS.toMillis(hotSessionWindow));
+            }
+        }
+
+        if (largeSessionThreshold > 0) {
+            final String name = "SessionSerializer[" + getContext().getName() + "]";
+            largeSessionExecutor = new ThreadPoolExecutor(largeSessionThreads, largeSessionThreads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(largeSessionQueue), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, name);
+                            thread.setDaemon(true);
+                            thread.setContextClassLoader(loader);
+                            return thread;
+                        }
+                    });
+        }
+
+        profilerName = register(profiler, getObjectNameKeyProperties() + ",name=SessionProfiler");
+        metricsName = register(metrics, getObjectNameKeyProperties() + ",name=SessionManagerMetrics");
 
         setState(LifecycleState.STARTING);
         
-        log.info("Staring session manager: "+this.getClassName()+" "+getJarVersion());
+        log.info("Staring session manager: "+this.getClassName()+" "+getJarVersion()+", concurrency policy: "+concurrencyPolicy);
     }
 
     /**
@@ -232,6 +808,24 @@ public abstract class NonStickySessionManager extends ManagerBase {
 
         setState(LifecycleState.STOPPING);
 
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+            checkpointer = null;
+        }
+
+        if (largeSessionExecutor != null) {
+            largeSessionExecutor.shutdown();
+            largeSessionExecutor = null;
+        }
+
+        hotSessions = null;
+        expireRefreshes.clear();
+
+        unregister(profilerName);
+        profilerName = null;
+        unregister(metricsName);
+        metricsName = null;
+
         super.stopInternal();
     }
 
@@ -257,18 +851,90 @@ public abstract class NonStickySessionManager extends ManagerBase {
             log.debug("Creating new empty session: "+session);
         }
         
-        CachedSession cachedSession = sessionCache.putnx(id, new CachedSession(null, (NonStickySession) session));
+        Lease<String, CachedSession> lease = sessionCache.putnx(id, new CachedSession(null, (NonStickySession) session));
+        setThreadLease(id, lease);
 
-        if (cachedSession.session != session) {
-            log.fatal("Another cached session is present on add: cached session: "+ cachedSession.session+" while adding session: "+session);
+        if (lease.data().session != session) {
+            log.fatal("Another cached session is present on add: cached session: "+ lease.data().session+" while adding session: "+session);
         }
     }
 
+    /**
+     * Claims lease acquired by this thread on session lookup for the request accessing the session.
+     * If there is no such lease (or it is already claimed by another request of this thread), a new one is acquired.
+     */
+    protected void beginAccess(NonStickySession sess) {
+        String id = sess.getIdInternal();
+        Lease<String, CachedSession> lease = getThreadLease(id);
+
+        if (lease == null || lease.data().session != sess || sess.leases.contains(lease)) {
+            lease = sessionCache.acquire(id);
+            if (lease == null) {
+                return;
+            }
+            if (lease.data().session != sess) {
+                // session is already removed from cache
+                lease.close();
+                return;
+            }
+            setThreadLease(id, lease);
+        }
+
+        lease.renew(TimeUnit.SECONDS.toMillis(leaseTimeout));
+        sess.leases.add(lease);
+    }
+
     protected void endAccess(NonStickySession sess) {
         if (log.isDebugEnabled()) {
             log.debug("Ending access on "+sess);
         }
-        sessionCache.release(sess.getId());
+
+        Lease<String, CachedSession> lease;
+        while ((lease = sess.leases.poll()) != null && lease.isReleased()) {
+            // skip leases that were force-released or belong to removed cache item
+        }
+        if (lease != null) {
+            lease.close();
+        }
+
+        // lease acquired by this thread but never claimed, e.g. on session id change
+        Map<String, Lease<String, CachedSession>> leases = threadLeases.get();
+        if (leases != null) {
+            Lease<String, CachedSession> own = leases.get(sess.getIdInternal());
+            if (own != null && !sess.leases.contains(own)) {
+                leases.remove(sess.getIdInternal());
+                own.close();
+            }
+        }
+    }
+
+    private Lease<String, CachedSession> getThreadLease(String id) {
+        Map<String, Lease<String, CachedSession>> leases = threadLeases.get();
+        if (leases == null) {
+            return null;
+        }
+        Lease<String, CachedSession> lease = leases.get(id);
+        if (lease != null && lease.isReleased()) {
+            leases.remove(id);
+            return null;
+        }
+        return lease;
+    }
+
+    private void setThreadLease(String id, Lease<String, CachedSession> lease) {
+        Map<String, Lease<String, CachedSession>> leases = threadLeases.get();
+        if (leases == null) {
+            leases = new HashMap<>();
+            threadLeases.set(leases);
+        } else if (leases.size() >= MAX_THREAD_LEASES) {
+            // leases of async requests are released by other threads
+            for (Iterator<Lease<String, CachedSession>> it = leases.values().iterator(); it.hasNext();) {
+                if (it.next().isReleased()) {
+                    it.remove();
+                }
+            }
+        }
+        leases.put(id, lease);
     }
 
     @Override
@@ -279,19 +945,104 @@ public abstract class NonStickySessionManager extends ManagerBase {
             log.debug("Trying to find session: id="+id);
         }
         
-        CachedSession cachedSession = sessionCache.get(id);
+        Lease<String, CachedSession> lease = getThreadLease(id);
+        if (lease == null) {
+            FrequencySketch sketch = hotSessions;
+            if (sketch != null) {
+                sketch.increment(id);
+            }
+            lease = sessionCache.acquire(id);
+            if (lease != null) {
+                setThreadLease(id, lease);
+            }
+        }
         
-        if (cachedSession == null) {
+        if (lease == null) {
             if (log.isDebugEnabled()) {
                 log.debug("No session found: id="+id);
             }    
             return null;
         } else {
             if (log.isDebugEnabled()) {
-                log.debug("Session found: "+cachedSession.session);
+                log.debug("Session found: "+lease.data().session);
+            }
+            return lease.data().session;
+        }
+    }
+
+    /**
+     * @param id requested session id
+     * @return true, if the session is not cached and would not be loaded, because cache exceeds cacheMaxBytes
+     */
+    public boolean isLoadRefused(String id) {
+        SessionCache cache = sessionCache;
+        if (cache == null || !cache.isOverBudget() || cache.contains(id)) {
+            return false;
+        }
+        // cache is shed by background process, request threads only shed if it did not run recently
+        cache.shedIfDue();
+        return cache.isOverBudget();
+    }
+
+    /**
+     * Loads sessions which will be requested shortly (e.g. by SSO fan-out), so their lookups are cache hits.
+     * Sessions are fetched from the store at once and deserialized by the calling thread (large ones by the large session pool).
+     * Prefetched sessions are kept in cache for prefetchRetention seconds waiting for the first request, then they are saved
+     * and unloaded by the last request as usual. Their expiration is refreshed here, as their first lookup is a cache hit.
+     * Prefetching stops once the cache is over cacheMaxBytes budget.
+     *
+     * @param ids session ids, already cached and not existing sessions are skipped
+     * @return number of sessions put in cache
+     */
+    public int prefetch(Collection<String> ids) {
+        sessionCache.evictRetained();
+
+        Set<String> missing = new LinkedHashSet<>();
+        for (String id : ids) {
+            if (id != null && !sessionCache.contains(id) && !isLoadRefused(id)) {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            return 0;
+        }
+
+        Map<String, byte[]> loaded;
+        try {
+            loaded = loadAllData(missing);
+        } catch (Exception e) {
+            log.error("Failed to prefetch sessions " + missing, e);
+            return 0;
+        }
+
+        int count = 0;
+        for (Map.Entry<String, byte[]> entry : loaded.entrySet()) {
+            String id = entry.getKey();
+            byte[] data = entry.getValue();
+            if (sessionCache.isOverBudget()) {
+                // sessions prefetched so far are not shed to make room for the rest
+                break;
+            }
+
+            NonStickySession nss;
+            try {
+                nss = fromBinary(data);
+            } catch (Exception e) {
+                // session is reset by regular load
+                log.warn("Failed to deserialize prefetched session id=" + id, e);
+                continue;
             }
-            return cachedSession.session;
+
+            if (nss.isActualValid() && sessionCache.retain(id, new CachedSession(data, nss), TimeUnit.SECONDS.toMillis(prefetchRetention))) {
+                sessionCache.updateExpiration(id, nss, data);
+                count++;
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Prefetched " + count + " of " + ids.size() + " sessions");
         }
+        return count;
     }
 
     @Override
@@ -301,30 +1052,502 @@ public abstract class NonStickySessionManager extends ManagerBase {
             log.debug("Removing session: "+session);
         }
         session.setValid(false);
+        if (session instanceof NonStickySession && ((NonStickySession) session).isShadow()) {
+            return; // not cached, store data is already expired
+        }
         sessionCache.remove(session.getId());
     }
 
-    protected final NonStickySession fromBinary(byte[] binary) throws ClassNotFoundException, IOException {
-        try (ObjectInputStream ois = new CustomObjectInputStream(new ByteArrayInputStream(binary), loader)) {
+    protected final NonStickySession fromBinary(final byte[] binary) throws ClassNotFoundException, IOException {
+        if (!isLarge(binary.length)) {
+            return deserialize(binary);
+        }
+        return offload(new Callable<NonStickySession>() {
+            @Override
+            public NonStickySession call() throws Exception {
+                return deserialize(binary);
+            }
+        });
+    }
+
+    private NonStickySession deserialize(byte[] binary) throws ClassNotFoundException, IOException {
+        boolean lazy;
+        int offset;
+        if (SessionEnvelope.isEnvelope(binary)) {
+            lazy = SessionEnvelope.read(binary).getCodec() == SessionEnvelope.CODEC_LAZY;
+            offset = SessionEnvelope.HEADER_SIZE;
+        } else {
+            // data format version 0
+            lazy = startsWith(binary, LAZY_FORMAT_HEADER);
+            offset = lazy ? LAZY_FORMAT_HEADER.length : 0;
+        }
+
+        long start = System.nanoTime();
+        try (ObjectInputStream ois = new CustomObjectInputStream(new ByteArrayInputStream(binary, offset, binary.length - offset), loader)) {
             NonStickySession session = createEmptySession();
-            session.readObjectData(ois);
+            if (lazy) {
+                session.readLazyObjectData(ois);
+            } else {
+                session.readObjectData(ois);
+            }
             session.setManager(this);
+
+            long nanos = System.nanoTime() - start;
+            metrics.deserializationTime.record(nanos);
+            RequestTimings.add(Phase.SERIALIZATION, nanos);
+            if (profiler.isEnabled()) {
+                profiler.recordDeserialization(binary.length, nanos);
+            }
             return session;
         }
     }
 
-    protected final byte[] toBinary(NonStickySession session) throws IOException {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(1024); ObjectOutputStream oos = new ObjectOutputStream(bos)) {
-            session.writeObjectData(oos);
+    private static boolean startsWith(byte[] binary, byte[] prefix) {
+        if (binary.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (binary[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected Object deserializeAttribute(byte[] data) throws ClassNotFoundException, IOException {
+        try (ObjectInputStream ois = new CustomObjectInputStream(new ByteArrayInputStream(data), loader)) {
+            return ois.readObject();
+        }
+    }
+
+    /**
+     * Serializes attribute value into per-thread buffer, which is separate from session buffer as attributes are serialized while
+     * session is being written
+     */
+    protected byte[] serializeAttribute(Object value) throws IOException {
+        ReusableByteArrayOutputStream buffer = attributeBuffers.get();
+        if (buffer == null) {
+            buffer = new ReusableByteArrayOutputStream(MIN_ATTRIBUTE_BUFFER_SIZE);
+            attributeBuffers.set(buffer);
+        }
+        try (ObjectOutputStream oos = new ObjectOutputStream(buffer)) {
+            oos.writeObject(value);
             oos.flush();
-            return bos.toByteArray();
+            return buffer.toByteArray();
+        } finally {
+            buffer.reset();
+            if (buffer.capacity() > serializationBufferLimit) {
+                attributeBuffers.remove();
+            }
+        }
+    }
+
+    protected final byte[] toBinary(NonStickySession session) throws IOException {
+        ReusableByteArrayOutputStream buffer = serialize(session, 0);
+        try {
+            return buffer.toByteArray();
+        } finally {
+            releaseSerializationBuffer(buffer);
+        }
+    }
+
+    /**
+     * Serializes session into the thread-local buffer. Buffer content is only valid until {@link #releaseSerializationBuffer} is called.
+     * 
+     * @param session
+     * @param expectedSize previous serialized size of the session if known, used to presize the buffer
+     * @return buffer with serialized session data
+     * @throws IOException
+     */
+    protected final ReusableByteArrayOutputStream serialize(final NonStickySession session, int expectedSize) throws IOException {
+        ReusableByteArrayOutputStream threadBuffer = serializationBuffers.get();
+        if (threadBuffer == null) {
+            threadBuffer = new ReusableByteArrayOutputStream(MIN_SERIALIZATION_BUFFER_SIZE);
+            serializationBuffers.set(threadBuffer);
+        }
+        final ReusableByteArrayOutputStream buffer = threadBuffer;
+        // leave some room for growth, so slightly bigger session does not cause regrowth
+        buffer.reset(expectedSize + (expectedSize >> 3));
+
+        if (!isLarge(expectedSize)) {
+            return serialize(session, buffer);
+        }
+        try {
+            // buffer of the request thread is filled by pool thread while request thread waits
+            return offload(new Callable<ReusableByteArrayOutputStream>() {
+                @Override
+                public ReusableByteArrayOutputStream call() throws Exception {
+                    return serialize(session, buffer);
+                }
+            });
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private ReusableByteArrayOutputStream serialize(NonStickySession session, ReusableByteArrayOutputStream buffer) throws IOException {
+        long start = System.nanoTime();
+        boolean envelope = dataFormatVersion >= SessionEnvelope.VERSION;
+
+        try {
+            if (envelope) {
+                // header is filled in when body is written
+                buffer.write(EMPTY_ENVELOPE_HEADER, 0, EMPTY_ENVELOPE_HEADER.length);
+            } else if (lazyAttributes) {
+                buffer.write(LAZY_FORMAT_HEADER, 0, LAZY_FORMAT_HEADER.length);
+            }
+            try (ObjectOutputStream oos = new ObjectOutputStream(buffer)) {
+                if (lazyAttributes) {
+                    session.writeLazyObjectData(oos);
+                } else {
+                    session.writeObjectData(oos);
+                }
+                oos.flush();
+            }
+            if (envelope) {
+                int flags = (session.isActualValid() ? SessionEnvelope.FLAG_VALID : 0) | (session.isNewInternal() ? SessionEnvelope.FLAG_NEW : 0);
+                SessionEnvelope.writeHeader(buffer.buffer(), buffer.size(), lazyAttributes ? SessionEnvelope.CODEC_LAZY : SessionEnvelope.CODEC_STANDARD,
+                        flags, session.getCreationTimeInternal(), session.getLastAccessedTimeInternal(), session.getMaxInactiveInterval());
+            }
+        } catch (IOException | RuntimeException e) {
+            releaseSerializationBuffer(buffer);
+            throw e;
+        }
+
+        long nanos = System.nanoTime() - start;
+        metrics.serializationTime.record(nanos);
+        RequestTimings.add(Phase.SERIALIZATION, nanos);
+        if (profiler.isEnabled()) {
+            profiler.recordSerialization(session, buffer.size(), nanos);
+        }
+        return buffer;
+    }
+
+    /**
+     * Envelope header contains access time, so it changes on every save. Only bodies are compared to detect modification
+     * @return true, if serialized session has the same body as previously stored data
+     */
+    private static boolean sameBody(ReusableByteArrayOutputStream buffer, byte[] binary) {
+        if (binary != null && SessionEnvelope.isEnvelope(binary) && buffer.size() >= SessionEnvelope.HEADER_SIZE
+                && SessionEnvelope.isEnvelope(buffer.buffer())) {
+            if (binary.length == SessionEnvelope.HEADER_SIZE) {
+                // compacted baseline, bodies are compared by length and checksum
+                return SessionEnvelope.sameBody(buffer.buffer(), binary);
+            }
+            return buffer.contentEquals(binary, SessionEnvelope.HEADER_SIZE);
+        }
+        return buffer.contentEquals(binary);
+    }
+
+    /**
+     * @return serialized size of the session the data was stored from, also when only envelope header of the data is kept
+     */
+    private static int storedLength(byte[] binary) {
+        if (binary == null) {
+            return 0;
+        }
+        return SessionEnvelope.isEnvelope(binary) ? SessionEnvelope.storedLength(binary) : binary.length;
+    }
+
+    /**
+     * Envelope header contains length and checksum of the body and access time, so equal headers mean the same version of session data
+     */
+    private static boolean sameHeader(byte[] header, byte[] binary) {
+        if (binary.length < SessionEnvelope.HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < SessionEnvelope.HEADER_SIZE; i++) {
+            if (header[i] != binary[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isLarge(int size) {
+        return largeSessionThreshold > 0 && size >= largeSessionThreshold;
+    }
+
+    /**
+     * Runs (de)serialization of a large session by the pool and waits for the result. Time spent in queue is recorded.
+     * If the pool is saturated, task is run by the calling thread.
+     */
+    private <V> V offload(final Callable<V> task) throws IOException, ClassNotFoundException {
+        ThreadPoolExecutor executor = largeSessionExecutor;
+        if (executor == null) {
+            return runInline(task); // manager is stopped
+        }
+
+        final long submitted = System.nanoTime();
+        Future<V> future;
+        try {
+            future = executor.submit(new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    metrics.serializationQueueTime.record(System.nanoTime() - submitted);
+                    return task.call();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // queue is full or manager is stopped
+            metrics.serializationPoolRejections.increment();
+            return runInline(task);
+        }
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    // task uses buffer of this thread, so it must not be abandoned
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            RequestTimings.add(Phase.SERIALIZATION, System.nanoTime() - submitted);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static <V> V runInline(Callable<V> task) throws IOException, ClassNotFoundException {
+        try {
+            return task.call();
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    protected final void releaseSerializationBuffer(ReusableByteArrayOutputStream buffer) {
+        buffer.reset();
+        if (buffer.capacity() > serializationBufferLimit) {
+            serializationBuffers.remove();
+        }
+    }
+
+    private byte[] loadData(String id) throws Exception {
+        long start = System.nanoTime();
+        try {
+            byte[] data = load(id);
+            if (data != null) {
+                metrics.bytesRead.add(data.length);
+            }
+            return data;
+        } catch (Exception e) {
+            metrics.recordFailure();
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            metrics.loadTime.record(nanos);
+            RequestTimings.add(Phase.STORE_IO, nanos);
+        }
+    }
+
+    private Map<String, byte[]> loadAllData(Collection<String> ids) throws Exception {
+        long start = System.nanoTime();
+        try {
+            Map<String, byte[]> data = loadAll(ids);
+            for (byte[] d : data.values()) {
+                metrics.bytesRead.add(d.length);
+            }
+            return data;
+        } catch (Exception e) {
+            metrics.recordFailure();
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            metrics.loadTime.record(nanos);
+            RequestTimings.add(Phase.STORE_IO, nanos);
+        }
+    }
+
+    private byte[] loadHeaderData(String id) throws Exception {
+        long start = System.nanoTime();
+        try {
+            byte[] data = loadHeader(id);
+            if (data != null) {
+                metrics.bytesRead.add(data.length);
+            }
+            return data;
+        } catch (Exception e) {
+            metrics.recordFailure();
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            metrics.loadTime.record(nanos);
+            RequestTimings.add(Phase.STORE_IO, nanos);
+        }
+    }
+
+    /**
+     * Loads attributes of the session created from envelope header only
+     * @return data attributes are loaded from, or null if session does not exist anymore (session is invalidated then)
+     */
+    final byte[] loadBody(NonStickySession session) {
+        String id = session.getIdInternal();
+        try {
+            byte[] data = loadData(id);
+            if (data == null) {
+                log.warn("Session id=" + id + " data disappeared from store before its attributes were loaded");
+                session.setValid(false);
+                return null;
+            }
+            NonStickySession loaded = fromBinary(data);
+            session.attributeValues().putAll(loaded.attributeValues());
+            return data;
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to load attributes of session id=" + id, e);
+        }
+    }
+
+    /**
+     * Store expiration is fresh, if it was set within expireRefreshRatio of max inactive interval: by this node (save or refresh)
+     * or by any node (save, according to access time in envelope header of loaded data)
+     */
+    private boolean isExpirationFresh(String id, int maxInactiveInterval, byte[] data) {
+        if (expireRefreshRatio <= 0 || maxInactiveInterval <= 0) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Long freshUntil = expireRefreshes.get(id);
+        if (freshUntil != null && freshUntil > now) {
+            return true;
+        }
+        if (data != null && SessionEnvelope.isEnvelope(data)) {
+            try {
+                // session is saved after it was accessed, so expiration is at least access time + interval
+                long savedAfter = SessionEnvelope.readHeader(data).getLastAccessedTime();
+                return now - savedAfter < freshWindow(maxInactiveInterval);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void expirationRefreshed(String id, int expireSeconds) {
+        if (expireRefreshRatio <= 0 || expireSeconds <= 0) {
+            return;
+        }
+        if (expireRefreshes.size() < MAX_EXPIRE_REFRESHES || expireRefreshes.containsKey(id)) {
+            expireRefreshes.put(id, System.currentTimeMillis() + freshWindow(expireSeconds));
+        }
+    }
+
+    private long freshWindow(int expireSeconds) {
+        return (long) (expireSeconds * 1000L * expireRefreshRatio);
+    }
+
+    private void saveData(String id, byte[] previous, byte[] data, int expireSeconds) throws Exception {
+        long start = System.nanoTime();
+        try {
+            int written = saveChanges(id, previous, data, expireSeconds);
+            expirationRefreshed(id, expireSeconds);
+            metrics.bytesWritten.add(written);
+        } catch (Exception e) {
+            metrics.recordFailure();
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            metrics.saveTime.record(nanos);
+            RequestTimings.add(Phase.STORE_IO, nanos);
+        }
+    }
+
+    private void expireData(String id, int expireSeconds) throws Exception {
+        long start = System.nanoTime();
+        try {
+            expire(id, expireSeconds);
+            expirationRefreshed(id, expireSeconds);
+        } catch (Exception e) {
+            metrics.recordFailure();
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            metrics.expireTime.record(nanos);
+            RequestTimings.add(Phase.STORE_IO, nanos);
+        }
+    }
+
+    private void deleteData(String id) throws Exception {
+        long start = System.nanoTime();
+        try {
+            expireRefreshes.remove(id);
+            delete(id);
+        } catch (Exception e) {
+            metrics.recordFailure();
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            metrics.deleteTime.record(nanos);
+            RequestTimings.add(Phase.STORE_IO, nanos);
         }
     }
 
     protected abstract byte[] load(String id) throws Exception;
 
+    /**
+     * Loads at least first {@link SessionEnvelope#HEADER_SIZE} bytes of session data. Default implementation loads all data,
+     * stores should override it, if they are able to load part of the data.
+     * @param id
+     * @return first bytes of session data or whole data, null if session does not exist
+     * @throws Exception
+     */
+    protected byte[] loadHeader(String id) throws Exception {
+        return load(id);
+    }
+
+    /**
+     * Loads several sessions at once. Default implementation loads them one by one, stores should override it with bulk operation
+     * @param ids
+     * @return data of found sessions by id
+     * @throws Exception
+     */
+    protected Map<String, byte[]> loadAll(Collection<String> ids) throws Exception {
+        Map<String, byte[]> result = new HashMap<>();
+        for (String id : ids) {
+            byte[] data = load(id);
+            if (data != null) {
+                result.put(id, data);
+            }
+        }
+        return result;
+    }
+
     protected abstract void save(String id, byte[] data, int expireSeconds) throws Exception;
 
+    /**
+     * Saves new version of session data. Default implementation saves data entirely, stores should override it, if they are able
+     * to save only the difference from previous version.
+     * @param id
+     * @param previous data the session was loaded from or last saved as by this node, null for new sessions. Could contain only
+     * envelope header of the data (see cacheMaxBytes)
+     * @param data new version of session data
+     * @param expireSeconds
+     * @return number of bytes written
+     * @throws Exception
+     */
+    protected int saveChanges(String id, byte[] previous, byte[] data, int expireSeconds) throws Exception {
+        save(id, data, expireSeconds);
+        return data.length;
+    }
+
     protected abstract void expire(String id, int expireSeconds) throws Exception;
 
     protected abstract void delete(String id) throws Exception;
@@ -0,0 +1,209 @@
+package ee.neotech.tomcat.session;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+/**
+ * JVM wide registry of Redis connection pools, so managers of different contexts with the same connection configuration share one pool
+ * (and one set of Sentinel listener threads).
+ * <p>
+ * Pool is created by the first manager acquiring it, with pool settings of that manager, and destroyed when the last manager releases
+ * it. Managers not sharing pools get private entries with the same life cycle.
+ * </p>
+ */
+final class RedisPoolRegistry {
+
+    private static final Log log = LogFactory.getLog(RedisPoolRegistry.class);
+
+    private static final Map<String, Entry> POOLS = new HashMap<>();
+    private static final ReentrantLock LOCK = new ReentrantLock();
+
+    /**
+     * Reference counted pool. Pool is created by {@link #init}, which could be run by any number of managers (only the first run creates
+     * the pool) inline or on background thread
+     */
+    static final class Entry {
+        /** registry key, null for private pools */
+        final String key;
+        final FutureTask<Pool<Jedis>> init;
+
+        private int references = 1;
+        private boolean closed;
+        private Pool<Jedis> pool;
+
+        private volatile AdaptivePoolSizer sizer;
+        private ScheduledExecutorService sizerExecutor;
+
+        Entry(String key, final Callable<Pool<Jedis>> factory) {
+            this.key = key;
+            this.init = new FutureTask<>(new Callable<Pool<Jedis>>() {
+                @Override
+                public Pool<Jedis> call() throws Exception {
+                    return create(factory);
+                }
+            });
+        }
+
+        private Pool<Jedis> create(Callable<Pool<Jedis>> factory) throws Exception {
+            Pool<Jedis> created;
+            try {
+                created = factory.call();
+            } catch (Exception e) {
+                // next acquire creates new entry instead of failed one
+                LOCK.lock();
+                try {
+                    if (key != null && POOLS.get(key) == this) {
+                        POOLS.remove(key);
+                    }
+                } finally {
+                    LOCK.unlock();
+                }
+                throw e;
+            }
+
+            LOCK.lock();
+            try {
+                if (closed) {
+                    created.destroy();
+                    throw new IllegalStateException("Redis connection pool is released by all session managers");
+                }
+                pool = created;
+                return created;
+            } finally {
+                LOCK.unlock();
+            }
+        }
+
+        /**
+         * @return sizer of adaptive pool or null
+         */
+        AdaptivePoolSizer getSizer() {
+            return sizer;
+        }
+
+        /**
+         * Starts adaptive sizing of the pool, if it is not started by another manager already
+         */
+        void startSizer(final AdaptivePoolSizer newSizer, final GenericRedisSessionManager.ResizablePool resizable, String name) {
+            LOCK.lock();
+            try {
+                if (sizer != null || closed) {
+                    return;
+                }
+                final String threadName = "RedisPoolSizer[" + name + "]";
+                sizerExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                sizerExecutor.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            newSizer.adjust(resizable.getInternalPool());
+                        } catch (Throwable e) {
+                            log.error("Redis connection pool resizing failed", e);
+                        }
+                    }
+                }, 1, 1, TimeUnit.SECONDS);
+                sizer = newSizer;
+            } finally {
+                LOCK.unlock();
+            }
+        }
+
+        private void destroy() {
+            closed = true;
+            if (sizerExecutor != null) {
+                sizerExecutor.shutdown();
+                sizerExecutor = null;
+            }
+            sizer = null;
+            if (pool != null) {
+                try {
+                    pool.destroy();
+                } catch (Exception e) {
+                    log.warn("Failed to close Redis connection pool: " + e.getMessage());
+                }
+                pool = null;
+            }
+        }
+    }
+
+    private RedisPoolRegistry() {
+    }
+
+    /**
+     * @param key connection configuration, managers with equal keys share the pool
+     * @param factory creates the pool, if it does not exist yet
+     * @return shared pool entry, must be released by {@link #release(Entry)}
+     */
+    static Entry acquire(String key, Callable<Pool<Jedis>> factory) {
+        LOCK.lock();
+        try {
+            Entry entry = POOLS.get(key);
+            if (entry == null) {
+                entry = new Entry(key, factory);
+                POOLS.put(key, entry);
+            } else {
+                entry.references++;
+            }
+            return entry;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * @return entry of pool used by a single manager
+     */
+    static Entry createPrivate(Callable<Pool<Jedis>> factory) {
+        return new Entry(null, factory);
+    }
+
+    /**
+     * Destroys the pool when the last manager using it releases it
+     */
+    static void release(Entry entry) {
+        LOCK.lock();
+        try {
+            if (--entry.references > 0) {
+                return;
+            }
+            if (entry.key != null && POOLS.get(entry.key) == entry) {
+                POOLS.remove(entry.key);
+            }
+            entry.destroy();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * @return number of managers using the pool
+     */
+    static int getReferences(Entry entry) {
+        LOCK.lock();
+        try {
+            return entry.references;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+}
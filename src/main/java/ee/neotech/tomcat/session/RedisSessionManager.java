@@ -1,12 +1,32 @@
 package ee.neotech.tomcat.session;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.LifecycleException;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.MultiKeyPipelineBase;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.params.sortedset.ZAddParams;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
 
 public class RedisSessionManager extends GenericRedisSessionManager {
 
@@ -18,6 +38,35 @@ public class RedisSessionManager extends GenericRedisSessionManager {
     private int connectionAttemptDelay = 500;
     private int operationAttempts = 3;
 
+    private boolean sessionIndex = false;
+    private static final String DEFAULT_SESSION_INDEX_KEY = "tomcat:session-index";
+
+    /** Configured index key, null - derived from keyPrefix */
+    private String configuredIndexKey;
+    private byte[] sessionIndexKey;
+    private int sessionIndexListLimit = 1000;
+
+    private byte[] keyPrefix = new byte[0];
+
+    private static final String CHANGE_LOG_SUFFIX = ":changes";
+
+    private boolean changeLog = false;
+    private int changeLogMaxEntries = 100;
+    private int changeLogMaxBytes = 262144;
+
+    /** Time in seconds the elected node keeps expiration processing without renewal */
+    private static final int EXPIRATION_LEADER_TIMEOUT = 180;
+    /** Limits time spent by a single background run, remaining sessions are processed by the next run */
+    private static final int MAX_EXPIRATION_BATCHES_PER_RUN = 10;
+
+    private boolean expirationListeners = false;
+    private int expirationGrace = 300;
+    private int expirationBatchSize = 100;
+    private int expirationThreads = 2;
+
+    private final byte[] nodeId = UUID.randomUUID().toString().getBytes();
+    private ThreadPoolExecutor expirationExecutor;
+
     interface JedisOp<T> {
         T execute(Jedis jedis);
     }
@@ -27,42 +76,49 @@ public class RedisSessionManager extends GenericRedisSessionManager {
         Throwable unrecoverable = null;
 
         for (int operationAttempt = 0; operationAttempt < operationAttempts; operationAttempt++) {
+            boolean lastOperationAttempt = operationAttempt + 1 >= operationAttempts;
 
             Jedis jedis = null;
-            for (int connectionAttempt = 0; connectionAttempt < connectionAttempts; connectionAttempt++) {
+            for (int connectionAttempt = 0; jedis == null; connectionAttempt++) {
                 try {
-                    jedis = jedisPool.getResource();
-                    break;
+                    jedis = getConnection();
                 } catch (JedisConnectionException e) {
+                    if (connectionAttempt + 1 >= connectionAttempts) {
+                        throw new IllegalStateException("Failed to get Redis connection after " + connectionAttempts + " attempts", e);
+                    }
+                    getMetrics().recordRetry();
                     log.warn("Could not get Redis connection from the pool (attempt: " + (connectionAttempt + 1) + ", retry in "
                             + connectionAttemptDelay + "ms): " + getMessageWithCauses(e));
+                    try {
+                        Thread.sleep(connectionAttemptDelay);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Thread interrupted", ie);
+                    }
                 }
-
-                try {
-                    Thread.sleep(connectionAttemptDelay);
-                } catch (InterruptedException e) {
-                    throw new IllegalStateException("Thread interrupted", e);
-                }
-            }
-
-            if (jedis == null) {
-                throw new IllegalStateException("Failed to get Redis connection after " + connectionAttempts + " attempts");
-            }
-
-            if (database != 0) {
-                jedis.select(database);
             }
 
             try {
+                if (database != 0) {
+                    jedis.select(database);
+                }
                 return operation.execute(jedis);
             } catch (JedisConnectionException e) {
                 log.warn("Failed to perform Redis operation - attempt #" + (operationAttempt + 1) + ": " + getMessageWithCauses(e));
                 unrecoverable = e;
-            } catch (Throwable e) {
-                log.error("Failed to perform Redis operation - attempt #" + (operationAttempt + 1), e);
+            } catch (JedisDataException e) {
+                // error reply, e.g. READONLY or LOADING while replica is promoted
+                log.warn("Redis operation failed - attempt #" + (operationAttempt + 1) + ": " + getMessageWithCauses(e));
                 unrecoverable = e;
+            } catch (RuntimeException e) {
+                // not caused by Redis, repeating would fail the same way
+                throw new IllegalStateException("Failed to execute Redis operation", e);
             } finally {
-                jedis.close();
+                releaseConnection(jedis);
+            }
+
+            if (!lastOperationAttempt) {
+                getMetrics().recordRetry();
             }
         }
 
@@ -81,12 +137,413 @@ public class RedisSessionManager extends GenericRedisSessionManager {
         this.operationAttempts = operationAttempts;
     }
 
+    /**
+     * @param sessionIndex if true, ids of saved sessions are kept in Redis sorted set scored by expiration time.
+     * Allows to count and list active sessions without scanning the keyspace
+     */
+    public final void setSessionIndex(boolean sessionIndex) {
+        this.sessionIndex = sessionIndex;
+    }
+
+    /**
+     * @param sessionIndexKey Redis key of the session index sorted set, keys of expiration processing are derived from it.
+     * Managers sharing the same database and index key report the same sessions. Defaults to keyPrefix followed by tomcat:session-index,
+     * key set explicitly must start with keyPrefix
+     */
+    public final void setSessionIndexKey(String sessionIndexKey) {
+        this.configuredIndexKey = sessionIndexKey;
+    }
+
+    /**
+     * @param keyPrefix prefix of Redis keys session data is stored under, allows contexts sharing a database (and connection pool)
+     * to use the same session ids without clashes. Session index is kept under the prefix as well
+     */
+    public final void setKeyPrefix(String keyPrefix) {
+        this.keyPrefix = keyPrefix.getBytes();
+    }
+
+    /**
+     * @param changeLog if true, saves of loaded sessions append changed attributes to a Redis list next to the session snapshot instead
+     * of rewriting the whole session, loads apply the changes to the snapshot. Requires lazyAttributes
+     */
+    public final void setChangeLog(boolean changeLog) {
+        this.changeLog = changeLog;
+    }
+
+    /**
+     * @param changeLogMaxEntries number of changes, reaching which snapshot is rewritten with changes applied on next load or by the save
+     * appending the last change, so change log of session which is never loaded in full stays bounded
+     */
+    public final void setChangeLogMaxEntries(int changeLogMaxEntries) {
+        this.changeLogMaxEntries = changeLogMaxEntries;
+    }
+
+    /**
+     * @param changeLogMaxBytes total size of changes in bytes, reaching which snapshot is rewritten with changes applied on next load
+     */
+    public final void setChangeLogMaxBytes(int changeLogMaxBytes) {
+        this.changeLogMaxBytes = changeLogMaxBytes;
+    }
+
+    /**
+     * @param sessionIndexListLimit maximum number of session ids returned by {@link #listSessionIds()}
+     */
+    public final void setSessionIndexListLimit(int sessionIndexListLimit) {
+        this.sessionIndexListLimit = sessionIndexListLimit;
+    }
+
+    /**
+     * @param expirationListeners if true, session listeners are notified about sessions expired in Redis. Requires session index.
+     * Session data is kept for expirationGrace seconds after expiration, so it could be passed to listeners. Expiration time is
+     * tracked by the index score then, sessions past it are not loaded
+     */
+    public final void setExpirationListeners(boolean expirationListeners) {
+        this.expirationListeners = expirationListeners;
+    }
+
+    /**
+     * @param expirationGrace time in seconds session data outlives the session, if expiration listeners are enabled
+     */
+    public final void setExpirationGrace(int expirationGrace) {
+        this.expirationGrace = expirationGrace;
+    }
+
+    /**
+     * @param expirationBatchSize number of expired sessions fetched from Redis at once
+     */
+    public final void setExpirationBatchSize(int expirationBatchSize) {
+        this.expirationBatchSize = expirationBatchSize;
+    }
+
+    /**
+     * @param expirationThreads number of threads notifying listeners about expired sessions
+     */
+    public final void setExpirationThreads(int expirationThreads) {
+        this.expirationThreads = expirationThreads;
+    }
+
+    @Override
+    protected synchronized void startInternal() throws LifecycleException {
+        String prefix = new String(keyPrefix);
+        if (configuredIndexKey == null) {
+            sessionIndexKey = (prefix + DEFAULT_SESSION_INDEX_KEY).getBytes();
+        } else if (configuredIndexKey.startsWith(prefix)) {
+            sessionIndexKey = configuredIndexKey.getBytes();
+        } else {
+            // ids in the index are resolved under own prefix, so contexts with other prefixes must not share it
+            throw new LifecycleException("Error configuring session index: expected `sessionIndexKey` to start with `keyPrefix` " + prefix);
+        }
+
+        super.startInternal();
+
+        if (changeLog) {
+            if (!lazyAttributes || dataFormatVersion < SessionEnvelope.VERSION) {
+                throw new LifecycleException("Error configuring session change log: expected `lazyAttributes` to be enabled with `dataFormatVersion` 1");
+            }
+            if (expirationListeners) {
+                // expired sessions are passed to listeners as stored, without changes applied
+                throw new LifecycleException("Error configuring session change log: `expirationListeners` are not supported");
+            }
+        }
+
+        if (expirationListeners) {
+            if (!sessionIndex) {
+                throw new LifecycleException("Error configuring session expiration listeners: expected `sessionIndex` to be enabled");
+            }
+            final String name = "SessionExpiration[" + getContext().getName() + "]";
+            // queue is bounded, background thread dispatching expirations runs notification itself when queue is full
+            expirationExecutor = new ThreadPoolExecutor(expirationThreads, expirationThreads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(expirationBatchSize), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, name);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+    }
+
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+        if (expirationExecutor != null) {
+            expirationExecutor.shutdown();
+            try {
+                expirationExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            expirationExecutor = null;
+        }
+
+        super.stopInternal();
+    }
+
+    /**
+     * Removes expired sessions from the index. Session data is expired by Redis itself
+     */
+    @Override
+    public void processExpires() {
+        if (!sessionIndex) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        try {
+            if (expirationListeners && acquireExpirationLeadership()) {
+                dispatchExpirations(now);
+            }
+
+            // data of sessions expired more than grace period ago is expired by Redis, so they could not be processed anymore
+            final long trimBefore = expirationListeners ? now - expirationGrace * 1000L : now;
+            long removed = withJedis(new JedisOp<Long>() {
+                @Override
+                public Long execute(Jedis jedis) {
+                    return jedis.zremrangeByScore(sessionIndexKey, Double.NEGATIVE_INFINITY, trimBefore);
+                }
+            });
+            if (log.isDebugEnabled()) {
+                log.debug("Removed " + removed + " expired sessions from the index");
+            }
+        } catch (Exception e) {
+            log.error("Failed to remove expired sessions from the index", e);
+        }
+    }
+
+    /**
+     * Only one node processes expirations. Leadership is taken by the first node and renewed by each run. Leader key is watched
+     * while renewed, so expired leadership taken over by another node is not prolonged
+     * @return true if this node is elected to process expirations
+     */
+    private boolean acquireExpirationLeadership() {
+        final byte[] leaderKey = indexKey(":expiration-leader");
+        return withJedis(new JedisOp<Boolean>() {
+            @Override
+            public Boolean execute(Jedis jedis) {
+                if ("OK".equals(jedis.set(leaderKey, nodeId, "NX".getBytes(), "EX".getBytes(), EXPIRATION_LEADER_TIMEOUT))) {
+                    return true;
+                }
+                jedis.watch(leaderKey);
+                if (!Arrays.equals(nodeId, jedis.get(leaderKey))) {
+                    jedis.unwatch();
+                    return false;
+                }
+                Transaction transaction = jedis.multi();
+                transaction.expire(leaderKey, EXPIRATION_LEADER_TIMEOUT);
+                return sync(transaction) != null;
+            }
+        });
+    }
+
+    /**
+     * Fetches data of sessions expired by the index in batches, removes them and passes them to expiration executor. Sessions refreshed
+     * concurrently are skipped, data keys are watched until removal
+     */
+    private void dispatchExpirations(final long now) {
+        for (int batch = 0; batch < MAX_EXPIRATION_BATCHES_PER_RUN; batch++) {
+            final List<byte[]> ids = new ArrayList<>(withJedis(new JedisOp<Set<byte[]>>() {
+                @Override
+                public Set<byte[]> execute(Jedis jedis) {
+                    return jedis.zrangeByScore(sessionIndexKey, Double.NEGATIVE_INFINITY, now, 0, expirationBatchSize);
+                }
+            }));
+            if (ids.isEmpty()) {
+                return;
+            }
+
+            final List<byte[]> expired = new ArrayList<>(ids.size());
+            final List<byte[]> expiredData = new ArrayList<>(ids.size());
+            boolean removed = withJedis(new JedisOp<Boolean>() {
+                @Override
+                public Boolean execute(Jedis jedis) {
+                    expired.clear();
+                    expiredData.clear();
+                    byte[][] keys = new byte[ids.size()][];
+                    for (int i = 0; i < keys.length; i++) {
+                        keys[i] = dataKey(ids.get(i));
+                    }
+                    jedis.watch(keys);
+                    Pipeline pipeline = jedis.pipelined();
+                    List<Response<byte[]>> dataResponses = new ArrayList<>(ids.size());
+                    List<Response<Double>> scoreResponses = new ArrayList<>(ids.size());
+                    for (int i = 0; i < keys.length; i++) {
+                        dataResponses.add(pipeline.get(keys[i]));
+                        scoreResponses.add(pipeline.zscore(sessionIndexKey, ids.get(i)));
+                    }
+                    pipeline.sync();
+
+                    Transaction transaction = jedis.multi();
+                    for (int i = 0; i < keys.length; i++) {
+                        Double score = scoreResponses.get(i).get();
+                        if (score == null || score > now) {
+                            continue; // deleted or prolonged after index was read
+                        }
+                        transaction.zrem(sessionIndexKey, ids.get(i));
+                        transaction.del(keys[i]);
+                        byte[] data = dataResponses.get(i).get();
+                        if (data != null) {
+                            expired.add(ids.get(i));
+                            expiredData.add(data);
+                        }
+                    }
+                    return sync(transaction) != null;
+                }
+            });
+            if (!removed) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Expired sessions were changed concurrently, expirations are dispatched by the next run");
+                }
+                return;
+            }
+
+            for (int i = 0; i < expired.size(); i++) {
+                expirationExecutor.execute(new ExpireShadow(new String(expired.get(i)), expiredData.get(i)));
+            }
+
+            if (ids.size() < expirationBatchSize) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Notifies listeners about session expired in Redis by expiring a copy of its last data
+     */
+    private class ExpireShadow implements Runnable {
+        private final String id;
+        private final byte[] data;
+
+        ExpireShadow(String id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+
+        @Override
+        public void run() {
+            try {
+                NonStickySession session = fromBinary(data);
+                session.markShadow();
+                if (log.isDebugEnabled()) {
+                    log.debug("Notifying listeners about expired session: " + session);
+                }
+                session.expire(true);
+            } catch (Throwable e) {
+                log.error("Failed to notify listeners about expired session (id=" + id + ")", e);
+            }
+        }
+    }
+
+    private byte[] indexKey(String suffix) {
+        byte[] s = suffix.getBytes();
+        byte[] key = Arrays.copyOf(sessionIndexKey, sessionIndexKey.length + s.length);
+        System.arraycopy(s, 0, key, sessionIndexKey.length, s.length);
+        return key;
+    }
+
+    private byte[] dataKey(byte[] id) {
+        if (keyPrefix.length == 0) {
+            return id;
+        }
+        byte[] key = Arrays.copyOf(keyPrefix, keyPrefix.length + id.length);
+        System.arraycopy(id, 0, key, keyPrefix.length, id.length);
+        return key;
+    }
+
+    private byte[] dataKey(String id) {
+        return dataKey(id.getBytes());
+    }
+
+    private byte[] changeLogKey(String id) {
+        return dataKey(id + CHANGE_LOG_SUFFIX);
+    }
+
+    /**
+     * @return time to live of session data, which outlives the session by grace period if expired sessions are passed to listeners
+     */
+    private int dataExpireSeconds(int expireSeconds) {
+        return expirationListeners ? expireSeconds + expirationGrace : expireSeconds;
+    }
+
+    /**
+     * @param score index score of the session, null if it is not indexed (e.g. saved before the index was enabled)
+     * @return true if data is kept only to notify listeners about expired session
+     */
+    private boolean isExpired(Double score, long now) {
+        return expirationListeners && score != null && score <= now;
+    }
+
+    /**
+     * @return number of not expired sessions in the index, 0 if index is disabled
+     */
+    @Override
+    public int getActiveSessions() {
+        if (!sessionIndex) {
+            return 0;
+        }
+
+        final long now = System.currentTimeMillis();
+        long count = withJedis(new JedisOp<Long>() {
+            @Override
+            public Long execute(Jedis jedis) {
+                return jedis.zcount(sessionIndexKey, now, Double.POSITIVE_INFINITY);
+            }
+        });
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return space separated ids of at most sessionIndexListLimit not expired sessions, ordered by expiration time
+     */
+    @Override
+    public String listSessionIds() {
+        StringBuilder sb = new StringBuilder();
+        for (String id : listSessionIds(0, sessionIndexListLimit)) {
+            sb.append(sb.length() > 0 ? " " : "").append(id);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Pages through not expired sessions in the index ordered by expiration time.
+     * @param offset number of sessions to skip
+     * @param count maximum number of session ids to return
+     * @return session ids, empty if index is disabled
+     */
+    public List<String> listSessionIds(final int offset, final int count) {
+        List<String> result = new ArrayList<>();
+        if (!sessionIndex) {
+            return result;
+        }
+
+        final long now = System.currentTimeMillis();
+        Set<byte[]> ids = withJedis(new JedisOp<Set<byte[]>>() {
+            @Override
+            public Set<byte[]> execute(Jedis jedis) {
+                return jedis.zrangeByScore(sessionIndexKey, now, Double.POSITIVE_INFINITY, offset, count);
+            }
+        });
+        for (byte[] id : ids) {
+            result.add(new String(id));
+        }
+        return result;
+    }
+
     @Override
     protected byte[] load(final String id) throws Exception {
+        if (changeLog) {
+            return loadWithChanges(id);
+        }
         byte[] result = withJedis(new JedisOp<byte[]>() {
             @Override
             public byte[] execute(Jedis jedis) {
-                return jedis.get(id.getBytes());
+                if (!expirationListeners) {
+                    return jedis.get(dataKey(id));
+                }
+                Pipeline pipeline = jedis.pipelined();
+                Response<byte[]> data = pipeline.get(dataKey(id));
+                Response<Double> score = pipeline.zscore(sessionIndexKey, id.getBytes());
+                pipeline.sync();
+                return isExpired(score.get(), System.currentTimeMillis()) ? null : data.get();
             }
         });
 
@@ -101,12 +558,220 @@ public class RedisSessionManager extends GenericRedisSessionManager {
         return result;
     }
 
+    /**
+     * Reads snapshot and change log of the session at once and applies the changes
+     */
+    private byte[] loadWithChanges(final String id) throws Exception {
+        final List<byte[]> changes = new ArrayList<>();
+        byte[] snapshot = withJedis(new JedisOp<byte[]>() {
+            @Override
+            public byte[] execute(Jedis jedis) {
+                changes.clear();
+                Transaction transaction = jedis.multi();
+                Response<byte[]> snapshot = transaction.get(dataKey(id));
+                Response<List<byte[]>> appended = transaction.lrange(changeLogKey(id), 0, -1);
+                transaction.exec();
+                changes.addAll(appended.get());
+                return snapshot.get();
+            }
+        });
+
+        if (snapshot == null) {
+            return null;
+        }
+        if (Arrays.equals(NEW_SESSION, snapshot)) {
+            log.warn("Stub session token <new> is not supposed to be loaded (id=" + id + ")");
+            return null;
+        }
+        byte[] result = restore(id, snapshot, changes);
+        if (log.isDebugEnabled()) {
+            log.debug("Session sid=" + id + " data size=" + result.length + " loaded from redis with " + changes.size() + " changes");
+        }
+        return result;
+    }
+
+    /**
+     * Applies changes to the snapshot. Snapshot is rewritten, if changes exceed changeLogMaxEntries or changeLogMaxBytes
+     * @return session data
+     */
+    private byte[] restore(String id, byte[] snapshot, List<byte[]> changes) throws IOException {
+        byte[] data = SessionChangeLog.replay(snapshot, changes);
+        long changesSize = 0;
+        for (byte[] change : changes) {
+            changesSize += change.length;
+        }
+        if (!changes.isEmpty() && (changes.size() >= changeLogMaxEntries || changesSize >= changeLogMaxBytes)) {
+            try {
+                compact(id);
+            } catch (Exception e) {
+                log.warn("Failed to compact change log of session sid=" + id + ", will retry on next load: " + getMessageWithCauses(e));
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Rewrites snapshot with changes applied and removes the change log. Snapshot and change log are read again while watched,
+     * so the rewrite is discarded, if the session is saved concurrently
+     */
+    private void compact(final String id) {
+        final byte[] key = dataKey(id);
+        final byte[] changesKey = changeLogKey(id);
+        boolean compacted = withJedis(new JedisOp<Boolean>() {
+            @Override
+            public Boolean execute(Jedis jedis) {
+                jedis.watch(key, changesKey);
+                Pipeline pipeline = jedis.pipelined();
+                Response<byte[]> snapshot = pipeline.get(key);
+                Response<List<byte[]>> changes = pipeline.lrange(changesKey, 0, -1);
+                Response<Long> ttl = pipeline.pttl(key);
+                pipeline.sync();
+
+                byte[] data;
+                try {
+                    data = snapshot.get() == null || changes.get().isEmpty() ? null : SessionChangeLog.replay(snapshot.get(), changes.get());
+                } catch (IOException e) {
+                    log.warn("Failed to apply change log of session sid=" + id + ": " + e);
+                    data = null;
+                }
+                if (data == null) {
+                    jedis.unwatch();
+                    return false;
+                }
+
+                Transaction transaction = jedis.multi();
+                if (ttl.get() > 0) {
+                    transaction.psetex(key, ttl.get(), data);
+                } else {
+                    transaction.set(key, data);
+                }
+                transaction.del(changesKey);
+                return sync(transaction) != null;
+            }
+        });
+        if (compacted) {
+            getMetrics().changeLogCompactions.increment();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Change log of session sid=" + id + (compacted ? " compacted" : " not compacted, session is changed concurrently"));
+        }
+    }
+
+    @Override
+    protected byte[] loadHeader(final String id) throws Exception {
+        byte[] result = withJedis(new JedisOp<byte[]>() {
+            @Override
+            public byte[] execute(Jedis jedis) {
+                // binary GETRANGE reply could not be pipelined by Jedis 2.9, its response is typed as Long
+                if (expirationListeners && isExpired(jedis.zscore(sessionIndexKey, id.getBytes()), System.currentTimeMillis())) {
+                    return null;
+                }
+                return jedis.getrange(dataKey(id), 0, SessionEnvelope.HEADER_SIZE - 1);
+            }
+        });
+        // missing key is returned as empty range
+        return result == null || result.length == 0 ? null : result;
+    }
+
+    @Override
+    protected Map<String, byte[]> loadAll(Collection<String> ids) throws Exception {
+        if (changeLog) {
+            return loadAllWithChanges(ids);
+        }
+        final String[] plainIds = ids.toArray(new String[ids.size()]);
+        final byte[][] keys = new byte[plainIds.length][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = dataKey(plainIds[i]);
+        }
+
+        List<byte[]> values = withJedis(new JedisOp<List<byte[]>>() {
+            @Override
+            public List<byte[]> execute(Jedis jedis) {
+                if (!expirationListeners) {
+                    return jedis.mget(keys);
+                }
+                Pipeline pipeline = jedis.pipelined();
+                Response<List<byte[]>> data = pipeline.mget(keys);
+                List<Response<Double>> scores = new ArrayList<>(plainIds.length);
+                for (String id : plainIds) {
+                    scores.add(pipeline.zscore(sessionIndexKey, id.getBytes()));
+                }
+                pipeline.sync();
+                long now = System.currentTimeMillis();
+                List<byte[]> values = new ArrayList<>(data.get());
+                for (int i = 0; i < plainIds.length; i++) {
+                    if (isExpired(scores.get(i).get(), now)) {
+                        values.set(i, null);
+                    }
+                }
+                return values;
+            }
+        });
+
+        Map<String, byte[]> result = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            byte[] value = values.get(i);
+            if (value != null && !Arrays.equals(NEW_SESSION, value)) {
+                result.put(plainIds[i], value);
+            }
+        }
+        return result;
+    }
+
+    private Map<String, byte[]> loadAllWithChanges(Collection<String> ids) throws Exception {
+        final String[] plainIds = ids.toArray(new String[ids.size()]);
+        final List<byte[]> snapshots = new ArrayList<>(plainIds.length);
+        final List<List<byte[]>> changes = new ArrayList<>(plainIds.length);
+        withJedis(new JedisOp<Void>() {
+            @Override
+            public Void execute(Jedis jedis) {
+                snapshots.clear();
+                changes.clear();
+                Transaction transaction = jedis.multi();
+                List<Response<byte[]>> snapshotResponses = new ArrayList<>(plainIds.length);
+                List<Response<List<byte[]>>> changeResponses = new ArrayList<>(plainIds.length);
+                for (String id : plainIds) {
+                    snapshotResponses.add(transaction.get(dataKey(id)));
+                    changeResponses.add(transaction.lrange(changeLogKey(id), 0, -1));
+                }
+                transaction.exec();
+                for (int i = 0; i < plainIds.length; i++) {
+                    snapshots.add(snapshotResponses.get(i).get());
+                    changes.add(changeResponses.get(i).get());
+                }
+                return null;
+            }
+        });
+
+        Map<String, byte[]> result = new HashMap<>();
+        for (int i = 0; i < plainIds.length; i++) {
+            byte[] snapshot = snapshots.get(i);
+            if (snapshot != null && !Arrays.equals(NEW_SESSION, snapshot)) {
+                result.put(plainIds[i], restore(plainIds[i], snapshot, changes.get(i)));
+            }
+        }
+        return result;
+    }
+
     @Override
     protected void save(final String id, final byte[] data, final int expireSeconds) throws Exception {
         withJedis(new JedisOp<String>() {
             @Override
             public String execute(Jedis jedis) {
-                return jedis.setex(id.getBytes(), expireSeconds, data);
+                if (!sessionIndex && !changeLog) {
+                    return jedis.setex(dataKey(id), expireSeconds, data);
+                }
+                // new snapshot replaces changes appended to the previous one atomically
+                MultiKeyPipelineBase pipeline = changeLog ? jedis.multi() : jedis.pipelined();
+                pipeline.setex(dataKey(id), dataExpireSeconds(expireSeconds), data);
+                if (changeLog) {
+                    pipeline.del(changeLogKey(id));
+                }
+                if (sessionIndex) {
+                    pipeline.zadd(sessionIndexKey, expiresAt(expireSeconds), id.getBytes());
+                }
+                sync(pipeline);
+                return null;
             }
         });
         if (log.isDebugEnabled()) {
@@ -114,12 +779,72 @@ public class RedisSessionManager extends GenericRedisSessionManager {
         }
     }
 
+    /**
+     * Appends changes of the session to its change log, if previous data is complete and changes are smaller than the session.
+     * Otherwise the whole session is saved. Session is also saved whole once its change log reaches changeLogMaxEntries, as hot
+     * and checkpointed sessions are not loaded in full, so the log is not compacted by load
+     */
+    @Override
+    protected int saveChanges(final String id, byte[] previous, final byte[] data, final int expireSeconds) throws Exception {
+        final byte[] change = changeLog && previous != null ? SessionChangeLog.diff(previous, data) : null;
+        if (change == null || change.length >= data.length) {
+            save(id, data, expireSeconds);
+            return data.length;
+        }
+
+        long[] appended = withJedis(new JedisOp<long[]>() {
+            @Override
+            public long[] execute(Jedis jedis) {
+                Transaction transaction = jedis.multi();
+                Response<Long> entries = transaction.rpush(changeLogKey(id), change);
+                // snapshot header describes the latest version, so header only loads see it
+                Response<Long> length = transaction.setrange(dataKey(id), 0, Arrays.copyOf(data, SessionEnvelope.HEADER_SIZE));
+                transaction.expire(dataKey(id), expireSeconds);
+                transaction.expire(changeLogKey(id), expireSeconds);
+                if (sessionIndex) {
+                    transaction.zadd(sessionIndexKey, expiresAt(expireSeconds), id.getBytes());
+                }
+                sync(transaction);
+                return new long[] { entries.get(), length.get() };
+            }
+        });
+        if (appended[1] <= SessionEnvelope.HEADER_SIZE) {
+            // snapshot expired or was deleted meanwhile, header alone was written
+            save(id, data, expireSeconds);
+            return data.length;
+        }
+
+        getMetrics().changeLogAppends.increment();
+        if (log.isDebugEnabled()) {
+            log.debug("Session sid=" + id + " change size = " + change.length + " appended to Redis with TTL=" + expireSeconds);
+        }
+        if (appended[0] >= changeLogMaxEntries) {
+            // new snapshot replaces the log, as by any save of the whole session
+            save(id, data, expireSeconds);
+            getMetrics().changeLogCompactions.increment();
+            return change.length + data.length;
+        }
+        return change.length;
+    }
+
     @Override
     protected void expire(final String id, final int expireSeconds) throws Exception {
         withJedis(new JedisOp<Long>() {
             @Override
             public Long execute(Jedis jedis) {
-                return jedis.expire(id.getBytes(), expireSeconds);
+                if (!sessionIndex && !changeLog) {
+                    return jedis.expire(dataKey(id), expireSeconds);
+                }
+                Pipeline pipeline = jedis.pipelined();
+                pipeline.expire(dataKey(id), dataExpireSeconds(expireSeconds));
+                if (changeLog) {
+                    pipeline.expire(changeLogKey(id), expireSeconds);
+                }
+                if (sessionIndex) {
+                    pipeline.zadd(sessionIndexKey, expiresAt(expireSeconds), id.getBytes(), ZAddParams.zAddParams().xx());
+                }
+                sync(pipeline);
+                return null;
             }
         });
         if (log.isDebugEnabled()) {
@@ -132,7 +857,18 @@ public class RedisSessionManager extends GenericRedisSessionManager {
         withJedis(new JedisOp<Long>() {
             @Override
             public Long execute(Jedis jedis) {
-                return jedis.del(id.getBytes());
+                if (!sessionIndex) {
+                    return changeLog ? jedis.del(dataKey(id), changeLogKey(id)) : jedis.del(dataKey(id));
+                }
+                Pipeline pipeline = jedis.pipelined();
+                pipeline.del(dataKey(id));
+                if (changeLog) {
+                    pipeline.del(changeLogKey(id));
+                }
+                // invalidated sessions are expired with notification by the container, so they are not left for expiration dispatch
+                pipeline.zrem(sessionIndexKey, id.getBytes());
+                sync(pipeline);
+                return null;
             }
         });
         if (log.isDebugEnabled()) {
@@ -149,12 +885,33 @@ public class RedisSessionManager extends GenericRedisSessionManager {
                 String result;
                 do {
                     result = sessionIdGenerator.generateSessionId();
-                } while (jedis.setnx(result.getBytes(), NEW_SESSION) == 0L);
+                } while (jedis.setnx(dataKey(result), NEW_SESSION) == 0L);
                 return result;
             }
         });
     }
 
+    /**
+     * Sends queued commands and checks their replies. Unlike {@link Pipeline#sync()} and {@link Transaction#exec()}, fails if any
+     * command got error reply instead of leaving it unnoticed in the response nobody reads
+     * @return replies of the commands, null if transaction was discarded because watched keys were changed
+     */
+    private static List<Object> sync(MultiKeyPipelineBase pipeline) {
+        List<Object> replies = pipeline instanceof Transaction ? ((Transaction) pipeline).exec() : ((Pipeline) pipeline).syncAndReturnAll();
+        if (replies != null) {
+            for (Object reply : replies) {
+                if (reply instanceof JedisDataException) {
+                    throw (JedisDataException) reply;
+                }
+            }
+        }
+        return replies;
+    }
+
+    private static double expiresAt(int expireSeconds) {
+        return System.currentTimeMillis() + expireSeconds * 1000L;
+    }
+
     private static String getMessageWithCauses(Throwable e) {
         StringBuilder sb = new StringBuilder();
         while (true) {
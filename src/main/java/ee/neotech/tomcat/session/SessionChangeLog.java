@@ -0,0 +1,183 @@
+package ee.neotech.tomcat.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Changes between versions of session data written in lazy attributes format, so stores could append what a request changed instead of
+ * rewriting the whole session.
+ * <p>
+ * Change record consists of envelope header of the new version (metadata of the session is kept in the header) and attributes which
+ * were added, replaced or removed. Numbers are big-endian:
+ * </p>
+ * <pre>
+ * size
+ * 36   envelope header of the new version
+ *  4   number of changed attributes, followed by each of them:
+ *      modified UTF-8 name, 4 bytes length of serialized value (-1 - attribute is removed), serialized value
+ * </pre>
+ * Data is restored by applying change records to the snapshot in order. Attributes are written in name order, so data restored from
+ * changes of a single writer is equal to the data the writer had.
+ */
+final class SessionChangeLog {
+
+    private static final int REMOVED = -1;
+
+    /** Session id and serialized attribute values by name */
+    private static final class Body {
+        final String id;
+        final TreeMap<String, byte[]> attributes = new TreeMap<>();
+
+        private Body(String id) {
+            this.id = id;
+        }
+
+        /**
+         * Reads body written by {@link NonStickySession#writeLazyObjectData}, metadata is skipped as it is also kept in the header
+         */
+        static Body read(byte[] data) throws IOException {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, SessionEnvelope.HEADER_SIZE,
+                    data.length - SessionEnvelope.HEADER_SIZE))) {
+                for (int i = 0; i < 6; i++) {
+                    in.readObject();
+                }
+                Body body = new Body((String) in.readObject());
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    String name = (String) in.readObject();
+                    byte[] value = new byte[in.readInt()];
+                    in.readFully(value);
+                    body.attributes.put(name, value);
+                }
+                return body;
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new StreamCorruptedException("Lazy attributes format expected: " + e);
+            }
+        }
+
+        /**
+         * @return session data with the body and header of given version
+         */
+        byte[] write(SessionEnvelope envelope, int expectedSize) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(expectedSize);
+            out.write(new byte[SessionEnvelope.HEADER_SIZE]);
+            try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+                NonStickySession.writeLazyFormat(oos, envelope.getCreationTime(), envelope.getMaxInactiveInterval(), envelope.isNew(),
+                        envelope.isValid(), id, new ArrayList<>(attributes.keySet()), new ArrayList<>(attributes.values()));
+                oos.flush();
+            }
+            byte[] data = out.toByteArray();
+            SessionEnvelope.writeHeader(data, data.length, SessionEnvelope.CODEC_LAZY, envelope.getFlags(), envelope.getCreationTime(),
+                    envelope.getLastAccessedTime(), envelope.getMaxInactiveInterval());
+            return data;
+        }
+    }
+
+    private SessionChangeLog() {
+    }
+
+    /**
+     * @param previous data the session was loaded from (or last saved as)
+     * @param data new data of the session
+     * @return change record turning previous data into new data, or null if data could not be expressed as a change: it is not complete
+     * envelope of lazy attributes format or belongs to another session
+     * @throws IOException if data could not be parsed
+     */
+    static byte[] diff(byte[] previous, byte[] data) throws IOException {
+        if (!isLazyEnvelope(previous) || !isLazyEnvelope(data)) {
+            return null;
+        }
+        Body before = Body.read(previous);
+        Body after = Body.read(data);
+        if (!before.id.equals(after.id)) {
+            return null;
+        }
+
+        List<String> names = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        for (Map.Entry<String, byte[]> e : after.attributes.entrySet()) {
+            if (!Arrays.equals(e.getValue(), before.attributes.get(e.getKey()))) {
+                names.add(e.getKey());
+                values.add(e.getValue());
+            }
+        }
+        for (String name : before.attributes.keySet()) {
+            if (!after.attributes.containsKey(name)) {
+                names.add(name);
+                values.add(null);
+            }
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(SessionEnvelope.HEADER_SIZE + 64);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.write(data, 0, SessionEnvelope.HEADER_SIZE);
+        out.writeInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            byte[] value = values.get(i);
+            out.writeUTF(names.get(i));
+            if (value == null) {
+                out.writeInt(REMOVED);
+            } else {
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @param snapshot data the changes were appended to. Only its body is used, header could be overwritten by a later version
+     * @param changes change records in order they were appended
+     * @return restored data of the session, snapshot itself if there are no changes
+     * @throws IOException if snapshot or changes could not be parsed
+     */
+    static byte[] replay(byte[] snapshot, List<byte[]> changes) throws IOException {
+        if (changes.isEmpty()) {
+            return snapshot;
+        }
+        if (!SessionEnvelope.isEnvelope(snapshot)) {
+            throw new StreamCorruptedException("Session envelope header expected in snapshot");
+        }
+
+        Body body = Body.read(snapshot);
+        byte[] header = null;
+        for (byte[] change : changes) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(change));
+            header = new byte[SessionEnvelope.HEADER_SIZE];
+            in.readFully(header);
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String name = in.readUTF();
+                int length = in.readInt();
+                if (length == REMOVED) {
+                    body.attributes.remove(name);
+                } else {
+                    byte[] value = new byte[length];
+                    in.readFully(value);
+                    body.attributes.put(name, value);
+                }
+            }
+        }
+
+        // header is written anew, as changes appended concurrently by several nodes could result in data none of them had
+        SessionEnvelope envelope = SessionEnvelope.readHeader(header);
+        return body.write(envelope, SessionEnvelope.storedLength(header));
+    }
+
+    private static boolean isLazyEnvelope(byte[] data) throws IOException {
+        return SessionEnvelope.isEnvelope(data) && data.length == SessionEnvelope.storedLength(data)
+                && SessionEnvelope.readHeader(data).getCodec() == SessionEnvelope.CODEC_LAZY;
+    }
+}
@@ -0,0 +1,263 @@
+package ee.neotech.tomcat.session;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed size header preceding stored session data.
+ * <p>
+ * Header carries format version and codec of the body, so data written by different versions of the manager could be read during
+ * rolling upgrades, and session metadata, so tools could get e.g. creation time without deserializing the body.
+ * Metadata is written when the body is saved: access which only refreshes store expiration does not update the header, as equal
+ * headers are used to detect unchanged data.
+ * All numbers are big-endian:
+ * </p>
+ * <pre>
+ * offset size
+ *  0     4    magic 'N' 'S' 'E' 'V'
+ *  4     1    format version
+ *  5     1    codec of the body, see CODEC_* constants
+ *  6     2    flags, see FLAG_* constants
+ *  8     8    creation time
+ * 16     8    last accessed time when the data was saved
+ * 24     4    max inactive interval in seconds
+ * 28     4    body length
+ * 32     4    CRC32 of the body
+ * </pre>
+ * Data without the header is read as written by previous versions: standard serialization stream or lazy attributes format.
+ */
+public final class SessionEnvelope {
+
+    public static final int HEADER_SIZE = 36;
+
+    /** Latest format version, written by this version of the manager */
+    public static final int VERSION = 1;
+
+    /** Body is written by {@link NonStickySession#writeObjectData} */
+    public static final int CODEC_STANDARD = 0;
+    /** Body is written by {@link NonStickySession#writeLazyObjectData} */
+    public static final int CODEC_LAZY = 1;
+
+    public static final int FLAG_VALID = 1;
+    public static final int FLAG_NEW = 2;
+
+    private static final byte[] MAGIC = { 'N', 'S', 'E', 'V' };
+
+    /**
+     * Thrown when data is written in format version or codec unknown to this version of the manager.
+     * Such data must be left intact for the newer version.
+     */
+    public static class UnsupportedFormatException extends IOException {
+        private static final long serialVersionUID = 4196516431436185542L;
+
+        public UnsupportedFormatException(String message) {
+            super(message);
+        }
+    }
+
+    private final int version;
+    private final int codec;
+    private final int flags;
+    private final long creationTime;
+    private final long lastAccessedTime;
+    private final int maxInactiveInterval;
+    private final int bodyLength;
+    private final int checksum;
+
+    private SessionEnvelope(byte[] header) {
+        this.version = header[4] & 0xFF;
+        this.codec = header[5] & 0xFF;
+        this.flags = readShort(header, 6);
+        this.creationTime = readLong(header, 8);
+        this.lastAccessedTime = readLong(header, 16);
+        this.maxInactiveInterval = readInt(header, 24);
+        this.bodyLength = readInt(header, 28);
+        this.checksum = readInt(header, 32);
+    }
+
+    /**
+     * @return true if data starts with envelope header
+     */
+    public static boolean isEnvelope(byte[] data) {
+        if (data == null || data.length < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads header only, body is not required to be present (e.g. when only first {@link #HEADER_SIZE} bytes are fetched from store)
+     * @param data
+     * @return envelope header
+     * @throws UnsupportedFormatException if version or codec is not known
+     * @throws StreamCorruptedException if data does not start with envelope header
+     */
+    public static SessionEnvelope readHeader(byte[] data) throws IOException {
+        if (!isEnvelope(data)) {
+            throw new StreamCorruptedException("Session envelope header expected");
+        }
+        SessionEnvelope envelope = new SessionEnvelope(data);
+        if (envelope.version > VERSION) {
+            throw new UnsupportedFormatException("Session data format version " + envelope.version + " is newer than supported " + VERSION);
+        }
+        if (envelope.codec != CODEC_STANDARD && envelope.codec != CODEC_LAZY) {
+            throw new UnsupportedFormatException("Unknown session data codec " + envelope.codec);
+        }
+        return envelope;
+    }
+
+    /**
+     * Reads header and verifies body length and checksum
+     * @param data
+     * @return envelope header
+     * @throws IOException if header is not supported or body is corrupted
+     */
+    public static SessionEnvelope read(byte[] data) throws IOException {
+        SessionEnvelope envelope = readHeader(data);
+        if (data.length - HEADER_SIZE != envelope.bodyLength) {
+            throw new StreamCorruptedException("Session body length " + (data.length - HEADER_SIZE) + " does not match header " + envelope.bodyLength);
+        }
+        if (checksum(data, HEADER_SIZE, envelope.bodyLength) != envelope.checksum) {
+            throw new StreamCorruptedException("Session body checksum mismatch");
+        }
+        return envelope;
+    }
+
+    /**
+     * Writes header of current version for the body following it
+     * @param data buffer with {@link #HEADER_SIZE} bytes reserved for header, followed by body
+     * @param length total length of header and body
+     */
+    static void writeHeader(byte[] data, int length, int codec, int flags, long creationTime, long lastAccessedTime, int maxInactiveInterval) {
+        int bodyLength = length - HEADER_SIZE;
+        System.arraycopy(MAGIC, 0, data, 0, MAGIC.length);
+        data[4] = (byte) VERSION;
+        data[5] = (byte) codec;
+        writeShort(data, 6, flags);
+        writeLong(data, 8, creationTime);
+        writeLong(data, 16, lastAccessedTime);
+        writeInt(data, 24, maxInactiveInterval);
+        writeInt(data, 28, bodyLength);
+        writeInt(data, 32, checksum(data, HEADER_SIZE, bodyLength));
+    }
+
+    /**
+     * @param data data starting with envelope header
+     * @return total length of header and body, as written in the header
+     */
+    static int storedLength(byte[] data) {
+        return HEADER_SIZE + readInt(data, 28);
+    }
+
+    /**
+     * Compares body length and checksum written in headers, so bodies could be compared when only header of one of them is kept
+     * @return true, if both data start with envelope headers of equal bodies
+     */
+    static boolean sameBody(byte[] data, byte[] other) {
+        for (int i = 28; i < HEADER_SIZE; i++) {
+            if (data[i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getCodec() {
+        return codec;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isValid() {
+        return (flags & FLAG_VALID) != 0;
+    }
+
+    public boolean isNew() {
+        return (flags & FLAG_NEW) != 0;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * @return last accessed time of the session when the data was saved. Later accesses which did not change the session are not
+     * reflected, see {@link #getEarliestExpirationTime()}
+     */
+    public long getLastAccessedTime() {
+        return lastAccessedTime;
+    }
+
+    public int getMaxInactiveInterval() {
+        return maxInactiveInterval;
+    }
+
+    /**
+     * @return time the session expires if it was not accessed since the data was saved, or Long.MAX_VALUE if it never expires.
+     * Actual expiration could be later, as it is refreshed by accesses without rewriting the data
+     */
+    public long getEarliestExpirationTime() {
+        return maxInactiveInterval > 0 ? lastAccessedTime + maxInactiveInterval * 1000L : Long.MAX_VALUE;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    public int getChecksum() {
+        return checksum;
+    }
+
+    private static int readShort(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] b, int off) {
+        return ((long) readInt(b, off) << 32) | (readInt(b, off + 4) & 0xFFFFFFFFL);
+    }
+
+    private static void writeShort(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 8);
+        b[off + 1] = (byte) v;
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static void writeLong(byte[] b, int off, long v) {
+        writeInt(b, off, (int) (v >>> 32));
+        writeInt(b, off + 4, (int) v);
+    }
+
+    @Override
+    public String toString() {
+        return "SessionEnvelope [version=" + version + ", codec=" + codec + ", flags=" + flags + ", creationTime=" + creationTime
+                + ", lastAccessedTime=" + lastAccessedTime + ", maxInactiveInterval=" + maxInactiveInterval + ", bodyLength=" + bodyLength + "]";
+    }
+}
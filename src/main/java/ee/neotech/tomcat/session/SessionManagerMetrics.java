@@ -0,0 +1,295 @@
+package ee.neotech.tomcat.session;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import ee.neotech.util.Histogram;
+import ee.neotech.util.SharedAccessCache;
+
+/**
+ * Store operation, serialization and session cache statistics of {@link NonStickySessionManager}.
+ * <p>
+ * All counters and histograms are lock-free to record, so metrics are always on. Exposed via JMX by the owning manager.
+ * </p>
+ */
+public class SessionManagerMetrics {
+
+    private static final double NANOS_IN_MILLI = 1000000.0;
+
+    final Histogram loadTime = new Histogram();
+    final Histogram saveTime = new Histogram();
+    final Histogram expireTime = new Histogram();
+    final Histogram deleteTime = new Histogram();
+    final Histogram serializationTime = new Histogram();
+    final Histogram deserializationTime = new Histogram();
+    final Histogram serializationQueueTime = new Histogram();
+    final Histogram borrowWaitTime = new Histogram();
+
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final LongAdder checkpoints = new LongAdder();
+    final LongAdder serializationPoolRejections = new LongAdder();
+    final LongAdder hotSessionRevalidations = new LongAdder();
+    final LongAdder hotSessionReloads = new LongAdder();
+    final LongAdder skippedExpireRefreshes = new LongAdder();
+    final LongAdder changeLogAppends = new LongAdder();
+    final LongAdder changeLogCompactions = new LongAdder();
+
+    volatile long startupTime = -1;
+    volatile long storeReadyTime = -1;
+
+    private volatile SharedAccessCache<?, ?> cache;
+
+    void setCache(SharedAccessCache<?, ?> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Registers retry of a store operation (e.g. reconnect or repeated Redis command)
+     */
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    /**
+     * Registers failed store operation
+     */
+    public void recordFailure() {
+        failures.increment();
+    }
+
+    public String getLoadTimeSummary() {
+        return loadTime.summary("ms", NANOS_IN_MILLI);
+    }
+
+    public String getSaveTimeSummary() {
+        return saveTime.summary("ms", NANOS_IN_MILLI);
+    }
+
+    public String getExpireTimeSummary() {
+        return expireTime.summary("ms", NANOS_IN_MILLI);
+    }
+
+    public String getDeleteTimeSummary() {
+        return deleteTime.summary("ms", NANOS_IN_MILLI);
+    }
+
+    public String getSerializationTimeSummary() {
+        return serializationTime.summary("ms", NANOS_IN_MILLI);
+    }
+
+    public String getDeserializationTimeSummary() {
+        return deserializationTime.summary("ms", NANOS_IN_MILLI);
+    }
+
+    /**
+     * @return time large sessions waited for (de)serialization pool
+     */
+    public String getSerializationQueueTimeSummary() {
+        return serializationQueueTime.summary("ms", NANOS_IN_MILLI);
+    }
+
+    /**
+     * @return number of large sessions (de)serialized by the pool
+     */
+    public long getSerializationPoolTasks() {
+        return serializationQueueTime.getCount();
+    }
+
+    /**
+     * @return number of large sessions (de)serialized by request thread because the pool queue was full
+     */
+    public long getSerializationPoolRejections() {
+        return serializationPoolRejections.sum();
+    }
+
+    /**
+     * @return time requests waited for store connection from the pool
+     */
+    public String getBorrowWaitTimeSummary() {
+        return borrowWaitTime.summary("ms", NANOS_IN_MILLI);
+    }
+
+    public long getBorrowWaitP99Micros() {
+        return borrowWaitTime.getPercentile(99) / 1000;
+    }
+
+    /**
+     * @return time the manager took to start in milliseconds, -1 if not started
+     */
+    public long getStartupMillis() {
+        return startupTime;
+    }
+
+    /**
+     * @return time from manager start until store connectivity was initialized in milliseconds, -1 if not initialized yet.
+     * Differs from startup time if store is initialized in background
+     */
+    public long getStoreReadyMillis() {
+        return storeReadyTime;
+    }
+
+    public long getLoadCount() {
+        return loadTime.getCount();
+    }
+
+    public long getLoadP99Micros() {
+        return loadTime.getPercentile(99) / 1000;
+    }
+
+    public long getSaveCount() {
+        return saveTime.getCount();
+    }
+
+    public long getSaveP99Micros() {
+        return saveTime.getPercentile(99) / 1000;
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * @return number of expiration refreshes on access skipped because expiration was set recently
+     */
+    public long getSkippedExpireRefreshes() {
+        return skippedExpireRefreshes.sum();
+    }
+
+    /**
+     * @return number of saves appending changes to session change log instead of writing whole session
+     */
+    public long getChangeLogAppends() {
+        return changeLogAppends.sum();
+    }
+
+    /**
+     * @return number of change logs merged into session snapshots
+     */
+    public long getChangeLogCompactions() {
+        return changeLogCompactions.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return number of sessions saved by checkpoints while in use
+     */
+    public long getCheckpoints() {
+        return checkpoints.sum();
+    }
+
+    public long getCacheHits() {
+        SharedAccessCache<?, ?> c = cache;
+        return c != null ? c.getHits() : 0;
+    }
+
+    public long getCacheMisses() {
+        SharedAccessCache<?, ?> c = cache;
+        return c != null ? c.getMisses() : 0;
+    }
+
+    /**
+     * @return number of requests that timed out waiting for the session being loaded or saved by a concurrent request
+     */
+    public long getCacheWaitTimeouts() {
+        SharedAccessCache<?, ?> c = cache;
+        return c != null ? c.getWaitTimeouts() : 0;
+    }
+
+    /**
+     * @return number of sessions force-released after being held by a request longer than lease timeout
+     */
+    public long getExpiredLeases() {
+        SharedAccessCache<?, ?> c = cache;
+        return c != null ? c.getExpiredLeases() : 0;
+    }
+
+    public int getCachedSessions() {
+        SharedAccessCache<?, ?> c = cache;
+        return c != null ? c.size() : 0;
+    }
+
+    /**
+     * @return estimated heap used by cached sessions in bytes
+     */
+    public long getCacheBytes() {
+        SharedAccessCache<?, ?> c = cache;
+        return c != null ? c.getWeight() : 0;
+    }
+
+    /**
+     * @return number of session loads refused because cached sessions exceeded cacheMaxBytes
+     */
+    public long getCacheBudgetRejections() {
+        SharedAccessCache<?, ?> c = cache;
+        return c != null ? c.getBudgetRejections() : 0;
+    }
+
+    /**
+     * @return number of hot sessions currently kept in cache between requests
+     */
+    public int getHotSessions() {
+        SharedAccessCache<?, ?> c = cache;
+        return c != null ? c.getRetainedOnRelease() : 0;
+    }
+
+    /**
+     * @return number of times a hot session kept in cache was reused after its version was checked in store
+     */
+    public long getHotSessionRevalidations() {
+        return hotSessionRevalidations.sum();
+    }
+
+    /**
+     * @return number of times a hot session kept in cache was reloaded because it was changed in store
+     */
+    public long getHotSessionReloads() {
+        return hotSessionReloads.sum();
+    }
+
+    /**
+     * @return distribution of number of requests sharing a session at the moment it is accessed
+     */
+    public String getConcurrentAccessSummary() {
+        SharedAccessCache<?, ?> c = cache;
+        return c != null ? c.getConcurrentAccess().summary("", 1) : "";
+    }
+
+    public void reset() {
+        loadTime.reset();
+        saveTime.reset();
+        expireTime.reset();
+        deleteTime.reset();
+        serializationTime.reset();
+        deserializationTime.reset();
+        serializationQueueTime.reset();
+        borrowWaitTime.reset();
+        serializationPoolRejections.reset();
+        bytesRead.reset();
+        bytesWritten.reset();
+        retries.reset();
+        failures.reset();
+        checkpoints.reset();
+        hotSessionRevalidations.reset();
+        hotSessionReloads.reset();
+        skippedExpireRefreshes.reset();
+        changeLogAppends.reset();
+        changeLogCompactions.reset();
+        SharedAccessCache<?, ?> c = cache;
+        if (c != null) {
+            c.getConcurrentAccess().reset();
+        }
+    }
+}
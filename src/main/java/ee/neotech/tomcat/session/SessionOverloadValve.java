@@ -0,0 +1,89 @@
+package ee.neotech.tomcat.session;
+
+import java.io.IOException;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Manager;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import ee.neotech.util.SharedAccessCache.OverBudgetException;
+
+/**
+ * Responds with 503 Service Unavailable to requests whose session could not be loaded because session cache of
+ * {@link NonStickySessionManager} exceeds cacheMaxBytes.
+ * <p>
+ * Requests for sessions which are not cached are rejected before they are processed. Requests which fail on session lookup anyway
+ * (cache has exceeded the budget meanwhile) get 503 instead of 500, if response is not committed yet. Must be configured on context level.
+ * </p>
+ * Config attributes:
+ * <ul>
+ * <li>retryAfter - value of Retry-After header in seconds (defaults to 5, 0 - header is not sent)</li>
+ * </ul>
+ */
+public class SessionOverloadValve extends ValveBase {
+
+    private final Log log = LogFactory.getLog(SessionOverloadValve.class);
+
+    private int retryAfter = 5;
+
+    public SessionOverloadValve() {
+        super(true);
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        Context context = request.getContext();
+        Manager manager = context != null ? context.getManager() : null;
+        String id = request.getRequestedSessionId();
+        if (manager instanceof NonStickySessionManager && id != null && ((NonStickySessionManager) manager).isLoadRefused(id)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Session cache is over budget, rejecting request " + request.getRequestURI());
+            }
+            unavailable(response);
+            return;
+        }
+
+        getNext().invoke(request, response);
+
+        Throwable error = (Throwable) request.getAttribute(RequestDispatcher.ERROR_EXCEPTION);
+        if (isOverBudget(error) && !response.isCommitted()) {
+            // otherwise error page handling reports it as 500
+            request.removeAttribute(RequestDispatcher.ERROR_EXCEPTION);
+            response.resetBuffer();
+            unavailable(response);
+        }
+    }
+
+    private void unavailable(Response response) {
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setError();
+        if (retryAfter > 0) {
+            response.setHeader("Retry-After", String.valueOf(retryAfter));
+        }
+    }
+
+    private static boolean isOverBudget(Throwable e) {
+        for (int depth = 0; e != null && depth < 10; e = e.getCause(), depth++) {
+            if (e instanceof OverBudgetException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
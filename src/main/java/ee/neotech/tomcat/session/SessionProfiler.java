@@ -0,0 +1,314 @@
+package ee.neotech.tomcat.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import ee.neotech.util.Histogram;
+
+/**
+ * Collects session and attribute level serialization statistics.
+ * <p>
+ * Size and serialization time of the whole session are recorded on every save/load, while attributes are profiled only for sampled
+ * (see {@link #setSampleRate(double)}) and oversized sessions: each attribute is serialized and deserialized separately to measure its
+ * size and time. Oversized session is profiled and reported at most once per warning interval, as profiling is done on request thread
+ * and multiplies serialization cost. Statistics are aggregated by attribute name and value class. Exposed via JMX by the owning manager.
+ * </p>
+ */
+public class SessionProfiler {
+
+    private final Log log = LogFactory.getLog(SessionProfiler.class);
+
+    /** Limits memory used by statistics if attribute names are generated dynamically */
+    private static final int MAX_TRACKED_ATTRIBUTES = 500;
+    private static final String OTHER_ATTRIBUTES = "(other)";
+    private static final int TOP_ATTRIBUTES = 20;
+    private static final double NANOS_IN_MILLI = 1000000.0;
+
+    /** Interval of repeated warnings about the same oversized session, if log interval is not configured or is shorter */
+    private static final long MIN_WARNING_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    /** Limits memory used by tracking of warned sessions */
+    private static final int MAX_WARNED_SESSIONS = 1000;
+
+    static class AttributeStats {
+        final String name;
+        final String className;
+        final Histogram size = new Histogram();
+        final Histogram serializationTime = new Histogram();
+        final Histogram deserializationTime = new Histogram();
+
+        AttributeStats(String name, String className) {
+            this.name = name;
+            this.className = className;
+        }
+
+        @Override
+        public String toString() {
+            return name + " [" + className + "] size: " + size.summary("B", 1) + "; serialization: " + serializationTime.summary("ms", NANOS_IN_MILLI)
+                + "; deserialization: " + deserializationTime.summary("ms", NANOS_IN_MILLI);
+        }
+    }
+
+    /** Attribute measured during single profiling pass */
+    static class AttributeSample {
+        final String name;
+        final int size;
+
+        AttributeSample(String name, int size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    private final NonStickySessionManager manager;
+
+    private volatile double sampleRate = 0;
+    private volatile int sessionSizeWarning = 0;
+    private volatile int logInterval = 0;
+    private volatile long lastLogged = System.currentTimeMillis();
+
+    private final Histogram savedSize = new Histogram();
+    private final Histogram loadedSize = new Histogram();
+    private final Histogram serializationTime = new Histogram();
+    private final Histogram deserializationTime = new Histogram();
+    private final ConcurrentMap<String, AttributeStats> attributes = new ConcurrentHashMap<>();
+    /** Time of last warning by id of oversized session */
+    private final ConcurrentMap<String, Long> warnedSessions = new ConcurrentHashMap<>();
+
+    SessionProfiler(NonStickySessionManager manager) {
+        this.manager = manager;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @param sampleRate share of saved sessions (0..1) profiled attribute by attribute. 0 disables profiling
+     */
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public int getSessionSizeWarning() {
+        return sessionSizeWarning;
+    }
+
+    /**
+     * @param sessionSizeWarning serialized session size in bytes, exceeding which is logged as warning with attribute breakdown. 0 disables warnings
+     */
+    public void setSessionSizeWarning(int sessionSizeWarning) {
+        this.sessionSizeWarning = sessionSizeWarning;
+    }
+
+    public int getLogInterval() {
+        return logInterval;
+    }
+
+    /**
+     * @param logInterval interval of summary logging in seconds. 0 disables logging
+     */
+    public void setLogInterval(int logInterval) {
+        this.logInterval = logInterval;
+    }
+
+    boolean isEnabled() {
+        return sampleRate > 0 || sessionSizeWarning > 0;
+    }
+
+    void recordSerialization(NonStickySession session, int size, long nanos) {
+        savedSize.record(size);
+        serializationTime.record(nanos);
+
+        boolean oversized = sessionSizeWarning > 0 && size > sessionSizeWarning && isWarningDue(session.getIdInternal());
+        boolean sampled = sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+
+        if (oversized || sampled) {
+            List<AttributeSample> samples = profileAttributes(session);
+
+            if (oversized) {
+                Collections.sort(samples, new Comparator<AttributeSample>() {
+                    @Override
+                    public int compare(AttributeSample o1, AttributeSample o2) {
+                        return Integer.compare(o2.size, o1.size);
+                    }
+                });
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < samples.size() && i < 5; i++) {
+                    sb.append(i > 0 ? ", " : "").append(samples.get(i).name).append('=').append(samples.get(i).size).append('B');
+                }
+                log.warn("Session " + session.getIdInternal() + " size " + size + "B exceeds " + sessionSizeWarning + "B. Largest attributes: " + sb);
+            }
+        }
+    }
+
+    void recordDeserialization(int size, long nanos) {
+        loadedSize.record(size);
+        deserializationTime.record(nanos);
+    }
+
+    /**
+     * @return true, if the session was not reported as oversized within warning interval
+     */
+    private boolean isWarningDue(String id) {
+        long now = System.currentTimeMillis();
+        long interval = Math.max(MIN_WARNING_INTERVAL, logInterval * 1000L);
+        Long last = warnedSessions.get(id);
+        if (last != null) {
+            return now - last >= interval && warnedSessions.replace(id, last, now);
+        }
+        if (warnedSessions.size() >= MAX_WARNED_SESSIONS) {
+            for (Iterator<Long> it = warnedSessions.values().iterator(); it.hasNext();) {
+                if (now - it.next() >= interval) {
+                    it.remove();
+                }
+            }
+            if (warnedSessions.size() >= MAX_WARNED_SESSIONS) {
+                return false;
+            }
+        }
+        return warnedSessions.putIfAbsent(id, now) == null;
+    }
+
+    private List<AttributeSample> profileAttributes(NonStickySession session) {
+        List<AttributeSample> result = new ArrayList<>();
+
+        for (Map.Entry<String, Object> entry : session.attributeValues().entrySet()) {
+            String name = entry.getKey();
+            Object value = entry.getValue();
+            try {
+                byte[] data;
+                long serializationNanos = -1;
+                if (value instanceof NonStickySession.LazyAttribute) {
+                    data = ((NonStickySession.LazyAttribute) value).data;
+                } else {
+                    long start = System.nanoTime();
+                    data = manager.serializeAttribute(value);
+                    serializationNanos = System.nanoTime() - start;
+                }
+
+                long start = System.nanoTime();
+                Object copy = manager.deserializeAttribute(data);
+                long deserializationNanos = System.nanoTime() - start;
+
+                AttributeStats stats = getStats(name, copy != null ? copy.getClass().getName() : "null");
+                stats.size.record(data.length);
+                if (serializationNanos >= 0) {
+                    stats.serializationTime.record(serializationNanos);
+                }
+                stats.deserializationTime.record(deserializationNanos);
+
+                result.add(new AttributeSample(name, data.length));
+            } catch (Exception e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Failed to profile attribute '" + name + "' of session " + session.getIdInternal(), e);
+                }
+            }
+        }
+        return result;
+    }
+
+    private AttributeStats getStats(String name, String className) {
+        String key = name + '|' + className;
+        AttributeStats stats = attributes.get(key);
+        if (stats == null) {
+            if (attributes.size() >= MAX_TRACKED_ATTRIBUTES) {
+                key = OTHER_ATTRIBUTES;
+                name = OTHER_ATTRIBUTES;
+                className = OTHER_ATTRIBUTES;
+            }
+            AttributeStats created = new AttributeStats(name, className);
+            stats = attributes.putIfAbsent(key, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return size of saved sessions
+     */
+    public String getSessionSizeSummary() {
+        return savedSize.summary("B", 1);
+    }
+
+    /**
+     * @return size of loaded sessions
+     */
+    public String getLoadedSizeSummary() {
+        return loadedSize.summary("B", 1);
+    }
+
+    public String getSerializationTimeSummary() {
+        return serializationTime.summary("ms", NANOS_IN_MILLI);
+    }
+
+    public String getDeserializationTimeSummary() {
+        return deserializationTime.summary("ms", NANOS_IN_MILLI);
+    }
+
+    /**
+     * @return profiled attributes ordered by total sampled size (size mean * samples), largest first
+     */
+    public String[] getTopAttributesBySize() {
+        List<AttributeStats> list = new ArrayList<>(attributes.values());
+        Collections.sort(list, new Comparator<AttributeStats>() {
+            @Override
+            public int compare(AttributeStats o1, AttributeStats o2) {
+                return Long.compare(o2.size.getSum(), o1.size.getSum());
+            }
+        });
+
+        int n = Math.min(TOP_ATTRIBUTES, list.size());
+        String[] result = new String[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = list.get(i).toString();
+        }
+        return result;
+    }
+
+    public void reset() {
+        savedSize.reset();
+        loadedSize.reset();
+        serializationTime.reset();
+        deserializationTime.reset();
+        attributes.clear();
+        warnedSessions.clear();
+    }
+
+    /**
+     * Logs summary if log interval is configured and passed since last summary
+     */
+    void logSummaryIfDue() {
+        if (logInterval <= 0 || !isEnabled()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastLogged < logInterval * 1000L) {
+            return;
+        }
+        lastLogged = now;
+
+        StringBuilder sb = new StringBuilder("Session profile summary:");
+        sb.append("\n  saved session size: ").append(getSessionSizeSummary());
+        sb.append("\n  loaded session size: ").append(getLoadedSizeSummary());
+        sb.append("\n  serialization: ").append(getSerializationTimeSummary());
+        sb.append("\n  deserialization: ").append(getDeserializationTimeSummary());
+        for (String attribute : getTopAttributesBySize()) {
+            sb.append("\n  ").append(attribute);
+        }
+        log.info(sb);
+    }
+}
@@ -0,0 +1,99 @@
+package ee.neotech.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free count-min sketch estimating how often keys were seen recently, in fixed memory regardless of number of keys.
+ * <p>
+ * Each key increments one counter in each of {@value #DEPTH} rows, estimate is the minimum of them, so it is never below the real count
+ * but may exceed it when keys collide. All counters are halved every window, so estimates follow recent frequency: a key seen
+ * <code>n</code> times per window is estimated at about <code>2n</code> in steady state.
+ * </p>
+ */
+public class FrequencySketch {
+
+    private static final int DEPTH = 4;
+
+    private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+    private final AtomicIntegerArray counters;
+    private final int mask;
+    private final long windowMillis;
+    private final AtomicLong nextHalving;
+
+    /**
+     * @param width number of counters per row, rounded up to power of two. Should exceed number of distinct keys seen per window
+     * @param windowMillis interval of counter halving in milliseconds
+     */
+    public FrequencySketch(int width, long windowMillis) {
+        int w = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+        this.counters = new AtomicIntegerArray(DEPTH * w);
+        this.mask = w - 1;
+        this.windowMillis = windowMillis;
+        this.nextHalving = new AtomicLong(System.currentTimeMillis() + windowMillis);
+    }
+
+    /**
+     * Registers occurrence of the key
+     * @param key
+     * @return estimated frequency of the key including this occurrence
+     */
+    public int increment(Object key) {
+        halveIfDue();
+        int hash = spread(key.hashCode());
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+            int value = counters.get(index);
+            if (value < Integer.MAX_VALUE) {
+                value = counters.incrementAndGet(index);
+            }
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    /**
+     * @param key
+     * @return estimated frequency of the key
+     */
+    public int estimate(Object key) {
+        int hash = spread(key.hashCode());
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counters.get(indexOf(hash, i)));
+        }
+        return min;
+    }
+
+    private void halveIfDue() {
+        long next = nextHalving.get();
+        long now = System.currentTimeMillis();
+        if (now >= next && nextHalving.compareAndSet(next, now + windowMillis)) {
+            halve();
+        }
+    }
+
+    /**
+     * Halves all counters. Concurrent increments may be lost, which is acceptable for an estimate
+     */
+    void halve() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, counters.get(i) >>> 1);
+        }
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+        h ^= h >>> 16;
+        return row * (mask + 1) + (h & mask);
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45D9F3B;
+        h ^= h >>> 16;
+        return h;
+    }
+}
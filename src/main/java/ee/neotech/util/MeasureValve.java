@@ -1,20 +1,242 @@
 package ee.neotech.util;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
 
+import org.apache.catalina.LifecycleException;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.valves.ValveBase;
 
+import ee.neotech.util.RequestTimings.Phase;
+
+/**
+ * Measures request processing time.
+ * <p>
+ * Request times are recorded into histograms per configured URI pattern, together with time spent in session related phases
+ * (see {@link RequestTimings.Phase}). Requests slower than the threshold are reported asynchronously by {@link SlowOperationReporter}.
+ * Statistics are available via JMX attributes of the valve.
+ * </p>
+ * <p>
+ * Asynchronous requests are recorded when they complete, time out or fail. Their phase times include only the part processed by the
+ * container thread before the request was put into asynchronous mode.
+ * </p>
+ * Config attributes:
+ * <ul>
+ * <li>name - name used in slow request reports (defaults to Request-Valve)</li>
+ * <li>threshold - slow request threshold in milliseconds (defaults to 200)</li>
+ * <li>uriPatterns - comma separated list of URI patterns to collect separate statistics for. Supported patterns are exact match,
+ * prefix (/path/*) and suffix (*.ext). Requests not matching any pattern are recorded as (other)</li>
+ * </ul>
+ */
 public class MeasureValve extends ValveBase {
 
+    private static final double NANOS_IN_MILLI = 1000000.0;
+    private static final String OTHER = "(other)";
+
+    static final class UriPattern {
+        final String pattern;
+        final Histogram times = new Histogram();
+
+        UriPattern(String pattern) {
+            this.pattern = pattern;
+        }
+
+        boolean matches(String uri) {
+            if (pattern.endsWith("/*")) {
+                return uri.startsWith(pattern.substring(0, pattern.length() - 1)) || uri.equals(pattern.substring(0, pattern.length() - 2));
+            } else if (pattern.startsWith("*.")) {
+                return uri.endsWith(pattern.substring(1));
+            } else {
+                return uri.equals(pattern);
+            }
+        }
+    }
+
+    /** Records asynchronous request when it is finished */
+    private final class AsyncCompletion implements AsyncListener {
+        private final Request request;
+        private final RequestTimings timings;
+        private final long start;
+        private boolean recorded;
+
+        AsyncCompletion(Request request, RequestTimings timings, long start) {
+            this.request = request;
+            this.timings = timings;
+            this.start = start;
+        }
+
+        private synchronized void finish() {
+            if (!recorded) {
+                recorded = true;
+                record(request, timings, System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // listeners are cleared when asynchronous mode is started again after dispatch
+            event.getAsyncContext().addListener(this, event.getSuppliedRequest(), event.getSuppliedResponse());
+        }
+    }
+
+    private String name = "Request-Valve";
+    private long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(200);
+    private volatile UriPattern[] patterns = new UriPattern[0];
+    private final UriPattern other = new UriPattern(OTHER);
+    private final Histogram[] phaseTimes = new Histogram[Phase.values().length];
+
+    public MeasureValve() {
+        super(true);
+        for (int i = 0; i < phaseTimes.length; i++) {
+            phaseTimes[i] = new Histogram();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getThreshold() {
+        return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    }
+
+    public void setThreshold(long threshold) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(threshold);
+    }
+
+    public String getUriPatterns() {
+        StringBuilder sb = new StringBuilder();
+        for (UriPattern p : patterns) {
+            sb.append(sb.length() > 0 ? "," : "").append(p.pattern);
+        }
+        return sb.toString();
+    }
+
+    public void setUriPatterns(String uriPatterns) {
+        List<UriPattern> list = new ArrayList<>();
+        if (uriPatterns != null) {
+            for (String p : uriPatterns.split(",")) {
+                if (!p.trim().isEmpty()) {
+                    list.add(new UriPattern(p.trim()));
+                }
+            }
+        }
+        this.patterns = list.toArray(new UriPattern[list.size()]);
+    }
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        SlowOperationReporter.start();
+        super.startInternal();
+    }
+
+    @Override
+    protected void stopInternal() throws LifecycleException {
+        super.stopInternal();
+        SlowOperationReporter.stop();
+    }
+
     @Override
     public void invoke(Request request, Response response) throws IOException, ServletException {
-        try (StopWatch sw = StopWatch.start("Request-Valve", 200)) {
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            // recorded by the listener registered when request was put into asynchronous mode
             getNext().invoke(request, response);
-        }        
+            return;
+        }
+
+        RequestTimings timings = RequestTimings.begin();
+        long start = System.nanoTime();
+        boolean async = false;
+        try {
+            getNext().invoke(request, response);
+            if (request.isAsync()) {
+                request.getAsyncContext().addListener(new AsyncCompletion(request, timings, start));
+                async = true;
+            }
+        } finally {
+            RequestTimings.end();
+            if (!async) {
+                record(request, timings, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void record(Request request, RequestTimings timings, long elapsed) {
+        String uri = request.getRequestURI();
+
+        UriPattern matched = other;
+        if (uri != null) {
+            for (UriPattern p : patterns) {
+                if (p.matches(uri)) {
+                    matched = p;
+                    break;
+                }
+            }
+        }
+        matched.times.record(elapsed);
+
+        for (Phase phase : Phase.values()) {
+            phaseTimes[phase.ordinal()].record(timings.get(phase));
+        }
+
+        if (elapsed > thresholdNanos) {
+            SlowOperationReporter.report(name, elapsed, uri, timings.toString());
+        }
     }
 
+    /**
+     * @return request time statistics per URI pattern and session phase time statistics
+     */
+    public String[] getTimings() {
+        List<String> result = new ArrayList<>();
+        for (UriPattern p : patterns) {
+            result.add(p.pattern + ": " + p.times.summary("ms", NANOS_IN_MILLI));
+        }
+        result.add(OTHER + ": " + other.times.summary("ms", NANOS_IN_MILLI));
+        for (Phase phase : Phase.values()) {
+            result.add(phase + ": " + phaseTimes[phase.ordinal()].summary("ms", NANOS_IN_MILLI));
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    public long getDroppedReports() {
+        return SlowOperationReporter.getDropped();
+    }
+
+    public void resetTimings() {
+        for (UriPattern p : patterns) {
+            p.times.reset();
+        }
+        other.times.reset();
+        for (Histogram h : phaseTimes) {
+            h.reset();
+        }
+    }
 }
@@ -0,0 +1,85 @@
+package ee.neotech.util;
+
+/**
+ * Per thread accumulator of time spent in specific phases of request processing.
+ * <p>
+ * Timings are collected only between {@link #begin()} and {@link #end()} calls on the same thread (e.g. by {@link MeasureValve}),
+ * otherwise {@link #add(Phase, long)} is a cheap no-op. Calls could be nested (e.g. valves of engine and context), time is added to
+ * all timings begun on the thread. Timings stay valid after {@link #end()}, so they could be read when asynchronous request completes,
+ * but time spent by other threads processing the request is not collected.
+ * </p>
+ */
+public final class RequestTimings {
+
+    public enum Phase {
+        /** waiting for session to be available (session cache lock) */
+        LOCK_WAIT,
+        /** session store I/O (load, save, expire, delete) */
+        STORE_IO,
+        /** session serialization and deserialization */
+        SERIALIZATION
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private static final ThreadLocal<RequestTimings> CURRENT = new ThreadLocal<>();
+
+    private final long[] nanos = new long[PHASES.length];
+    /** timings begun earlier on the same thread */
+    private final RequestTimings outer;
+
+    private RequestTimings(RequestTimings outer) {
+        this.outer = outer;
+    }
+
+    /**
+     * Starts collecting timings on the current thread
+     * @return new timings, nested in timings already collected by the thread
+     */
+    public static RequestTimings begin() {
+        RequestTimings timings = new RequestTimings(CURRENT.get());
+        CURRENT.set(timings);
+        return timings;
+    }
+
+    /**
+     * Stops collecting timings returned by the last {@link #begin()} on the current thread
+     */
+    public static void end() {
+        RequestTimings timings = CURRENT.get();
+        if (timings != null) {
+            if (timings.outer != null) {
+                CURRENT.set(timings.outer);
+            } else {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    /**
+     * Adds time to the phase of the request processed by current thread, if timings are collected.
+     * @param phase
+     * @param nanos
+     */
+    public static void add(Phase phase, long nanos) {
+        for (RequestTimings timings = CURRENT.get(); timings != null; timings = timings.outer) {
+            timings.nanos[phase.ordinal()] += nanos;
+        }
+    }
+
+    public long get(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : PHASES) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(phase).append('=').append(nanos[phase.ordinal()] / 1000000).append("ms");
+        }
+        return sb.toString();
+    }
+}
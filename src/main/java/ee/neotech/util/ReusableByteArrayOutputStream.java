@@ -0,0 +1,132 @@
+package ee.neotech.util;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Growable byte array output stream which is meant to be reused by a single thread.
+ * <p>
+ * Unlike {@link java.io.ByteArrayOutputStream} it is not synchronized, allows to pre-size the buffer before writing
+ * and exposes written content without copying it (see {@link #buffer()}, {@link #contentEquals(byte[])}).
+ * </p>
+ */
+public class ReusableByteArrayOutputStream extends OutputStream {
+
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private byte[] buf;
+    private int count;
+
+    public ReusableByteArrayOutputStream(int initialCapacity) {
+        this.buf = new byte[initialCapacity];
+    }
+
+    /**
+     * Discards written content and makes sure that at least <code>expectedSize</code> bytes could be written without growing the buffer.
+     * @param expectedSize
+     */
+    public void reset(int expectedSize) {
+        count = 0;
+        if (expectedSize > buf.length) {
+            buf = new byte[expectedSize];
+        }
+    }
+
+    public void reset() {
+        count = 0;
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity - buf.length > 0) {
+            int newCapacity = buf.length << 1;
+            if (newCapacity - minCapacity < 0) {
+                newCapacity = minCapacity;
+            }
+            if (newCapacity - MAX_ARRAY_SIZE > 0) {
+                if (minCapacity < 0) {
+                    throw new OutOfMemoryError();
+                }
+                newCapacity = MAX_ARRAY_SIZE;
+            }
+            buf = Arrays.copyOf(buf, newCapacity);
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count] = (byte) b;
+        count += 1;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) - b.length > 0)) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * @return number of bytes written since last reset
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return current capacity of internal buffer
+     */
+    public int capacity() {
+        return buf.length;
+    }
+
+    /**
+     * Internal buffer. Only first {@link #size()} bytes are valid. Content is overwritten on the next use of the stream.
+     * @return
+     */
+    public byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * @return copy of written content
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * Compares written content with given array without copying it.
+     * @param other
+     * @return true, if written content is equal to the array content
+     */
+    public boolean contentEquals(byte[] other) {
+        return contentEquals(other, 0);
+    }
+
+    /**
+     * Compares written content with given array starting from <code>offset</code>, e.g. to ignore header.
+     * @param other
+     * @param offset
+     * @return true, if both have the same length and content after offset is equal
+     */
+    public boolean contentEquals(byte[] other, int offset) {
+        if (other == null || other.length != count) {
+            return false;
+        }
+        for (int i = offset; i < count; i++) {
+            if (buf[i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        // nothing to close, stream stays reusable
+    }
+}
@@ -1,130 +1,1111 @@
 package ee.neotech.util;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
-import ee.neotech.util.IdentityLock.Lock;
+import ee.neotech.util.RequestTimings.Phase;
 
 /**
  * Cache for items that are concurrently accessed by several threads. Item loading/unloading mechanism must be provided by inherited classes.
+ * <p>
+ * Loading is single-flight: if several threads request the same missing item, only one of them calls {@link #load(Object)}, the others
+ * wait for its result (at most {@link #setLoadWaitTimeout(long)} ms). Item is not available while it is being unloaded, so a new load
+ * always sees the result of the previous unload. Operations on different keys never block each other.
+ * </p>
+ * <p>
+ * Items are held by {@link Lease}s. A lease is not bound to a thread, so it could be released by any thread (e.g. after async request
+ * processing is completed by a container thread). Item is unloaded when its last lease is released. Leases that are not released until
+ * their expiration are force-released by {@link #reapExpiredLeases()}.
+ * </p>
+ * <p>
+ * By default all leases share the cached item. With {@link #setExclusiveAccess(boolean)} enabled an item is leased to one holder at a time,
+ * others wait (at most {@link #setAccessWaitTimeout(long)} ms) and receive the item directly on release, without unload/load in between.
+ * </p>
+ * <p>
+ * Items held for a long time could be persisted without eviction using {@link #checkpoint(long, int)}.
+ * </p>
+ * <p>
+ * Frequently used items could be kept in cache after their last lease is released, see {@link #retainOnRelease(Object, Object)}. Such
+ * items are persisted on release and revalidated by {@link #revalidate(Object, Object)} before they are leased again.
+ * </p>
+ * <p>
+ * Memory held by items could be bounded by {@link #setMaxWeight(long)}, item weights are provided by {@link #weigh(Object)}. Over the
+ * budget cache sheds weight: unleased retained items are unloaded early, others are compacted by {@link #compact(Object, Object)},
+ * and loads of new items are refused with {@link OverBudgetException} until weight is back within the budget.
+ * </p>
  *
  * @param <K>
  * @param <T>
  */
 public abstract class SharedAccessCache<K,T> {
-    
+
     private final Log log = LogFactory.getLog(SharedAccessCache.class);
-    
+
     private final static long CRITICAL_AGE = TimeUnit.MINUTES.toMillis(2);
-    
-    static class CacheItem<T> {
-        final T data;
-        final Set<Thread> accessedBy;
-        final long timestamp;
-        
-        public CacheItem(T data) {
+    /** Minimum time between sheds run by {@link #shedIfDue()} */
+    private final static long SHED_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    enum State {
+        /** being loaded by one of the threads */
+        LOADING,
+        /** loaded and available */
+        ACTIVE,
+        /** being unloaded, will be removed */
+        UNLOADING,
+        /** removed from cache after unload */
+        UNLOADED,
+        /** load found nothing */
+        NOT_FOUND,
+        /** load failed with exception */
+        FAILED
+    }
+
+    /**
+     * Thrown when item is not loaded (or unloaded) by another thread within load wait timeout
+     */
+    public static class WaitTimeoutException extends RuntimeException {
+        private static final long serialVersionUID = -2990716223151106020L;
+
+        public WaitTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when a new item is not loaded because cache exceeds its weight budget
+     */
+    public static class OverBudgetException extends RuntimeException {
+        private static final long serialVersionUID = 6218735190233170951L;
+
+        public OverBudgetException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Holds cached item until closed. Lease may be closed by any thread, closing it more than once has no effect.
+     */
+    public static final class Lease<K,T> implements AutoCloseable {
+        private final SharedAccessCache<K,T> cache;
+        private final K key;
+        private final CacheItem<K,T> item;
+        private final long acquired;
+        private final String acquiredBy;
+        private volatile long expires;
+        /** guarded by item lock */
+        private boolean released;
+        /** next lease of the same item, guarded by item lock */
+        private Lease<K,T> next;
+
+        Lease(SharedAccessCache<K,T> cache, K key, CacheItem<K,T> item, long timeout) {
+            this.cache = cache;
+            this.key = key;
+            this.item = item;
+            this.acquired = System.currentTimeMillis();
+            this.acquiredBy = Thread.currentThread().getName();
+            this.expires = timeout > 0 ? acquired + timeout : Long.MAX_VALUE;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public T data() {
+            return item.data;
+        }
+
+        /**
+         * @return time when lease was acquired
+         */
+        public long getAcquired() {
+            return acquired;
+        }
+
+        /**
+         * Changes lease expiration.
+         * @param timeout time in milliseconds from now until lease is force-released by {@link SharedAccessCache#reapExpiredLeases()}. 0 - never
+         */
+        public void renew(long timeout) {
+            this.expires = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        }
+
+        /**
+         * @return true if lease is released or item was removed from cache
+         */
+        public boolean isReleased() {
+            item.lock.lock();
+            try {
+                return released || item.state != State.ACTIVE;
+            } finally {
+                item.lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            cache.release(this);
+        }
+
+        @Override
+        public String toString() {
+            return "Lease [key=" + key + ", acquiredBy=" + acquiredBy + ", age=" + (System.currentTimeMillis() - acquired) + "ms]";
+        }
+    }
+
+    static class CacheItem<K,T> {
+        /** guards item state and leases */
+        final ReentrantLock lock = new ReentrantLock();
+        /** signalled on transition from LOADING/UNLOADING state */
+        final Condition settled = lock.newCondition();
+
+        State state;
+        T data;
+        Throwable failure;
+        /** number of threads waiting for the item to be loaded or for exclusive access */
+        int waiters;
+        /** number of running checkpoints (persists, compactions), item is not unloaded while checkpoint is in progress. At most one runs at a time */
+        int checkpoints;
+        /** last lease was released during checkpoint, release is completed when checkpoint ends */
+        boolean releasePending;
+        /** outstanding leases, linked through {@link Lease#next} */
+        Lease<K,T> leases;
+        int leaseCount;
+        long timestamp;
+        volatile long checkpointed;
+        /** item without leases is not unloaded until this time, see {@link SharedAccessCache#retain} */
+        long retainUntil;
+        /** item is kept in cache on release and must be revalidated before it is leased again, see {@link SharedAccessCache#retainOnRelease} */
+        boolean retainedOnRelease;
+        /** weight accounted for the item, see {@link SharedAccessCache#weigh} */
+        long weight;
+
+        CacheItem(State state, T data) {
+            this.state = state;
             this.data = data;
             this.timestamp = System.currentTimeMillis();
-            this.accessedBy = new HashSet<>();
+            this.checkpointed = this.timestamp;
         }
+
+        void addLease(Lease<K,T> lease) {
+            lease.next = leases;
+            leases = lease;
+            leaseCount++;
+        }
+
+        boolean removeLease(Lease<K,T> lease) {
+            Lease<K,T> prev = null;
+            for (Lease<K,T> l = leases; l != null; prev = l, l = l.next) {
+                if (l == lease) {
+                    if (prev == null) {
+                        leases = l.next;
+                    } else {
+                        prev.next = l.next;
+                    }
+                    l.next = null;
+                    leaseCount--;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String describeLeases() {
+            StringBuilder sb = new StringBuilder("[");
+            for (Lease<K,T> l = leases; l != null; l = l.next) {
+                sb.append(sb.length() > 1 ? ", " : "").append(l.acquiredBy).append(" ").append(System.currentTimeMillis() - l.acquired).append("ms");
+            }
+            return sb.append("]").toString();
+        }
+    }
+
+    private final ConcurrentMap<K, CacheItem<K,T>> items = new ConcurrentHashMap<>();
+
+    private volatile long loadWaitTimeout = TimeUnit.SECONDS.toMillis(30);
+
+    private volatile boolean exclusiveAccess = false;
+
+    private volatile long accessWaitTimeout = TimeUnit.SECONDS.toMillis(30);
+
+    private volatile long leaseTimeout = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder waitTimeouts = new LongAdder();
+    private final LongAdder expiredLeases = new LongAdder();
+    private final AtomicInteger retainedOnRelease = new AtomicInteger();
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicBoolean shedding = new AtomicBoolean();
+    private volatile long lastShed;
+    private final LongAdder budgetRejections = new LongAdder();
+
+    private volatile long maxWeight = 0;
+    private final Histogram concurrentAccess = new Histogram();
+
+    /**
+     * @param loadWaitTimeout maximum time in milliseconds to wait for an item being loaded or unloaded by another thread
+     */
+    public void setLoadWaitTimeout(long loadWaitTimeout) {
+        this.loadWaitTimeout = loadWaitTimeout;
+    }
+
+    public long getLoadWaitTimeout() {
+        return loadWaitTimeout;
+    }
+
+    /**
+     * @param exclusiveAccess if true, item is leased to one holder at a time. Acquiring second lease of the same item waits for the first one to be released
+     */
+    public void setExclusiveAccess(boolean exclusiveAccess) {
+        this.exclusiveAccess = exclusiveAccess;
+    }
+
+    public boolean isExclusiveAccess() {
+        return exclusiveAccess;
+    }
+
+    /**
+     * @param accessWaitTimeout maximum time in milliseconds to wait for exclusive access to an item leased by another holder
+     */
+    public void setAccessWaitTimeout(long accessWaitTimeout) {
+        this.accessWaitTimeout = accessWaitTimeout;
+    }
+
+    public long getAccessWaitTimeout() {
+        return accessWaitTimeout;
+    }
+
+    /**
+     * @param leaseTimeout default expiration in milliseconds of new leases, could be changed by {@link Lease#renew(long)}. 0 - leases never expire
+     */
+    public void setLeaseTimeout(long leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    public long getLeaseTimeout() {
+        return leaseTimeout;
     }
 
-    private final Map<K, CacheItem<T>> items = new ConcurrentHashMap<>();
-    private final IdentityLock<K> itemLocks = new IdentityLock<K>();
+    /**
+     * @param maxWeight total weight of cached items, exceeding which cache sheds weight and refuses to load new items. 0 - unbounded
+     */
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return true if total weight of cached items exceeds the budget
+     */
+    public boolean isOverBudget() {
+        long max = maxWeight;
+        return max > 0 && weight.get() > max;
+    }
+
+    /**
+     * Acquires lease of the item, loading it if it is not cached yet. Lease must be closed when item is no longer used,
+     * otherwise item stays in cache until lease expires.
+     *
+     * @param key
+     * @return lease of the item or null, if item can not be found
+     */
+    public Lease<K,T> acquire(K key) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(loadWaitTimeout);
 
-    public T get(K key) {
-        try (Lock lock = itemLocks.lock(key)) {
-            CacheItem<T> cacheItem = items.get(key);
+        while (true) {
+            CacheItem<K,T> cacheItem = items.get(key);
 
             if (cacheItem == null) {
-                T data = load(key);
+                if (isOverBudget()) {
+                    shedIfDue();
+                }
+                if (isOverBudget()) {
+                    budgetRejections.increment();
+                    throw new OverBudgetException("Item " + key + " is not loaded, cache weight " + weight.get() + " exceeds budget " + maxWeight);
+                }
+                CacheItem<K,T> loading = new CacheItem<>(State.LOADING, null);
+                cacheItem = items.putIfAbsent(key, loading);
+                if (cacheItem == null) {
+                    misses.increment();
+                    return loadItem(key, loading);
+                }
+            }
 
-                if (data == null) {
+            long lockStart = System.nanoTime();
+            boolean revalidate = false;
+            cacheItem.lock.lock();
+            try {
+                awaitSettled(key, cacheItem, deadline);
+                if (cacheItem.state == State.ACTIVE) {
+                    awaitExclusive(key, cacheItem);
+                }
+                RequestTimings.add(Phase.LOCK_WAIT, System.nanoTime() - lockStart);
+
+                switch (cacheItem.state) {
+                case ACTIVE:
+                    if (cacheItem.retainedOnRelease && cacheItem.leaseCount == 0 && cacheItem.checkpoints == 0) {
+                        // nobody uses the item, it could be changed elsewhere since it was released. Others wait as for a load
+                        cacheItem.state = State.LOADING;
+                        revalidate = true;
+                        break;
+                    }
+                    hits.increment();
+                    long age = System.currentTimeMillis() - cacheItem.timestamp;
+                    if (age > CRITICAL_AGE) {
+                        log.warn("Critical age ("+age+"ms) for cache item "+cacheItem.data+" is reached. Leased by: "+cacheItem.describeLeases());
+                    }
+                    return lease(key, cacheItem);
+                case NOT_FOUND:
+                    // nothing is served, concurrent load of a missing item is not a hit
+                    misses.increment();
                     return null;
+                case FAILED:
+                    throw new IllegalStateException("Concurrent load of item " + key + " failed", cacheItem.failure);
+                default:
+                    // unloaded, load again
+                }
+            } finally {
+                cacheItem.lock.unlock();
+            }
+
+            if (revalidate) {
+                Lease<K,T> lease = revalidateItem(key, cacheItem);
+                if (lease != null) {
+                    return lease;
                 }
+                // stale item is dropped, load again
+            }
+        }
+    }
 
-                cacheItem = new CacheItem<>(data);
-                items.put(key, cacheItem);
-            } else {
-                long age = System.currentTimeMillis() - cacheItem.timestamp;
-                if (age > CRITICAL_AGE) {
-                    log.warn("Critical age ("+age+"ms) for cache item "+cacheItem.data+" is reached. Accessed by threads: "+cacheItem.accessedBy);
+    private Lease<K,T> revalidateItem(K key, CacheItem<K,T> cacheItem) {
+        boolean valid;
+        try {
+            valid = revalidate(key, cacheItem.data);
+        } catch (RuntimeException e) {
+            log.warn("Failed to revalidate cache item " + key + ", item is reloaded", e);
+            valid = false;
+        }
+
+        if (!valid) {
+            // item is dropped without unload, it must not overwrite newer state
+            settle(key, cacheItem, State.UNLOADED, null, null);
+            return null;
+        }
+
+        cacheItem.lock.lock();
+        try {
+            cacheItem.state = State.ACTIVE;
+            cacheItem.settled.signalAll();
+            hits.increment();
+            return lease(key, cacheItem);
+        } finally {
+            cacheItem.lock.unlock();
+        }
+    }
+
+    private Lease<K,T> loadItem(K key, CacheItem<K,T> loading) {
+        T data;
+        try {
+            data = load(key);
+        } catch (RuntimeException | Error e) {
+            settle(key, loading, State.FAILED, null, e);
+            throw e;
+        }
+
+        if (data == null) {
+            settle(key, loading, State.NOT_FOUND, null, null);
+            return null;
+        }
+
+        Lease<K,T> lease;
+        loading.lock.lock();
+        try {
+            loading.data = data;
+            loading.state = State.ACTIVE;
+            loading.timestamp = System.currentTimeMillis();
+            loading.checkpointed = loading.timestamp;
+            reweigh(loading);
+            loading.settled.signalAll();
+            lease = lease(key, loading);
+        } finally {
+            loading.lock.unlock();
+        }
+
+        if (isOverBudget()) {
+            shedIfDue();
+        }
+        if (isOverBudget()) {
+            // leased item could not be unloaded, it is compacted even if shedding is not due
+            loading.lock.lock();
+            try {
+                if (loading.state != State.ACTIVE || loading.checkpoints > 0) {
+                    return lease;
                 }
+                loading.checkpoints++;
+            } finally {
+                loading.lock.unlock();
             }
-            
-            cacheItem.accessedBy.add(Thread.currentThread());
+            try {
+                compact(key, data);
+            } catch (RuntimeException e) {
+                log.error("Failed to compact cache item " + key, e);
+            } finally {
+                endCheckpoint(key, loading);
+            }
+        }
+        return lease;
+    }
+
+    /** Moves item to final state and removes it from cache */
+    private void settle(K key, CacheItem<K,T> cacheItem, State state, T data, Throwable failure) {
+        cacheItem.lock.lock();
+        try {
+            items.remove(key, cacheItem);
+            weight.addAndGet(-cacheItem.weight);
+            cacheItem.weight = 0;
+            if (cacheItem.retainedOnRelease) {
+                cacheItem.retainedOnRelease = false;
+                retainedOnRelease.decrementAndGet();
+            }
+            cacheItem.state = state;
+            cacheItem.data = data;
+            cacheItem.failure = failure;
+            cacheItem.settled.signalAll();
+        } finally {
+            cacheItem.lock.unlock();
+        }
+    }
+
+    /** Updates weight of the item after its data has changed. Must be called while holding item lock */
+    private void reweigh(CacheItem<K,T> cacheItem) {
+        long w = cacheItem.data != null ? weigh(cacheItem.data) : 0;
+        weight.addAndGet(w - cacheItem.weight);
+        cacheItem.weight = w;
+    }
+
+    /** Must be called while holding item lock */
+    private Lease<K,T> lease(K key, CacheItem<K,T> cacheItem) {
+        Lease<K,T> lease = new Lease<>(this, key, cacheItem, leaseTimeout);
+        if (!cacheItem.retainedOnRelease) {
+            // retention set by retain() only covers time until the item is leased, last release unloads it as usual
+            cacheItem.retainUntil = 0;
+        }
+        cacheItem.releasePending = false;
+        cacheItem.addLease(lease);
+        concurrentAccess.record(cacheItem.leaseCount);
+        return lease;
+    }
+
+    /** Must be called while holding item lock */
+    private void awaitSettled(K key, CacheItem<K,T> cacheItem, long deadline) {
+        if (cacheItem.state != State.LOADING && cacheItem.state != State.UNLOADING) {
+            return;
+        }
+
+        // registered waiters prevent item loaded for them from being unloaded by the loading thread before they get it
+        cacheItem.waiters++;
+        try {
+            while (cacheItem.state == State.LOADING || cacheItem.state == State.UNLOADING) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    waitTimeouts.increment();
+                    throw new WaitTimeoutException("Timed out after " + loadWaitTimeout + "ms waiting for item " + key + " in state " + cacheItem.state);
+                }
+                try {
+                    cacheItem.settled.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Thread interrupted", e);
+                }
+            }
+        } finally {
+            cacheItem.waiters--;
+        }
+    }
 
-            return cacheItem.data;
+    /**
+     * In exclusive access mode waits until all leases of the item are released. Must be called while holding item lock.
+     * Item state may change while waiting.
+     */
+    private void awaitExclusive(K key, CacheItem<K,T> cacheItem) {
+        if (!exclusiveAccess) {
+            return;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(accessWaitTimeout);
+        boolean interrupted = false;
+        cacheItem.waiters++;
+        try {
+            // releasing thread hands the item over to waiters without unloading it, so waiter may only give up while item is leased by others
+            while (cacheItem.state == State.ACTIVE && cacheItem.leaseCount > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    waitTimeouts.increment();
+                    throw new WaitTimeoutException("Timed out after " + accessWaitTimeout + "ms waiting for exclusive access to item " + key);
+                }
+                try {
+                    cacheItem.settled.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            cacheItem.waiters--;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
-    
+
     /**
-     * puts value in a cache if it is not there yet. Otherwise return current value in cache
+     * puts value in a cache if it is not there yet. Otherwise leases current value in cache
      * @param key
      * @param value
-     * @return
+     * @return lease of the value in cache
      */
-    public T putnx(K key, T value) {
-        try (Lock lock = itemLocks.lock(key)) {
+    public Lease<K,T> putnx(K key, T value) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(loadWaitTimeout);
 
-            CacheItem<T> cacheItem = items.get(key);
+        while (true) {
+            CacheItem<K,T> cacheItem = items.get(key);
 
             if (cacheItem == null) {
-                cacheItem = new CacheItem<>(value);
-                items.put(key, cacheItem);
+                CacheItem<K,T> created = new CacheItem<>(State.ACTIVE, value);
+                Lease<K,T> lease = lease(key, created);
+                created.lock.lock();
+                try {
+                    cacheItem = items.putIfAbsent(key, created);
+                    if (cacheItem == null) {
+                        reweigh(created);
+                        return lease;
+                    }
+                } finally {
+                    created.lock.unlock();
+                }
             }
 
-            cacheItem.accessedBy.add(Thread.currentThread());
-            
-            return cacheItem.data;
+            long lockStart = System.nanoTime();
+            cacheItem.lock.lock();
+            try {
+                awaitSettled(key, cacheItem, deadline);
+                if (cacheItem.state == State.ACTIVE) {
+                    awaitExclusive(key, cacheItem);
+                }
+                RequestTimings.add(Phase.LOCK_WAIT, System.nanoTime() - lockStart);
+
+                if (cacheItem.state == State.ACTIVE) {
+                    return lease(key, cacheItem);
+                }
+                // not in cache anymore, try to put again
+            } finally {
+                cacheItem.lock.unlock();
+            }
         }
     }
 
     /**
-     * Item is locked in cache by get()/putnx(). Should be released later by the same thread using release() or it will stuck in cache forever.
-     * 
+     * Releases the lease. Item is unloaded when its last lease is released. Could be called by any thread.
+     *
+     * @param lease
+     */
+    public void release(Lease<K,T> lease) {
+        CacheItem<K,T> cacheItem = lease.item;
+        boolean persist = false;
+
+        cacheItem.lock.lock();
+        try {
+            if (lease.released) {
+                return;
+            }
+            lease.released = true;
+            if (cacheItem.state != State.ACTIVE || !cacheItem.removeLease(lease) || cacheItem.leaseCount > 0) {
+                return;
+            }
+            if (cacheItem.waiters > 0) {
+                // hand item over to threads waiting for it
+                cacheItem.settled.signalAll();
+                return;
+            }
+            reweigh(cacheItem);
+            if (cacheItem.checkpoints > 0) {
+                // checkpoint could have missed changes made by the lease, item is persisted or unloaded when it ends
+                cacheItem.releasePending = true;
+                return;
+            }
+            persist = completeRelease(lease.key, cacheItem);
+        } finally {
+            cacheItem.lock.unlock();
+        }
+
+        if (persist) {
+            persistItem(lease.key, cacheItem);
+        } else {
+            unloadItem(lease.key, cacheItem);
+        }
+    }
+
+    /**
+     * Must be called while holding item lock, once the item has no leases and no checkpoint runs.
+     *
+     * @return true if item is kept in cache and must be persisted by {@link #persistItem}, otherwise it must be unloaded
+     */
+    private boolean completeRelease(K key, CacheItem<K,T> cacheItem) {
+        long now = System.currentTimeMillis();
+        boolean overBudget = isOverBudget();
+        long retainMillis = overBudget ? 0 : retainOnRelease(key, cacheItem.data);
+        if (retainMillis > 0) {
+            // persisted like by checkpoint, so the item is available to other threads meanwhile
+            cacheItem.retainUntil = Math.max(cacheItem.retainUntil, now + retainMillis);
+            if (!cacheItem.retainedOnRelease) {
+                cacheItem.retainedOnRelease = true;
+                retainedOnRelease.incrementAndGet();
+            }
+            cacheItem.checkpoints++;
+            cacheItem.checkpointed = now;
+            return true;
+        }
+        cacheItem.state = State.UNLOADING;
+        return false;
+    }
+
+    private void persistItem(K key, CacheItem<K,T> cacheItem) {
+        try {
+            persist(key, cacheItem.data);
+        } catch (RuntimeException e) {
+            log.error("Failed to persist cache item " + key, e);
+        } finally {
+            endCheckpoint(key, cacheItem);
+        }
+    }
+
+    /**
+     * Puts already loaded item in cache without leasing it, e.g. to make upcoming {@link #acquire(Object)} calls hits.
+     * Item stays in cache for at least <code>retainMillis</code> while it is not leased, then it is unloaded by {@link #evictRetained()}.
+     * Once leased, item is unloaded by release of its last lease as if it was loaded by {@link #acquire(Object)}.
+     *
      * @param key
+     * @param value
+     * @param retainMillis minimum time in milliseconds to keep item in cache
+     * @return false if item is already cached (or being loaded), value is not used then
+     */
+    public boolean retain(K key, T value, long retainMillis) {
+        if (isOverBudget()) {
+            return false;
+        }
+        CacheItem<K,T> created = new CacheItem<>(State.ACTIVE, value);
+        created.retainUntil = created.timestamp + retainMillis;
+        created.lock.lock();
+        try {
+            if (items.putIfAbsent(key, created) != null) {
+                return false;
+            }
+            reweigh(created);
+            return true;
+        } finally {
+            created.lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if item is in cache in any state
+     */
+    public boolean contains(K key) {
+        return items.containsKey(key);
+    }
+
+    /**
+     * Unloads items which are not leased and whose retention set by {@link #retain} is over.
+     *
+     * @return number of unloaded items
+     */
+    public int evictRetained() {
+        int count = 0;
+        for (Map.Entry<K, CacheItem<K,T>> entry : items.entrySet()) {
+            CacheItem<K,T> cacheItem = entry.getValue();
+            cacheItem.lock.lock();
+            try {
+                if (cacheItem.state != State.ACTIVE || cacheItem.retainUntil == 0 || cacheItem.retainUntil > System.currentTimeMillis()
+                        || cacheItem.leaseCount > 0 || cacheItem.waiters > 0 || cacheItem.checkpoints > 0) {
+                    continue;
+                }
+                cacheItem.state = State.UNLOADING;
+            } finally {
+                cacheItem.lock.unlock();
+            }
+
+            unloadItem(entry.getKey(), cacheItem);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Force-releases leases which are not released until their expiration. Each released lease is logged as a leak.
+     * 
+     * @return number of released leases
      */
-    public void release(K key) {
-        try (Lock lock = itemLocks.lock(key)) {
-            CacheItem<T> cacheItem = items.get(key);
-            if (cacheItem != null) {
-                cacheItem.accessedBy.remove(Thread.currentThread());
-                
-                if (cacheItem.accessedBy.isEmpty()) {                    
-                    items.remove(key);
-                    unload(key, cacheItem.data);
+    public int reapExpiredLeases() {
+        int count = 0;
+        long now = System.currentTimeMillis();
+        for (CacheItem<K,T> cacheItem : items.values()) {
+            List<Lease<K,T>> expired = null;
+            cacheItem.lock.lock();
+            try {
+                for (Lease<K,T> l = cacheItem.leases; l != null; l = l.next) {
+                    if (l.expires < now) {
+                        if (expired == null) {
+                            expired = new ArrayList<>();
+                        }
+                        expired.add(l);
+                    }
+                }
+            } finally {
+                cacheItem.lock.unlock();
+            }
+
+            if (expired != null) {
+                for (Lease<K,T> lease : expired) {
+                    log.warn("Force-releasing expired " + lease + " of cache item " + cacheItem.data + ". Lease was not released by its holder");
+                    release(lease);
+                    expiredLeases.increment();
+                    count++;
                 }
             }
         }
+        return count;
     }
 
     public void remove(K key) {
-        try (Lock lock = itemLocks.lock(key)) {
-            CacheItem<T> cacheItem = items.remove(key);
-            if (cacheItem != null) {                
-                unload(key, cacheItem.data);
+        CacheItem<K,T> cacheItem = items.get(key);
+        if (cacheItem == null) {
+            return;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(loadWaitTimeout);
+        cacheItem.lock.lock();
+        try {
+            awaitSettled(key, cacheItem, deadline);
+            if (cacheItem.state != State.ACTIVE) {
+                return;
             }
+            cacheItem.state = State.UNLOADING;
+        } finally {
+            cacheItem.lock.unlock();
         }
+
+        unloadItem(key, cacheItem);
     }
-    
-    /** called to load non-existing item in cache.
-     * <p>Synchronized by key
+
+    /**
+     * Calls {@link #checkpoint(Object, Object)} for items which are cached (or were last checkpointed) at least <code>minAge</code> ms ago.
+     * Items stay in cache and accessible by other threads during checkpoint, but are not unloaded until it ends.
+     * Items being checkpointed, persisted or compacted already are skipped.
      * 
+     * @param minAge minimum time in milliseconds since item was loaded or checkpointed
+     * @param maxItems maximum number of items to checkpoint
+     * @return number of checkpointed items
+     */
+    public int checkpoint(long minAge, int maxItems) {
+        int count = 0;
+        for (Map.Entry<K, CacheItem<K,T>> entry : items.entrySet()) {
+            if (count >= maxItems) {
+                break;
+            }
+
+            K key = entry.getKey();
+            CacheItem<K,T> cacheItem = entry.getValue();
+            long now = System.currentTimeMillis();
+            if (now - cacheItem.checkpointed < minAge) {
+                continue;
+            }
+
+            cacheItem.lock.lock();
+            try {
+                if (cacheItem.state != State.ACTIVE || cacheItem.checkpoints > 0) {
+                    continue;
+                }
+                cacheItem.checkpoints++;
+                cacheItem.checkpointed = now;
+            } finally {
+                cacheItem.lock.unlock();
+            }
+
+            try {
+                checkpoint(key, cacheItem.data);
+                count++;
+            } catch (RuntimeException e) {
+                log.error("Failed to checkpoint cache item " + key, e);
+            } finally {
+                endCheckpoint(key, cacheItem);
+            }
+        }
+        return count;
+    }
+
+    private void endCheckpoint(K key, CacheItem<K,T> cacheItem) {
+        boolean persist;
+        cacheItem.lock.lock();
+        try {
+            cacheItem.checkpoints--;
+            if (cacheItem.state == State.ACTIVE) {
+                reweigh(cacheItem);
+            }
+            if (cacheItem.state != State.ACTIVE || cacheItem.checkpoints > 0 || cacheItem.waiters > 0 || cacheItem.leaseCount > 0) {
+                return;
+            }
+            if (cacheItem.releasePending) {
+                // all leases released during checkpoint
+                cacheItem.releasePending = false;
+                persist = completeRelease(key, cacheItem);
+            } else if (cacheItem.retainUntil > System.currentTimeMillis()) {
+                return;
+            } else {
+                cacheItem.state = State.UNLOADING;
+                persist = false;
+            }
+        } finally {
+            cacheItem.lock.unlock();
+        }
+
+        if (persist) {
+            persistItem(key, cacheItem);
+        } else {
+            unloadItem(key, cacheItem);
+        }
+    }
+
+    /**
+     * Sheds weight unless shedding started within the last second. Used by threads acquiring items, so cache staying over budget is not
+     * scanned by each of them
+     *
+     * @return number of unloaded and compacted items
+     */
+    public int shedIfDue() {
+        if (System.currentTimeMillis() - lastShed < SHED_INTERVAL) {
+            return 0;
+        }
+        return shed();
+    }
+
+    /**
+     * Sheds weight until cache is within its budget: unloads retained items which are not leased and compacts others. Only one thread
+     * sheds at a time, concurrent calls return immediately.
+     *
+     * @return number of unloaded and compacted items
+     */
+    public int shed() {
+        if (!shedding.compareAndSet(false, true)) {
+            return 0;
+        }
+        lastShed = System.currentTimeMillis();
+        try {
+            int count = 0;
+            for (Map.Entry<K, CacheItem<K,T>> entry : items.entrySet()) {
+                if (!isOverBudget()) {
+                    break;
+                }
+                K key = entry.getKey();
+                CacheItem<K,T> cacheItem = entry.getValue();
+                boolean unload = false;
+                cacheItem.lock.lock();
+                try {
+                    if (cacheItem.state != State.ACTIVE || cacheItem.checkpoints > 0) {
+                        // compaction must not race with save of the item, it is left to a later shed
+                        continue;
+                    }
+                    if (cacheItem.retainUntil > 0 && cacheItem.leaseCount == 0 && cacheItem.waiters == 0) {
+                        cacheItem.state = State.UNLOADING;
+                        unload = true;
+                    } else {
+                        // item is not unloaded while being compacted
+                        cacheItem.checkpoints++;
+                    }
+                } finally {
+                    cacheItem.lock.unlock();
+                }
+
+                if (unload) {
+                    unloadItem(key, cacheItem);
+                } else {
+                    try {
+                        compact(key, cacheItem.data);
+                    } catch (RuntimeException e) {
+                        log.error("Failed to compact cache item " + key, e);
+                    } finally {
+                        endCheckpoint(key, cacheItem);
+                    }
+                }
+                count++;
+            }
+            return count;
+        } finally {
+            shedding.set(false);
+        }
+    }
+
+    /** Item must be in UNLOADING state, so no other thread could access it */
+    private void unloadItem(K key, CacheItem<K,T> cacheItem) {
+        try {
+            unload(key, cacheItem.data);
+        } finally {
+            settle(key, cacheItem, State.UNLOADED, null, null);
+        }
+    }
+
+    /**
+     * @return number of acquire() calls served by already cached items or by concurrent load of an existing item
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of acquire() calls which required loading or found no item, also if they waited for concurrent load of it
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of times waiting for concurrent load/unload timed out
+     */
+    public long getWaitTimeouts() {
+        return waitTimeouts.sum();
+    }
+
+    /**
+     * @return number of leases force-released by {@link #reapExpiredLeases()}
+     */
+    public long getExpiredLeases() {
+        return expiredLeases.sum();
+    }
+
+    /**
+     * @return distribution of number of leases of an item at the moment it is acquired
+     */
+    public Histogram getConcurrentAccess() {
+        return concurrentAccess;
+    }
+
+    /**
+     * @return number of items currently kept in cache by {@link #retainOnRelease(Object, Object)}
+     */
+    public int getRetainedOnRelease() {
+        return retainedOnRelease.get();
+    }
+
+    /**
+     * @return total weight of cached items
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    /**
+     * @return number of loads refused because cache exceeded its weight budget
+     */
+    public long getBudgetRejections() {
+        return budgetRejections.sum();
+    }
+
+    /**
+     * @return number of currently cached items
+     */
+    public int size() {
+        return items.size();
+    }
+
+    /** called to load non-existing item in cache.
+     * <p>Only one thread loads an item at a time, other threads requesting it wait for the result.
+     * Never called concurrently with {@link #unload(Object, Object)} for the same key.
+     *
      * @param key
      * @return null, if item can not be found for specified key
      */
     protected abstract T load(K key);
-    
+
+    /**
+     * called to persist item state without removing it from cache. Default implementation does nothing.
+     * <p>Item is accessible by other threads during checkpoint. Never called concurrently with {@link #load(Object)}, {@link #unload(Object, Object)},
+     * {@link #persist(Object, Object)}, {@link #compact(Object, Object)} or another checkpoint for the same key.
+     * @param key
+     * @param item
+     */
+    protected void checkpoint(K key, T item) {
+    }
+
+    /**
+     * called to get weight of an item (e.g. its size in bytes) when it is put in cache and when it could have changed: on release and
+     * after checkpoint. Default implementation returns 0, cache is unbounded then.
+     * <p>Called while item lock is held, must be fast.
+     * @param item
+     * @return weight of the item
+     */
+    protected long weigh(T item) {
+        return 0;
+    }
+
+    /**
+     * called when cache exceeds its weight budget, to reduce weight of an item which stays in cache. Default implementation does nothing.
+     * <p>Item is accessible by other threads during compaction. Same guarantees as for checkpoint apply.
+     * @param key
+     * @param item
+     */
+    protected void compact(K key, T item) {
+    }
+
+    /**
+     * called when the last lease of an item is released, to decide if the item is kept in cache instead of being unloaded. Default implementation returns 0.
+     * <p>Kept item is persisted by {@link #persist(Object, Object)}, is unloaded by {@link #evictRetained()} after returned time
+     * and is revalidated by {@link #revalidate(Object, Object)} before it is leased again. Called while item lock is held, must be fast.
+     * @param key
+     * @param item
+     * @return time in milliseconds to keep item in cache without leases, 0 - unload item now
+     */
+    protected long retainOnRelease(K key, T item) {
+        return 0;
+    }
+
+    /**
+     * called to persist item kept in cache by {@link #retainOnRelease(Object, Object)}. Default implementation calls {@link #checkpoint(Object, Object)}.
+     * <p>Same guarantees as for checkpoint apply.
+     * @param key
+     * @param item
+     */
+    protected void persist(K key, T item) {
+        checkpoint(key, item);
+    }
+
+    /**
+     * called before item kept in cache by {@link #retainOnRelease(Object, Object)} is leased again. Default implementation returns true.
+     * <p>Item is not accessible to other threads during revalidation. Stale item is removed from cache without unload and is loaded again.
+     * @param key
+     * @param item
+     * @return false, if item is stale
+     */
+    protected boolean revalidate(K key, T item) {
+        return true;
+    }
+
     /**
-     * called when item is removed from cache (either by calling remove() or when all accessing threads have released that item)
-     * <p>Synchronized by key
+     * called when item is removed from cache (either by calling remove() or when all leases of that item are released)
+     * <p>Item is not accessible to other threads during unload. Never called concurrently with {@link #load(Object)} for the same key.
      * @param item
      */
     protected abstract void unload(K key, T item);
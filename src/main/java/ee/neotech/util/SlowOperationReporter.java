@@ -0,0 +1,177 @@
+package ee.neotech.util;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reports slow operations to {@link System#err} from a background thread.
+ * <p>
+ * Reporting threads only capture operation details into a fixed size ring buffer using a single CAS, all formatting and output
+ * is done by a daemon thread. If the buffer slot is still occupied (reporter is behind), the report is dropped and counted.
+ * </p>
+ * <p>
+ * The thread runs while the reporter is used by at least one component, see {@link #start()} and {@link #stop()} (e.g. called by
+ * {@link MeasureValve} lifecycle). While it is not running, reports are printed by the reporting thread.
+ * </p>
+ */
+public final class SlowOperationReporter {
+
+    private static final int CAPACITY = 1024;
+    private static final long DRAIN_INTERVAL_MILLIS = 100;
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+
+    static final class Report {
+        final String name;
+        final long timestamp;
+        final long durationNanos;
+        final String threadName;
+        final Object[] args;
+
+        Report(String name, long durationNanos, Object[] args) {
+            this.name = name;
+            this.timestamp = System.currentTimeMillis();
+            this.durationNanos = durationNanos;
+            this.threadName = Thread.currentThread().getName();
+            this.args = args;
+        }
+    }
+
+    private static final AtomicReferenceArray<Report> slots = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+
+    private static final Object lock = new Object();
+    /** number of components using the reporter, guarded by lock */
+    private static int users;
+    /** guarded by lock */
+    private static Thread thread;
+    private static volatile boolean running;
+
+    private SlowOperationReporter() {
+    }
+
+    /**
+     * Queues report of a slow operation. Never blocks.
+     * @param name operation name
+     * @param durationNanos operation duration
+     * @param args additional details, printed using {@link Arrays#toString(Object[])}
+     */
+    public static void report(String name, long durationNanos, Object... args) {
+        Report report = new Report(name, durationNanos, args);
+        if (!running) {
+            print(System.err, new SimpleDateFormat(DATE_FORMAT), Collections.singletonList(report));
+            return;
+        }
+        int index = (int) (sequence.getAndIncrement() & (CAPACITY - 1));
+        if (!slots.compareAndSet(index, null, report)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * @return number of reports dropped because reporter could not keep up
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Registers a user of the reporter, reporting thread is started by the first one
+     */
+    public static void start() {
+        synchronized (lock) {
+            if (users++ == 0) {
+                thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        drainLoop();
+                    }
+                }, "SlowOperationReporter");
+                thread.setDaemon(true);
+                thread.start();
+                running = true;
+            }
+        }
+    }
+
+    /**
+     * Unregisters a user of the reporter, reporting thread is stopped after the last one, printing queued reports
+     */
+    public static void stop() {
+        Thread stopped;
+        synchronized (lock) {
+            if (users == 0 || --users > 0) {
+                return;
+            }
+            running = false;
+            stopped = thread;
+            thread = null;
+        }
+
+        stopped.interrupt();
+        try {
+            stopped.join(DRAIN_INTERVAL_MILLIS * 10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static boolean isRunning() {
+        return running;
+    }
+
+    private static void drainLoop() {
+        SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+        List<Report> reports = new ArrayList<>();
+        boolean interrupted = false;
+        while (!interrupted) {
+            try {
+                Thread.sleep(DRAIN_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                // drain reports queued before stop
+                interrupted = true;
+            }
+
+            for (int i = 0; i < CAPACITY; i++) {
+                Report report = slots.getAndSet(i, null);
+                if (report != null) {
+                    reports.add(report);
+                }
+            }
+
+            if (!reports.isEmpty()) {
+                Collections.sort(reports, new Comparator<Report>() {
+                    @Override
+                    public int compare(Report o1, Report o2) {
+                        return Long.compare(o1.timestamp, o2.timestamp);
+                    }
+                });
+                print(System.err, format, reports);
+                reports.clear();
+            }
+        }
+    }
+
+    private static void print(PrintStream out, SimpleDateFormat format, List<Report> reports) {
+        StringBuilder sb = new StringBuilder();
+        for (Report report : reports) {
+            sb.append("# ").append(format.format(new Date(report.timestamp))).append(" # StopWatch [").append(report.name).append("] = ")
+                .append(report.durationNanos / 1000000).append("ms. Thread = ").append(report.threadName);
+            if (report.args != null && report.args.length > 0) {
+                sb.append(". Args = ").append(Arrays.toString(report.args));
+            }
+            sb.append(System.lineSeparator());
+        }
+        out.print(sb);
+        out.flush();
+    }
+}
@@ -1,42 +1,51 @@
 package ee.neotech.util;
 
-import java.text.MessageFormat;
-import java.util.Arrays;
-import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Measures duration of a code block and reports it via {@link SlowOperationReporter} if it exceeds the threshold.
+ * <pre><code>
+ * try (StopWatch sw = StopWatch.start("Operation", 200, arg1, arg2)) {
+ *   ...
+ * }
+ * </code></pre>
+ */
 public class StopWatch implements AutoCloseable {
 
-    private String name;
-    private long started;
-    private long reportThreshold;
-    private Object[] reportArgs;
+    private final String name;
+    private final long started;
+    private final long reportThresholdNanos;
+    private final Object[] reportArgs;
 
     private StopWatch(String name, long reportThreshold, Object... reportArgs) {
         this.name = name;
-        this.reportThreshold = reportThreshold;
+        this.reportThresholdNanos = TimeUnit.MILLISECONDS.toNanos(reportThreshold);
         this.reportArgs = reportArgs;
-        this.started = System.currentTimeMillis();
+        this.started = System.nanoTime();
+    }
+
+    /**
+     * @return nanoseconds passed since start
+     */
+    public long elapsedNanos() {
+        return System.nanoTime() - started;
     }
 
     @Override
     public void close() {
-        long stopped = System.currentTimeMillis();
-
-        if (stopped - started > reportThreshold) {
-            synchronized (System.err) {
-                String msg;
-                if (reportArgs.length > 0) {
-                    msg = MessageFormat.format("# {0, time, yyyy-MM-dd HH:mm:ss.SSS} # StopWatch [{1}] = {2}ms. Thread = {3}. Args = {4}", new Date(
-                            stopped), name, stopped - started, Thread.currentThread().getName(), Arrays.toString(reportArgs));                    
-                } else {
-                    msg = MessageFormat.format("# {0, time, yyyy-MM-dd HH:mm:ss.SSS} # StopWatch [{1}] = {2}ms. Thread={3}", new Date(stopped), name,
-                            stopped - started, Thread.currentThread().getName());
-                }
-                System.err.println(msg);
-            }
+        long elapsed = elapsedNanos();
+
+        if (elapsed > reportThresholdNanos) {
+            SlowOperationReporter.report(name, elapsed, reportArgs);
         }
     }
 
+    /**
+     * @param name operation name
+     * @param reportThreshold duration in milliseconds, exceeding which is reported
+     * @param reportArgs additional details to report
+     * @return started stop watch
+     */
     public static StopWatch start(String name, long reportThreshold, Object... reportArgs) {
         return new StopWatch(name, reportThreshold, reportArgs);
     }
@@ -0,0 +1,106 @@
+package ee.neotech.tomcat.session;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.pool2.BasePooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptivePoolSizerTest {
+
+    private static GenericObjectPool<Object> createPool(int maxTotal) {
+        GenericObjectPool<Object> pool = new GenericObjectPool<>(new BasePooledObjectFactory<Object>() {
+            @Override
+            public Object create() {
+                return new Object();
+            }
+
+            @Override
+            public PooledObject<Object> wrap(Object obj) {
+                return new DefaultPooledObject<>(obj);
+            }
+        });
+        pool.setMaxTotal(maxTotal);
+        pool.setMaxIdle(maxTotal);
+        return pool;
+    }
+
+    private static void borrow(AdaptivePoolSizer sizer, int count, long waitMillis) {
+        for (int i = 0; i < count; i++) {
+            sizer.borrowed(TimeUnit.MILLISECONDS.toNanos(waitMillis));
+        }
+    }
+
+    private static void release(AdaptivePoolSizer sizer, int count) {
+        for (int i = 0; i < count; i++) {
+            sizer.returned();
+        }
+    }
+
+    @Test
+    public void testGrowsOnSlowBorrows() {
+        GenericObjectPool<Object> pool = createPool(8);
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(8, 20, 0, 5);
+
+        // 1 slow borrow of 100 is within target
+        borrow(sizer, 99, 0);
+        borrow(sizer, 1, 10);
+        release(sizer, 100);
+        sizer.adjust(pool);
+        Assert.assertEquals(8, pool.getMaxTotal());
+
+        borrow(sizer, 8, 10);
+        release(sizer, 8);
+        sizer.adjust(pool);
+        Assert.assertEquals(12, pool.getMaxTotal());
+        Assert.assertEquals(12, pool.getMaxIdle());
+        // connections for the next burst are created in advance
+        Assert.assertEquals(8, pool.getMinIdle());
+        Assert.assertEquals(8, pool.getNumIdle());
+
+        for (int i = 0; i < 3; i++) {
+            borrow(sizer, 8, 10);
+            release(sizer, 8);
+            sizer.adjust(pool);
+        }
+        Assert.assertEquals(20, pool.getMaxTotal());
+    }
+
+    @Test
+    public void testShrinksWhenIdle() {
+        GenericObjectPool<Object> pool = createPool(32);
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(8, 64, 2, 5);
+
+        for (int i = 1; i < AdaptivePoolSizer.SHRINK_AFTER_INTERVALS; i++) {
+            borrow(sizer, 3, 0);
+            release(sizer, 3);
+            sizer.adjust(pool);
+        }
+        Assert.assertEquals(32, pool.getMaxTotal());
+
+        sizer.adjust(pool);
+        Assert.assertEquals(24, pool.getMaxTotal());
+        Assert.assertEquals(2, pool.getMinIdle());
+
+        for (int i = 0; i < 10 * AdaptivePoolSizer.SHRINK_AFTER_INTERVALS; i++) {
+            sizer.adjust(pool);
+        }
+        Assert.assertEquals(8, pool.getMaxTotal());
+    }
+
+    @Test
+    public void testBusyPoolIsKept() {
+        GenericObjectPool<Object> pool = createPool(16);
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(8, 64, 0, 5);
+
+        for (int i = 0; i < 2 * AdaptivePoolSizer.SHRINK_AFTER_INTERVALS; i++) {
+            borrow(sizer, 10, 0);
+            release(sizer, 10);
+            sizer.adjust(pool);
+        }
+        Assert.assertEquals(16, pool.getMaxTotal());
+    }
+}
@@ -0,0 +1,181 @@
+package ee.neotech.tomcat.session;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InMemorySessionManagerTest {
+
+    static class TestManager extends InMemorySessionManager {
+        long now = 1500000000000L;
+
+        TestManager() {
+            setContext(new StandardContext());
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    static class NotSerializable {
+    }
+
+    private static byte[] data(int size, int value) {
+        byte[] data = new byte[size];
+        data[0] = (byte) value;
+        return data;
+    }
+
+    @Test
+    public void testSaveLoadDelete() throws Exception {
+        TestManager manager = new TestManager();
+        Assert.assertNull(manager.load("a"));
+
+        manager.save("a", data(10, 1), 60);
+        Assert.assertEquals(1, manager.load("a")[0]);
+        Assert.assertEquals(1, manager.getActiveSessions());
+
+        manager.save("a", data(10, 2), 60);
+        Assert.assertEquals(2, manager.load("a")[0]);
+        Assert.assertEquals(10, manager.getResidentBytes());
+
+        manager.delete("a");
+        Assert.assertNull(manager.load("a"));
+        Assert.assertEquals(0, manager.getResidentBytes());
+    }
+
+    @Test
+    public void testLoadHeader() throws Exception {
+        TestManager manager = new TestManager();
+        manager.save("a", data(100, 1), 60);
+        Assert.assertEquals(SessionEnvelope.HEADER_SIZE, manager.loadHeader("a").length);
+        manager.save("b", data(10, 1), 60);
+        Assert.assertEquals(10, manager.loadHeader("b").length);
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        TestManager manager = new TestManager();
+        manager.save("a", data(10, 1), 10);
+        manager.save("b", data(10, 1), 10);
+        manager.save("c", data(10, 1), 0); // never expires
+
+        manager.now += 5000;
+        manager.expire("b", 10);
+
+        manager.now += 6000;
+        // expired sessions are not visible before background process runs
+        Assert.assertNull(manager.load("a"));
+        Assert.assertNotNull(manager.load("b"));
+
+        manager.processExpires(manager.now);
+        Assert.assertEquals(2, manager.getActiveSessions());
+
+        manager.now += 5000;
+        manager.processExpires(manager.now);
+        Assert.assertEquals(1, manager.getActiveSessions());
+        Assert.assertNotNull(manager.load("c"));
+        Assert.assertEquals(10, manager.getResidentBytes());
+
+        // expiring missing session does not create it
+        manager.expire("a", 10);
+        Assert.assertNull(manager.load("a"));
+    }
+
+    @Test
+    public void testExpirationBeyondWheelTurn() throws Exception {
+        TestManager manager = new TestManager();
+        manager.processExpires(manager.now);
+        manager.save("a", data(10, 1), 7200);
+
+        for (int i = 0; i < 7; i++) {
+            manager.now += 1000000;
+            manager.processExpires(manager.now);
+            Assert.assertEquals(1, manager.getActiveSessions());
+        }
+        manager.now += 300000;
+        manager.processExpires(manager.now);
+        Assert.assertEquals(0, manager.getActiveSessions());
+    }
+
+    @Test
+    public void testSpillLeastRecentlyUsed() throws Exception {
+        File dir = Files.createTempDirectory("spill-test").toFile();
+        TestManager manager = new TestManager();
+        manager.setMaxBytes(100);
+        manager.setSpillPath(dir.getPath());
+
+        for (int i = 0; i < 5; i++) {
+            manager.save("s" + i, data(30, i), 60);
+            manager.now += 1;
+        }
+        // request threads do not spill
+        Assert.assertEquals(150, manager.getResidentBytes());
+        Assert.assertEquals(0, manager.getSpilledSessions());
+
+        manager.processExpires(manager.now);
+        Assert.assertTrue(manager.getResidentBytes() <= 90);
+        Assert.assertEquals(2, manager.getSpilledSessions());
+        Assert.assertEquals(2, dir.list().length);
+
+        // oldest sessions are spilled, access reads them back to memory, background process spills others
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(i, manager.load("s" + i)[0]);
+            manager.now += 1;
+        }
+        Assert.assertEquals(0, manager.getSpilledSessions());
+        manager.processExpires(manager.now);
+        Assert.assertTrue(manager.getResidentBytes() <= 90);
+        Assert.assertEquals(2, manager.getSpilledSessions());
+        Assert.assertEquals(5, manager.getActiveSessions());
+        Assert.assertEquals(3, manager.load("s3")[0]);
+
+        for (int i = 0; i < 5; i++) {
+            manager.delete("s" + i);
+        }
+        Assert.assertEquals(0, manager.getResidentBytes());
+        Assert.assertEquals(0, dir.list().length);
+        dir.delete();
+    }
+
+    @Test
+    public void testTemporarySpillDirectoryDeletedOnStop() throws Exception {
+        InMemorySessionManager manager = new InMemorySessionManager();
+        manager.setMaxBytes(10);
+        Tomcat tomcat = RedisLoadHarness.startTomcat(manager, Files.createTempDirectory("in-memory-test").toFile());
+        manager.save("a", data(30, 1), 60);
+        manager.save("b", data(30, 2), 60);
+        manager.processExpires();
+        Assert.assertEquals(2, manager.getSpilledSessions());
+        File dir = manager.getSpillDirectory();
+        Assert.assertEquals(2, dir.list().length);
+
+        tomcat.stop();
+        tomcat.destroy();
+        Assert.assertFalse(dir.exists());
+    }
+
+    @Test
+    public void testSerializationAsOtherStores() throws Exception {
+        TestManager manager = new TestManager();
+        NonStickySession session = new NonStickySession(null);
+        session.setId("session-id", false);
+        session.setManager(manager);
+        session.setValid(true);
+        session.setMaxInactiveInterval(1800);
+        session.setAttribute("string", "value");
+        session.setAttribute("object", new NotSerializable());
+
+        manager.save("session-id", manager.toBinary(session), 1800);
+        NonStickySession read = manager.fromBinary(manager.load("session-id"));
+
+        Assert.assertEquals("value", read.getAttribute("string"));
+        Assert.assertNull("Not serializable attributes are lost as with other stores", read.getAttribute("object"));
+    }
+}
@@ -0,0 +1,242 @@
+package ee.neotech.tomcat.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.startup.Tomcat;
+
+import ee.neotech.util.Histogram;
+
+/**
+ * Drives {@link RedisSessionManager} through an embedded Tomcat backed by {@link RedisStub}, no external Redis required.
+ * <p>
+ * Each virtual user keeps its own session and sends requests one after another: request finds the session (or creates it on first
+ * request) and updates a counter attribute, so every request loads and saves the session. Throughput, latency percentiles, retries and
+ * Redis command counts are reported at the end. Not run as part of the test suite. Settings are system properties:
+ * </p>
+ * <ul>
+ * <li>users - number of virtual users (defaults to 50)</li>
+ * <li>duration - test duration in seconds (defaults to 30)</li>
+ * <li>latency - Redis command latency in milliseconds (defaults to 1)</li>
+ * <li>dropEvery - every n-th second drops connections receiving next 5 commands (defaults to 0 - never)</li>
+ * <li>failoverAt - second of the test failover happens at (defaults to 0 - never)</li>
+ * <li>failoverDowntime - failover downtime in milliseconds (defaults to 2000)</li>
+ * <li>poolMaxTotal - Jedis pool size (defaults to 8)</li>
+ * <li>poolAdaptive - adjust pool size between poolMaxTotal and poolAdaptiveMaxTotal (defaults to false)</li>
+ * <li>poolAdaptiveMaxTotal - upper bound of adaptive pool size (defaults to 64)</li>
+ * <li>burstEvery - bursty profile: every n seconds users send requests without pause for burstLength seconds, otherwise they pause
+ * for thinkTime between requests (defaults to 0 - steady load without pauses)</li>
+ * <li>burstLength - burst duration in seconds (defaults to 2)</li>
+ * <li>thinkTime - pause between requests outside of bursts in milliseconds (defaults to 200)</li>
+ * </ul>
+ * <pre><code>
+ * java -Dusers=200 -Dlatency=2 -cp target/classes:target/test-classes:(dependencies) ee.neotech.tomcat.session.RedisLoadHarness
+ * </code></pre>
+ */
+public class RedisLoadHarness {
+
+    private static final double NANOS_IN_MILLI = 1000000.0;
+
+    static class CounterServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            HttpSession session = req.getSession();
+            Integer counter = (Integer) session.getAttribute("counter");
+            session.setAttribute("counter", counter == null ? 1 : counter + 1);
+            resp.getWriter().print(counter == null ? 0 : counter);
+        }
+    }
+
+    /**
+     * Starts Tomcat on a free port with root context using the manager, {@link CounterServlet} is mapped to /counter.
+     * Context has {@link SessionOverloadValve}, so requests over session cache budget get 503
+     */
+    static Tomcat startTomcat(NonStickySessionManager manager, File baseDir) throws LifecycleException {
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.getPath());
+        tomcat.setPort(0);
+        // engine name is the JMX domain, so instances running at once do not unregister each other's MBeans
+        tomcat.getEngine().setName("Tomcat-" + baseDir.getName());
+
+        File docBase = new File(baseDir, "webapp");
+        docBase.mkdirs();
+        Context context = tomcat.addContext("", docBase.getPath());
+        context.setManager(manager);
+        context.getPipeline().addValve(new SessionOverloadValve());
+        Tomcat.addServlet(context, "counter", new CounterServlet());
+        context.addServletMappingDecoded("/counter", "counter");
+
+        tomcat.start();
+        return tomcat;
+    }
+
+    static RedisSessionManager createManager(RedisStub redis) {
+        RedisSessionManager manager = new RedisSessionManager();
+        manager.setHost("127.0.0.1");
+        manager.setPort(redis.getPort());
+        manager.setConnectionAttemptDelay(100);
+        // as after rolling upgrade, envelope is required by hot sessions, change log and compacted baselines
+        manager.setDataFormatVersion(SessionEnvelope.VERSION);
+        return manager;
+    }
+
+    static class VirtualUser implements Runnable {
+        private final String url;
+        private final long deadline;
+        private final Histogram latency;
+        private final LongAdder errors;
+        private final BurstProfile profile;
+        private String cookie;
+
+        VirtualUser(String url, long deadline, Histogram latency, LongAdder errors, BurstProfile profile) {
+            this.url = url;
+            this.deadline = deadline;
+            this.latency = latency;
+            this.errors = errors;
+            this.profile = profile;
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < deadline) {
+                try {
+                    profile.pause();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long start = System.nanoTime();
+                try {
+                    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                    if (cookie != null) {
+                        connection.setRequestProperty("Cookie", cookie);
+                    }
+                    int status = connection.getResponseCode();
+                    String setCookie = connection.getHeaderField("Set-Cookie");
+                    if (setCookie != null) {
+                        cookie = setCookie.split(";")[0];
+                    }
+                    try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                        while (in != null && in.read() != -1) {
+                            // drain, so connection is kept alive
+                        }
+                    }
+                    if (status != 200) {
+                        errors.increment();
+                    }
+                } catch (IOException e) {
+                    errors.increment();
+                }
+                latency.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Users pause between requests except during bursts
+     */
+    static class BurstProfile {
+        private final long start = System.nanoTime();
+        private final int burstEvery;
+        private final int burstLength;
+        private final int thinkTime;
+
+        BurstProfile(int burstEvery, int burstLength, int thinkTime) {
+            this.burstEvery = burstEvery;
+            this.burstLength = burstLength;
+            this.thinkTime = thinkTime;
+        }
+
+        void pause() throws InterruptedException {
+            if (burstEvery <= 0) {
+                return;
+            }
+            long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+            if (second % burstEvery >= burstLength) {
+                Thread.sleep(thinkTime);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int users = Integer.getInteger("users", 50);
+        int duration = Integer.getInteger("duration", 30);
+        int latencyMillis = Integer.getInteger("latency", 1);
+        int dropEvery = Integer.getInteger("dropEvery", 0);
+        int failoverAt = Integer.getInteger("failoverAt", 0);
+        int failoverDowntime = Integer.getInteger("failoverDowntime", 2000);
+        int poolMaxTotal = Integer.getInteger("poolMaxTotal", 8);
+        boolean poolAdaptive = Boolean.getBoolean("poolAdaptive");
+        int poolAdaptiveMaxTotal = Integer.getInteger("poolAdaptiveMaxTotal", 64);
+        BurstProfile profile = new BurstProfile(Integer.getInteger("burstEvery", 0), Integer.getInteger("burstLength", 2),
+                Integer.getInteger("thinkTime", 200));
+
+        File baseDir = Files.createTempDirectory("load-harness").toFile();
+        try (RedisStub redis = new RedisStub().start()) {
+            redis.setLatency(latencyMillis);
+            RedisSessionManager manager = createManager(redis);
+            manager.setPoolMaxTotal(poolMaxTotal);
+            manager.setPoolAdaptive(poolAdaptive);
+            manager.setPoolAdaptiveMaxTotal(poolAdaptiveMaxTotal);
+            Tomcat tomcat = startTomcat(manager, baseDir);
+            String url = "http://127.0.0.1:" + tomcat.getConnector().getLocalPort() + "/counter";
+
+            System.out.println("Users: " + users + ", duration: " + duration + "s, Redis latency: " + latencyMillis + "ms, pool: " + poolMaxTotal
+                    + (poolAdaptive ? ".." + poolAdaptiveMaxTotal : ""));
+
+            Histogram latency = new Histogram();
+            LongAdder errors = new LongAdder();
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(duration);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < users; i++) {
+                Thread thread = new Thread(new VirtualUser(url, deadline, latency, errors, profile), "user-" + i);
+                threads.add(thread);
+                thread.start();
+            }
+
+            for (int second = 1; second <= duration; second++) {
+                Thread.sleep(1000);
+                if (second == failoverAt) {
+                    System.out.println("Failover at " + second + "s");
+                    redis.failover(failoverDowntime);
+                } else if (dropEvery > 0 && second % dropEvery == 0) {
+                    redis.dropNext(5);
+                }
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            SessionManagerMetrics metrics = manager.getMetrics();
+            System.out.printf("Requests: %d, %.0f req/s, errors: %d%n", latency.getCount(), latency.getCount() / seconds, errors.sum());
+            System.out.println("Request latency: " + latency.summary("ms", NANOS_IN_MILLI));
+            System.out.println("Store load: " + metrics.getLoadTimeSummary());
+            System.out.println("Store save: " + metrics.getSaveTimeSummary());
+            System.out.println("Pool borrow wait: " + metrics.getBorrowWaitTimeSummary());
+            System.out.println("Pool size at the end: " + manager.getPoolCurrentMaxTotal());
+            System.out.println("Retries: " + metrics.getRetries() + ", failures: " + metrics.getFailures());
+            System.out.println("Redis commands: " + redis.getCommandCounts());
+
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+}
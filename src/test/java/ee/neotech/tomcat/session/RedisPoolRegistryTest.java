@@ -0,0 +1,120 @@
+package ee.neotech.tomcat.session;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+public class RedisPoolRegistryTest {
+
+    static class TestPool extends Pool<Jedis> {
+        boolean destroyed;
+
+        @Override
+        public void destroy() {
+            destroyed = true;
+        }
+    }
+
+    static class Factory implements Callable<Pool<Jedis>> {
+        final AtomicInteger created = new AtomicInteger();
+        volatile boolean fail;
+
+        @Override
+        public Pool<Jedis> call() throws Exception {
+            created.incrementAndGet();
+            if (fail) {
+                throw new IllegalStateException("Redis is not available");
+            }
+            return new TestPool();
+        }
+    }
+
+    @Test
+    public void testSharedPool() throws Exception {
+        Factory factory = new Factory();
+        RedisPoolRegistry.Entry first = RedisPoolRegistry.acquire("testSharedPool", factory);
+        RedisPoolRegistry.Entry second = RedisPoolRegistry.acquire("testSharedPool", factory);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(2, RedisPoolRegistry.getReferences(first));
+
+        first.init.run();
+        second.init.run();
+        Assert.assertEquals(1, factory.created.get());
+        TestPool pool = (TestPool) first.init.get();
+        Assert.assertSame(pool, second.init.get());
+
+        RedisPoolRegistry.release(first);
+        Assert.assertFalse(pool.destroyed);
+        RedisPoolRegistry.release(second);
+        Assert.assertTrue(pool.destroyed);
+
+        // released pool is not reused
+        RedisPoolRegistry.Entry third = RedisPoolRegistry.acquire("testSharedPool", factory);
+        Assert.assertNotSame(first, third);
+        RedisPoolRegistry.release(third);
+    }
+
+    @Test
+    public void testPrivatePool() throws Exception {
+        Factory factory = new Factory();
+        RedisPoolRegistry.Entry first = RedisPoolRegistry.createPrivate(factory);
+        RedisPoolRegistry.Entry second = RedisPoolRegistry.createPrivate(factory);
+        Assert.assertNotSame(first, second);
+
+        first.init.run();
+        second.init.run();
+        Assert.assertEquals(2, factory.created.get());
+        RedisPoolRegistry.release(first);
+        Assert.assertTrue(((TestPool) first.init.get()).destroyed);
+        Assert.assertFalse(((TestPool) second.init.get()).destroyed);
+        RedisPoolRegistry.release(second);
+    }
+
+    @Test
+    public void testFailedInitIsNotShared() throws Exception {
+        Factory factory = new Factory();
+        factory.fail = true;
+        RedisPoolRegistry.Entry failed = RedisPoolRegistry.acquire("testFailedInit", factory);
+        failed.init.run();
+        try {
+            failed.init.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        factory.fail = false;
+        RedisPoolRegistry.Entry entry = RedisPoolRegistry.acquire("testFailedInit", factory);
+        Assert.assertNotSame(failed, entry);
+        Assert.assertEquals(1, RedisPoolRegistry.getReferences(entry));
+        entry.init.run();
+        Assert.assertNotNull(entry.init.get());
+
+        RedisPoolRegistry.release(failed);
+        Assert.assertFalse(((TestPool) entry.init.get()).destroyed);
+        RedisPoolRegistry.release(entry);
+        Assert.assertTrue(((TestPool) entry.init.get()).destroyed);
+    }
+
+    @Test
+    public void testPoolCreatedAfterReleaseIsDestroyed() throws Exception {
+        Factory factory = new Factory();
+        RedisPoolRegistry.Entry entry = RedisPoolRegistry.acquire("testCreatedAfterRelease", factory);
+        RedisPoolRegistry.release(entry);
+
+        entry.init.run();
+        try {
+            entry.init.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(1, factory.created.get());
+    }
+}
@@ -0,0 +1,846 @@
+package ee.neotech.tomcat.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.Session;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedisSessionManagerTest {
+
+    private static final String INDEX_KEY = "tomcat:session-index";
+    private static final String LEADER_KEY = INDEX_KEY + ":expiration-leader";
+
+    private RedisStub redis;
+    private RedisSessionManager manager;
+    private Tomcat tomcat;
+
+    @Before
+    public void setUp() throws Exception {
+        redis = new RedisStub().start();
+        manager = RedisLoadHarness.createManager(redis);
+        tomcat = RedisLoadHarness.startTomcat(manager, Files.createTempDirectory("redis-test").toFile());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+        redis.close();
+    }
+
+    /** Records sessions passed to listeners on expiration */
+    static class DestroyedSessions implements HttpSessionListener {
+        final List<String> ids = new CopyOnWriteArrayList<>();
+        final List<Object> counters = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void sessionCreated(HttpSessionEvent se) {
+        }
+
+        @Override
+        public void sessionDestroyed(HttpSessionEvent se) {
+            counters.add(se.getSession().getAttribute("counter"));
+            ids.add(se.getSession().getId());
+        }
+
+        void await(int count) throws InterruptedException {
+            for (int i = 0; i < 100 && ids.size() < count; i++) {
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    /** Records threads deserializing it, blocking one waits until {@link #gate} is opened */
+    static class Traced implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static final List<String> THREADS = new CopyOnWriteArrayList<>();
+        static volatile CountDownLatch entered;
+        static volatile CountDownLatch gate;
+
+        private final boolean blocking;
+
+        Traced(boolean blocking) {
+            this.blocking = blocking;
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            THREADS.add(Thread.currentThread().getName());
+            if (blocking) {
+                entered.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Restarts Tomcat with a new manager
+     */
+    private void restart(boolean sessionIndex) throws Exception {
+        RedisSessionManager restarted = RedisLoadHarness.createManager(redis);
+        restarted.setSessionIndex(sessionIndex);
+        restart(restarted);
+    }
+
+    private void restart(RedisSessionManager restarted) throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+
+        manager = restarted;
+        tomcat = RedisLoadHarness.startTomcat(manager, Files.createTempDirectory("redis-test").toFile());
+    }
+
+    private RedisSessionManager createListeningManager() {
+        RedisSessionManager listening = RedisLoadHarness.createManager(redis);
+        listening.setSessionIndex(true);
+        listening.setExpirationListeners(true);
+        listening.setExpirationGrace(60);
+        return listening;
+    }
+
+    private static DestroyedSessions addListener(RedisSessionManager manager) {
+        DestroyedSessions listener = new DestroyedSessions();
+        manager.getContext().setApplicationLifecycleListeners(new Object[] { listener });
+        return listener;
+    }
+
+    private NonStickySession createSession() {
+        NonStickySession session = (NonStickySession) manager.createSession(null);
+        session.access();
+        session.setAttribute("counter", 1);
+        session.endAccess();
+        return session;
+    }
+
+    @Test
+    public void testSessionIsStored() throws Exception {
+        manager.setUpdateExpireOnAccess(true);
+        String id = createSession().getIdInternal();
+        Assert.assertEquals(1, redis.getCommandCount("SETNX"));
+        Assert.assertTrue(SessionEnvelope.isEnvelope(redis.get(id)));
+        Assert.assertTrue(redis.pttl(id) > 1700 * 1000L);
+
+        Session session = manager.findSession(id);
+        session.access();
+        session.endAccess();
+        Assert.assertEquals(1, redis.getCommandCount("GET"));
+        // session without attribute access is not saved, only its expiration is updated
+        Assert.assertEquals(1, redis.getCommandCount("SETEX"));
+        Assert.assertEquals(1, redis.getCommandCount("EXPIRE"));
+
+        session = manager.findSession(id);
+        session.access();
+        Assert.assertEquals(1, session.getSession().getAttribute("counter"));
+        session.expire();
+        Assert.assertNull(redis.get(id));
+        Assert.assertNull(manager.findSession(id));
+    }
+
+    @Test
+    public void testRequestsThroughTomcat() throws Exception {
+        String url = "http://127.0.0.1:" + tomcat.getConnector().getLocalPort() + "/counter";
+        String cookie = null;
+        for (int i = 0; i < 3; i++) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            if (cookie != null) {
+                connection.setRequestProperty("Cookie", cookie);
+            }
+            Assert.assertEquals(200, connection.getResponseCode());
+            if (cookie == null) {
+                cookie = connection.getHeaderField("Set-Cookie").split(";")[0];
+            }
+            try (InputStream in = connection.getInputStream(); Scanner scanner = new Scanner(in)) {
+                Assert.assertEquals(i, scanner.nextInt());
+            }
+        }
+        // session is released after response is sent
+        for (int i = 0; i < 100 && redis.getCommandCount("SETEX") < 3; i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(3, redis.getCommandCount("SETEX"));
+    }
+
+    @Test
+    public void testRetryAfterDroppedConnection() throws Exception {
+        String id = createSession().getIdInternal();
+
+        redis.dropNext(1);
+        Session session = manager.findSession(id);
+        Assert.assertNotNull(session);
+        session.access();
+        session.endAccess();
+        Assert.assertEquals(1, manager.getMetrics().getRetries());
+    }
+
+    @Test
+    public void testRetryAfterErrorReply() throws Exception {
+        String id = createSession().getIdInternal();
+
+        redis.failNext(2);
+        Session session = manager.findSession(id);
+        Assert.assertNotNull(session);
+        session.access();
+        session.endAccess();
+        Assert.assertEquals(2, manager.getMetrics().getRetries());
+    }
+
+    @Test
+    public void testLastFailedAttemptIsNotRetry() throws Exception {
+        String id = createSession().getIdInternal();
+
+        redis.failNext(3);
+        try {
+            manager.findSession(id);
+        } catch (Exception e) {
+            // all attempts failed
+        }
+        Assert.assertEquals(2, manager.getMetrics().getRetries());
+    }
+
+    @Test
+    public void testPipelineErrorReplyIsRetried() throws Exception {
+        restart(true);
+        NonStickySession session = (NonStickySession) manager.createSession(null);
+        session.access();
+        session.setAttribute("counter", 1);
+
+        // data write of the pipeline fails, while index update succeeds
+        redis.failNext(1);
+        session.endAccess();
+        Assert.assertEquals(1, manager.getMetrics().getRetries());
+        Assert.assertNotNull(redis.get(session.getIdInternal()));
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        String id = createSession().getIdInternal();
+
+        redis.failover(500);
+        long start = System.currentTimeMillis();
+        Session session = manager.findSession(id);
+        Assert.assertNotNull(session);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 400);
+        Assert.assertTrue(manager.getMetrics().getRetries() > 0);
+        session.access();
+        session.endAccess();
+    }
+
+    @Test
+    public void testAsyncStartup() throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+
+        // Redis is not available during startup
+        redis.failover(500);
+        manager = RedisLoadHarness.createManager(redis);
+        manager.setAsyncStartup(true);
+        manager.setPoolMinIdle(2);
+        tomcat = RedisLoadHarness.startTomcat(manager, Files.createTempDirectory("redis-test").toFile());
+        Assert.assertTrue(manager.getMetrics().getStartupMillis() >= 0);
+
+        // first request waits until Redis is available
+        String id = createSession().getIdInternal();
+        Assert.assertNotNull(redis.get(id));
+        Assert.assertTrue(manager.getMetrics().getStoreReadyMillis() >= 0);
+    }
+
+    @Test
+    public void testChangesAfterCheckpointAreSaved() throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+
+        manager = RedisLoadHarness.createManager(redis);
+        manager.setCheckpointAge(1);
+        tomcat = RedisLoadHarness.startTomcat(manager, Files.createTempDirectory("redis-test").toFile());
+
+        NonStickySession session = (NonStickySession) manager.createSession(null);
+        session.access();
+        List<Integer> list = new ArrayList<>();
+        session.setAttribute("list", list);
+        for (int i = 0; i < 150 && manager.getMetrics().getCheckpoints() == 0; i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(1, manager.getMetrics().getCheckpoints());
+
+        // value obtained before checkpoint is changed by the request still holding the session
+        list.add(1);
+        session.endAccess();
+
+        Session reloaded = manager.findSession(session.getIdInternal());
+        reloaded.access();
+        Assert.assertEquals(Arrays.asList(1), reloaded.getSession().getAttribute("list"));
+        reloaded.endAccess();
+    }
+
+    @Test
+    public void testSessionIndex() throws Exception {
+        restart(true);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ids.add(createSession().getIdInternal());
+        }
+        long now = System.currentTimeMillis();
+        Double score = redis.zscore(INDEX_KEY, ids.get(0));
+        Assert.assertNotNull(score);
+        Assert.assertTrue(score > now + 1700 * 1000L && score <= now + 1800 * 1000L);
+
+        Assert.assertEquals(3, manager.getActiveSessions());
+        List<String> listed = manager.listSessionIds(0, 10);
+        Assert.assertEquals(3, listed.size());
+        Assert.assertTrue(listed.containsAll(ids));
+        Assert.assertEquals(listed.subList(1, 2), manager.listSessionIds(1, 1));
+        Assert.assertEquals(3, manager.listSessionIds().split(" ").length);
+
+        // expired entries are not counted and are removed by background processing
+        redis.zadd(INDEX_KEY, now - 1000, "expired");
+        Assert.assertEquals(3, manager.getActiveSessions());
+        manager.processExpires();
+        Assert.assertNull(redis.zscore(INDEX_KEY, "expired"));
+        Assert.assertEquals(3, redis.zcard(INDEX_KEY));
+
+        // expiration refresh rescores only sessions present in the index
+        redis.zadd(INDEX_KEY, now, ids.get(1));
+        manager.setUpdateExpireOnAccess(true);
+        Session session = manager.findSession(ids.get(1));
+        session.access();
+        session.endAccess();
+        Assert.assertTrue(redis.zscore(INDEX_KEY, ids.get(1)) > now + 1700 * 1000L);
+
+        session = manager.findSession(ids.get(2));
+        session.access();
+        session.expire();
+        Assert.assertNull(redis.zscore(INDEX_KEY, ids.get(2)));
+        Assert.assertEquals(2, manager.getActiveSessions());
+    }
+
+    @Test
+    public void testExpirationListeners() throws Exception {
+        restart(createListeningManager());
+        DestroyedSessions listener = addListener(manager);
+
+        String id = createSession().getIdInternal();
+        // data outlives the session by grace period, expiration time is kept by the index
+        Assert.assertTrue(redis.pttl(id) > (1800 + 50) * 1000L);
+
+        redis.zadd(INDEX_KEY, System.currentTimeMillis() - 1000, id);
+        Assert.assertNull(manager.findSession(id));
+
+        manager.processExpires();
+        listener.await(1);
+        Assert.assertEquals(Arrays.asList(id), listener.ids);
+        Assert.assertEquals(Arrays.<Object>asList(1), listener.counters);
+        Assert.assertNull(redis.get(id));
+        Assert.assertNull(redis.zscore(INDEX_KEY, id));
+
+        // refreshed session is not expired
+        String refreshed = createSession().getIdInternal();
+        Session session = manager.findSession(refreshed);
+        session.access();
+        session.endAccess();
+        manager.processExpires();
+        Assert.assertNotNull(redis.get(refreshed));
+        Assert.assertEquals(1, listener.ids.size());
+    }
+
+    @Test
+    public void testExpirationLeadership() throws Exception {
+        restart(createListeningManager());
+        DestroyedSessions listener = addListener(manager);
+        RedisSessionManager other = createListeningManager();
+        Tomcat otherTomcat = RedisLoadHarness.startTomcat(other, Files.createTempDirectory("redis-test").toFile());
+        try {
+            DestroyedSessions otherListener = addListener(other);
+
+            // first node takes leadership and keeps it by renewal
+            manager.processExpires();
+            String id = createSession().getIdInternal();
+            redis.zadd(INDEX_KEY, System.currentTimeMillis() - 1000, id);
+            other.processExpires();
+            Assert.assertNotNull(redis.zscore(INDEX_KEY, id));
+            manager.processExpires();
+            listener.await(1);
+            Assert.assertEquals(Arrays.asList(id), listener.ids);
+
+            // expired leadership is taken over, previous leader does not renew it
+            redis.remove(LEADER_KEY);
+            other.processExpires();
+            id = createSession().getIdInternal();
+            redis.zadd(INDEX_KEY, System.currentTimeMillis() - 1000, id);
+            manager.processExpires();
+            Assert.assertNotNull(redis.zscore(INDEX_KEY, id));
+            other.processExpires();
+            otherListener.await(1);
+            Assert.assertEquals(Arrays.asList(id), otherListener.ids);
+            Assert.assertEquals(1, listener.ids.size());
+        } finally {
+            otherTomcat.stop();
+            otherTomcat.destroy();
+        }
+    }
+
+    @Test
+    public void testHotSessionKeptInCache() throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+
+        manager = RedisLoadHarness.createManager(redis);
+        manager.setHotSessionThreshold(3);
+        tomcat = RedisLoadHarness.startTomcat(manager, Files.createTempDirectory("redis-test").toFile());
+        String id = createSession().getIdInternal();
+
+        for (int i = 0; i < 5; i++) {
+            Session session = manager.findSession(id);
+            session.access();
+            session.endAccess();
+        }
+        // third lookup makes the session hot, following lookups only check its version
+        Assert.assertEquals(3, redis.getCommandCount("GET"));
+        Assert.assertEquals(2, redis.getCommandCount("GETRANGE"));
+        Assert.assertEquals(1, manager.getMetrics().getHotSessions());
+        Assert.assertEquals(2, manager.getMetrics().getHotSessionRevalidations());
+
+        // session is changed by another node
+        NonStickySession other = manager.fromBinary(redis.get(id));
+        other.setAttribute("counter", 5);
+        redis.put(id, manager.toBinary(other));
+
+        Session session = manager.findSession(id);
+        session.access();
+        Assert.assertEquals(5, session.getSession().getAttribute("counter"));
+        session.endAccess();
+        Assert.assertEquals(4, redis.getCommandCount("GET"));
+        Assert.assertEquals(1, manager.getMetrics().getHotSessionReloads());
+    }
+
+    @Test
+    public void testPrefetchedSessionSavedOnRelease() throws Exception {
+        String id = createSession().getIdInternal();
+        Assert.assertEquals(0, manager.getMetrics().getCachedSessions());
+
+        Assert.assertEquals(1, manager.prefetch(Arrays.asList(id, "missing")));
+        Assert.assertEquals(1, manager.getMetrics().getCachedSessions());
+
+        Session session = manager.findSession(id);
+        session.access();
+        session.getSession().setAttribute("counter", 2);
+        session.endAccess();
+        // prefetched session is only kept until the first request, which saves and unloads it
+        Assert.assertEquals(0, redis.getCommandCount("GET"));
+        Assert.assertEquals(0, manager.getMetrics().getCachedSessions());
+        Assert.assertEquals(2, manager.fromBinary(redis.get(id)).getAttribute("counter"));
+    }
+
+    @Test
+    public void testPrefetchWithinBudget() throws Exception {
+        manager.setUpdateExpireOnAccess(true);
+        String first = createSession().getIdInternal();
+        String second = createSession().getIdInternal();
+        Assert.assertEquals(0, redis.getCommandCount("EXPIRE"));
+
+        // first prefetched session exceeds the budget, expiration is refreshed as its lookup will be a cache hit
+        manager.setCacheMaxBytes(1);
+        Assert.assertEquals(1, manager.prefetch(Arrays.asList(first, second)));
+        Assert.assertEquals(1, manager.getMetrics().getCachedSessions());
+        Assert.assertEquals(1, redis.getCommandCount("EXPIRE"));
+
+        // session held by a request keeps cache over budget, prefetch is refused like regular loads
+        NonStickySession held = (NonStickySession) manager.createSession(null);
+        held.access();
+        long gets = redis.getCommandCount("MGET") + redis.getCommandCount("GET");
+        Assert.assertEquals(0, manager.prefetch(Arrays.asList(first, second)));
+        Assert.assertEquals(gets, redis.getCommandCount("MGET") + redis.getCommandCount("GET"));
+        Assert.assertEquals(1, redis.getCommandCount("EXPIRE"));
+        held.endAccess();
+    }
+
+    @Test
+    public void testExpireRefreshRateLimited() throws Exception {
+        manager.setUpdateExpireOnAccess(true);
+        manager.setExpireRefreshRatio(0.5);
+
+        // expiration is set by save
+        String id = createSession().getIdInternal();
+        access(id);
+        Assert.assertEquals(0, redis.getCommandCount("EXPIRE"));
+        Assert.assertEquals(1, manager.getMetrics().getSkippedExpireRefreshes());
+
+        // saved by another node long ago, session is not added to the manager
+        NonStickySession other = new NonStickySession(null);
+        other.setValid(true);
+        other.setId("other", false);
+        other.setManager(manager);
+        other.setMaxInactiveInterval(1800);
+        other.setCreationTime(System.currentTimeMillis() - 1000 * 1000);
+        redis.put("other", manager.toBinary(other));
+        access("other");
+        Assert.assertEquals(1, redis.getCommandCount("EXPIRE"));
+        access("other");
+        Assert.assertEquals(1, redis.getCommandCount("EXPIRE"));
+        Assert.assertEquals(2, manager.getMetrics().getSkippedExpireRefreshes());
+
+        manager.setExpireRefreshRatio(0);
+        access("other");
+        Assert.assertEquals(2, redis.getCommandCount("EXPIRE"));
+
+        // session must be refreshed before its store expiration
+        try {
+            manager.setExpireRefreshRatio(1);
+            Assert.fail("Ratio of 1 must be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /** Session which is not added to the manager */
+    private NonStickySession createDetachedSession(String id, Object value) {
+        NonStickySession session = new NonStickySession(null);
+        session.setValid(true);
+        session.setId(id, false);
+        session.setManager(manager);
+        session.setMaxInactiveInterval(1800);
+        session.setAttribute("value", value);
+        return session;
+    }
+
+    private Thread startDeserializer(final byte[] data, final List<Throwable> failures) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    manager.fromBinary(data);
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test(timeout = 10000)
+    public void testLargeSessionsOffloaded() throws Exception {
+        RedisSessionManager offloading = RedisLoadHarness.createManager(redis);
+        offloading.setLargeSessionThreshold(1);
+        offloading.setLargeSessionThreads(1);
+        offloading.setLargeSessionQueue(1);
+        restart(offloading);
+        Traced.THREADS.clear();
+        Traced.entered = new CountDownLatch(1);
+        Traced.gate = new CountDownLatch(1);
+
+        // serialized without known size, so inline
+        byte[] plain = manager.toBinary(createDetachedSession("plain", new Traced(false)));
+        byte[] blocking = manager.toBinary(createDetachedSession("blocking", new Traced(true)));
+        Assert.assertEquals(0, manager.getMetrics().getSerializationPoolTasks());
+
+        Assert.assertEquals("plain", manager.fromBinary(plain).getIdInternal());
+        Assert.assertEquals(1, manager.getMetrics().getSerializationPoolTasks());
+        Assert.assertTrue(Traced.THREADS.get(0), Traced.THREADS.get(0).startsWith("SessionSerializer["));
+
+        // the only pool thread is busy and the queue is full
+        List<Throwable> failures = new CopyOnWriteArrayList<>();
+        Thread busy = startDeserializer(blocking, failures);
+        Traced.entered.await();
+        Thread queued = startDeserializer(plain, failures);
+        while (queued.getState() != Thread.State.WAITING) {
+            Thread.sleep(5);
+        }
+
+        Assert.assertEquals("plain", manager.fromBinary(plain).getIdInternal());
+        Assert.assertEquals(1, manager.getMetrics().getSerializationPoolRejections());
+        Assert.assertEquals(Thread.currentThread().getName(), Traced.THREADS.get(2));
+
+        Traced.gate.countDown();
+        busy.join();
+        queued.join();
+        Assert.assertEquals(Arrays.asList(), failures);
+        Assert.assertEquals(3, manager.getMetrics().getSerializationPoolTasks());
+        Assert.assertEquals(1, manager.getMetrics().getSerializationPoolRejections());
+    }
+
+    private void access(String id) throws Exception {
+        Session session = manager.findSession(id);
+        Assert.assertNotNull(session);
+        session.access();
+        session.endAccess();
+    }
+
+    @Test
+    public void testOverBudgetRequestsRejected() throws Exception {
+        String url = "http://127.0.0.1:" + tomcat.getConnector().getLocalPort() + "/counter";
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        Assert.assertEquals(200, connection.getResponseCode());
+        String cookie = connection.getHeaderField("Set-Cookie").split(";")[0];
+        // session is released after the response is sent
+        for (int i = 0; i < 100 && manager.getMetrics().getCachedSessions() > 0; i++) {
+            Thread.sleep(10);
+        }
+
+        // session held by a slow request exceeds the budget
+        manager.setCacheMaxBytes(1);
+        NonStickySession held = (NonStickySession) manager.createSession(null);
+        held.access();
+        Assert.assertTrue(manager.getMetrics().getCacheBytes() > 1);
+
+        connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty("Cookie", cookie);
+        Assert.assertEquals(503, connection.getResponseCode());
+        Assert.assertEquals("5", connection.getHeaderField("Retry-After"));
+
+        held.endAccess();
+        Assert.assertEquals(0, manager.getMetrics().getCacheBytes());
+        connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty("Cookie", cookie);
+        Assert.assertEquals(200, connection.getResponseCode());
+    }
+
+    @Test
+    public void testCompactedBaseline() throws Exception {
+        String id = createSession().getIdInternal();
+        // first reload saves the session as not new
+        Session session = manager.findSession(id);
+        session.access();
+        Assert.assertEquals(1, session.getSession().getAttribute("counter"));
+        session.endAccess();
+        Assert.assertEquals(2, redis.getCommandCount("SETEX"));
+
+        // loaded session exceeds the budget, only envelope header is kept for comparison
+        manager.setCacheMaxBytes(1);
+        session = manager.findSession(id);
+        Assert.assertEquals(NonStickySessionManager.CACHED_SESSION_OVERHEAD + SessionEnvelope.HEADER_SIZE + redis.get(id).length,
+                manager.getMetrics().getCacheBytes());
+        session.access();
+        Assert.assertEquals(1, session.getSession().getAttribute("counter"));
+        session.endAccess();
+        Assert.assertEquals(2, redis.getCommandCount("SETEX"));
+
+        session = manager.findSession(id);
+        session.access();
+        session.getSession().setAttribute("counter", 2);
+        session.endAccess();
+        Assert.assertEquals(3, redis.getCommandCount("SETEX"));
+        Assert.assertEquals(0, manager.getMetrics().getCacheBytes());
+
+        // equal value could hide change of its content, checksum alone is not trusted
+        session = manager.findSession(id);
+        session.access();
+        session.getSession().setAttribute("counter", 2);
+        session.endAccess();
+        Assert.assertEquals(4, redis.getCommandCount("SETEX"));
+    }
+
+    @Test
+    public void testChangeLog() throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+
+        manager = RedisLoadHarness.createManager(redis);
+        manager.setLazyAttributes(true);
+        manager.setChangeLog(true);
+        manager.setChangeLogMaxEntries(3);
+        tomcat = RedisLoadHarness.startTomcat(manager, Files.createTempDirectory("redis-test").toFile());
+
+        NonStickySession created = (NonStickySession) manager.createSession(null);
+        created.access();
+        created.setAttribute("large", new byte[10000]);
+        created.setAttribute("counter", 0);
+        created.endAccess();
+        String id = created.getIdInternal();
+        String changesKey = id + ":changes";
+        long written = manager.getMetrics().getBytesWritten();
+        Assert.assertTrue(written > 10000);
+
+        // small changes are appended, whole session is not rewritten
+        for (int i = 1; i <= 2; i++) {
+            Session session = manager.findSession(id);
+            session.access();
+            Assert.assertEquals(i - 1, session.getSession().getAttribute("counter"));
+            session.getSession().setAttribute("counter", i);
+            session.endAccess();
+        }
+        Assert.assertEquals(1, redis.getCommandCount("SETEX"));
+        Assert.assertEquals(2, redis.listSize(changesKey));
+        Assert.assertEquals(2, manager.getMetrics().getChangeLogAppends());
+        Assert.assertTrue(manager.getMetrics().getBytesWritten() - written < 1000);
+
+        // load reaching changeLogMaxBytes rewrites the snapshot
+        manager.setChangeLogMaxBytes(1);
+        Session session = manager.findSession(id);
+        Assert.assertEquals(0, redis.listSize(changesKey));
+        Assert.assertEquals(1, manager.getMetrics().getChangeLogCompactions());
+        Assert.assertEquals(2, manager.fromBinary(redis.get(id)).getAttribute("counter"));
+        Assert.assertTrue(redis.pttl(id) > 1700 * 1000L);
+        session.access();
+        session.getSession().setAttribute("counter", 3);
+        session.endAccess();
+        Assert.assertEquals(1, redis.listSize(changesKey));
+        // header only loads see the latest version
+        Assert.assertArrayEquals(Arrays.copyOf(manager.load(id), SessionEnvelope.HEADER_SIZE), manager.loadHeader(id));
+
+        session = manager.findSession(id);
+        session.access();
+        Assert.assertEquals(3, session.getSession().getAttribute("counter"));
+        session.expire();
+        Assert.assertNull(redis.get(id));
+        Assert.assertEquals(0, redis.listSize(changesKey));
+    }
+
+    @Test
+    public void testChangeLogOfHotSessionBounded() throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+
+        manager = RedisLoadHarness.createManager(redis);
+        manager.setLazyAttributes(true);
+        manager.setChangeLog(true);
+        manager.setChangeLogMaxEntries(3);
+        manager.setHotSessionThreshold(1);
+        tomcat = RedisLoadHarness.startTomcat(manager, Files.createTempDirectory("redis-test").toFile());
+
+        NonStickySession created = (NonStickySession) manager.createSession(null);
+        created.access();
+        created.setAttribute("large", new byte[10000]);
+        created.setAttribute("counter", 0);
+        created.endAccess();
+        String id = created.getIdInternal();
+        String changesKey = id + ":changes";
+
+        // hot session is only revalidated by header, appends reaching changeLogMaxEntries rewrite the snapshot
+        for (int i = 1; i <= 20; i++) {
+            Session session = manager.findSession(id);
+            session.access();
+            session.getSession().setAttribute("counter", i);
+            session.endAccess();
+            Assert.assertTrue(redis.listSize(changesKey) < 3);
+        }
+        Assert.assertEquals(1, redis.getCommandCount("GET"));
+        Assert.assertTrue(manager.getMetrics().getHotSessionRevalidations() >= 19);
+        Assert.assertEquals(6, manager.getMetrics().getChangeLogCompactions());
+        Assert.assertEquals(20, manager.fromBinary(manager.load(id)).getAttribute("counter"));
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        String id = createSession().getIdInternal();
+
+        redis.setLatency(50);
+        Session session = manager.findSession(id);
+        session.access();
+        session.endAccess();
+        Assert.assertTrue(manager.getMetrics().getLoadP99Micros() >= 50000);
+    }
+
+    @Test
+    public void testHollowSessionLoadsHeaderOnly() throws Exception {
+        String id = createSession().getIdInternal();
+        manager.setLazySessionBody(true);
+
+        Session session = manager.findSession(id);
+        session.access();
+        Assert.assertEquals(1, redis.getCommandCount("GETRANGE"));
+        Assert.assertEquals(0, redis.getCommandCount("GET"));
+        session.endAccess();
+
+        session = manager.findSession(id);
+        session.access();
+        Assert.assertEquals(1, session.getSession().getAttribute("counter"));
+        Assert.assertEquals(1, redis.getCommandCount("GET"));
+        session.endAccess();
+    }
+
+    /**
+     * Restarts Tomcat with two contexts sharing Redis pool, each with its own key prefix
+     */
+    private RedisSessionManager[] restartWithPrefixedContexts(boolean sessionIndex) throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+
+        File baseDir = Files.createTempDirectory("redis-test").toFile();
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.getPath());
+        tomcat.setPort(0);
+        RedisSessionManager[] managers = new RedisSessionManager[2];
+        for (int i = 0; i < managers.length; i++) {
+            managers[i] = RedisLoadHarness.createManager(redis);
+            managers[i].setSharedPool(true);
+            managers[i].setKeyPrefix("app" + i + ":");
+            managers[i].setSessionIndex(sessionIndex);
+            File docBase = new File(baseDir, "app" + i);
+            docBase.mkdirs();
+            Context context = tomcat.addContext("/app" + i, docBase.getPath());
+            context.setManager(managers[i]);
+        }
+        tomcat.start();
+        return managers;
+    }
+
+    @Test
+    public void testSharedPoolWithKeyPrefix() throws Exception {
+        RedisSessionManager[] managers = restartWithPrefixedContexts(false);
+        Assert.assertEquals(2, managers[0].getPoolReferences());
+        Assert.assertSame(managers[0].jedisPool, managers[1].jedisPool);
+
+        manager = managers[0];
+        String id = createSession().getIdInternal();
+        Assert.assertNull(redis.get(id));
+        Assert.assertTrue(SessionEnvelope.isEnvelope(redis.get("app0:" + id)));
+        Assert.assertNotNull(managers[0].findSession(id));
+        Assert.assertNull(managers[1].findSession(id));
+
+        tomcat.getHost().findChild("/app1").stop();
+        Assert.assertEquals(1, managers[0].getPoolReferences());
+        Assert.assertNotNull(managers[0].findSession(id));
+    }
+
+    @Test
+    public void testSessionIndexUnderKeyPrefix() throws Exception {
+        RedisSessionManager[] managers = restartWithPrefixedContexts(true);
+        manager = managers[0];
+        String first = createSession().getIdInternal();
+        manager = managers[1];
+        createSession();
+        createSession();
+
+        Assert.assertEquals(1, redis.zcard("app0:" + INDEX_KEY));
+        Assert.assertEquals(2, redis.zcard("app1:" + INDEX_KEY));
+        Assert.assertEquals(0, redis.zcard(INDEX_KEY));
+        Assert.assertEquals(1, managers[0].getActiveSessions());
+        Assert.assertEquals(2, managers[1].getActiveSessions());
+        Assert.assertEquals(first, managers[0].listSessionIds());
+
+        // index shared by contexts with other prefixes is refused
+        RedisSessionManager shared = RedisLoadHarness.createManager(redis);
+        shared.setKeyPrefix("app2:");
+        shared.setSessionIndex(true);
+        shared.setSessionIndexKey(INDEX_KEY);
+        restart(shared);
+        Assert.assertNotEquals(LifecycleState.STARTED, shared.getState());
+    }
+}
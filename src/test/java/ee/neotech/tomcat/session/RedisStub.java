@@ -0,0 +1,936 @@
+package ee.neotech.tomcat.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process Redis protocol (RESP) server for tests and load harness, no external Redis required.
+ * <p>
+ * Supports string commands used by {@link RedisSessionManager}: GET, GETRANGE, MGET, SET (NX, XX, EX, PX), SETEX, PSETEX, SETNX, SETRANGE,
+ * EXPIRE, PTTL, TTL, DEL, EXISTS, list commands RPUSH and LRANGE, sorted set commands ZADD (NX, XX, CH), ZREM, ZCARD, ZSCORE, ZCOUNT,
+ * ZRANGEBYSCORE (LIMIT) and ZREMRANGEBYSCORE, transactions (MULTI, EXEC, DISCARD, WATCH, UNWATCH), plus PING, AUTH, SELECT and QUIT. Commands are executed one at a time. Pipelined commands are answered in order and flushed when the client stops sending.
+ * Latency, command failures, dropped connections and failovers could be injected at any time.
+ * </p>
+ */
+public class RedisStub implements Closeable {
+
+    static final class Value {
+        final byte[] data;
+        final List<byte[]> list;
+        /** scores of sorted set members */
+        final Map<String, Double> zset;
+        volatile long expiresAt;
+
+        Value(byte[] data, long expiresAt) {
+            this(data, null, null, expiresAt);
+        }
+
+        Value(List<byte[]> list, long expiresAt) {
+            this(null, list, null, expiresAt);
+        }
+
+        Value(Map<String, Double> zset, long expiresAt) {
+            this(null, null, zset, expiresAt);
+        }
+
+        private Value(byte[] data, List<byte[]> list, Map<String, Double> zset, long expiresAt) {
+            this.data = data;
+            this.list = list;
+            this.zset = zset;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+    }
+
+    /** Transaction state of a client connection */
+    private static final class Connection {
+        /** commands queued after MULTI, null if there is no transaction */
+        List<List<byte[]>> queued;
+        /** key versions at the time of WATCH */
+        final Map<String, Long> watched = new HashMap<>();
+    }
+
+    /** Closes client connection instead of replying */
+    private static class DropConnection extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private final ConcurrentHashMap<String, Value> data = new ConcurrentHashMap<>();
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, AtomicLong> commands = new ConcurrentHashMap<>();
+    /** version of each written key, watched keys are compared by it */
+    private final ConcurrentHashMap<String, Long> versions = new ConcurrentHashMap<>();
+    private final AtomicLong writes = new AtomicLong();
+
+    private volatile ServerSocket serverSocket;
+    private volatile int port;
+    private volatile boolean closed;
+
+    private volatile long latencyMillis;
+    private final AtomicInteger failNext = new AtomicInteger();
+    private final AtomicInteger dropNext = new AtomicInteger();
+
+    /**
+     * Starts listening on a free local port
+     */
+    public RedisStub start() throws IOException {
+        bind(0);
+        return this;
+    }
+
+    private void bind(int port) throws IOException {
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.port = socket.getLocalPort();
+        this.serverSocket = socket;
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(serverSocket);
+            }
+        }, "RedisStub-acceptor-" + this.port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept(ServerSocket server) {
+        while (!server.isClosed()) {
+            final Socket client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                return; // closed
+            }
+            clients.add(client);
+            if (server.isClosed()) {
+                // accepted just before failover, which did not see the connection
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                clients.remove(client);
+                return;
+            }
+            Thread handler = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(client);
+                }
+            }, "RedisStub-client-" + client.getPort());
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @param latencyMillis delay added to every command
+     */
+    public void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Next commands are answered with error reply
+     */
+    public void failNext(int commands) {
+        failNext.set(commands);
+    }
+
+    /**
+     * Connections receiving next commands are closed without reply
+     */
+    public void dropNext(int commands) {
+        dropNext.set(commands);
+    }
+
+    /**
+     * Simulates master failover: all connections are closed, new ones are refused for downtime, then the server is available on the same
+     * port with data kept (as replicated to the new master). Returns immediately.
+     */
+    public void failover(final long downtimeMillis) throws IOException {
+        final int boundPort = port;
+        disconnect();
+
+        Thread restart = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(downtimeMillis);
+                    if (!closed) {
+                        bind(boundPort);
+                    }
+                } catch (InterruptedException | IOException e) {
+                    throw new IllegalStateException("Failed to restart after failover", e);
+                }
+            }
+        }, "RedisStub-failover");
+        restart.setDaemon(true);
+        restart.start();
+    }
+
+    private void disconnect() throws IOException {
+        serverSocket.close();
+        for (Socket client : clients) {
+            client.close();
+        }
+        clients.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        disconnect();
+    }
+
+    /**
+     * @return number of times command (in upper case) was received
+     */
+    public long getCommandCount(String command) {
+        AtomicLong count = commands.get(command);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * @return received command counts by name
+     */
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> e : commands.entrySet()) {
+            result.put(e.getKey(), e.getValue().get());
+        }
+        return result;
+    }
+
+    /**
+     * @return value stored under the key or null
+     */
+    public byte[] get(String key) {
+        Value value = value(key);
+        return value != null ? value.data : null;
+    }
+
+    public void put(String key, byte[] value) {
+        synchronized (data) {
+            data.put(key, new Value(value, Long.MAX_VALUE));
+            touch(key);
+        }
+    }
+
+    public void remove(String key) {
+        synchronized (data) {
+            if (data.remove(key) != null) {
+                touch(key);
+            }
+        }
+    }
+
+    /**
+     * @return score of sorted set member, null if there is no such member
+     */
+    public Double zscore(String key, String member) {
+        synchronized (data) {
+            Value value = value(key);
+            return value != null && value.zset != null ? value.zset.get(member) : null;
+        }
+    }
+
+    /**
+     * @return number of members of sorted set stored under the key, 0 if there is no such key
+     */
+    public int zcard(String key) {
+        synchronized (data) {
+            Value value = value(key);
+            return value != null && value.zset != null ? value.zset.size() : 0;
+        }
+    }
+
+    public void zadd(String key, double score, String member) {
+        synchronized (data) {
+            Value value = value(key);
+            if (value == null) {
+                value = new Value(new HashMap<String, Double>(), Long.MAX_VALUE);
+                data.put(key, value);
+            }
+            value.zset.put(member, score);
+            touch(key);
+        }
+    }
+
+    /**
+     * @return number of elements of list stored under the key, 0 if there is no such key
+     */
+    public int listSize(String key) {
+        synchronized (data) {
+            Value value = value(key);
+            return value != null && value.list != null ? value.list.size() : 0;
+        }
+    }
+
+    /**
+     * @return remaining time to live in milliseconds, -1 if key does not expire, -2 if there is no such key
+     */
+    public long pttl(String key) {
+        Value value = value(key);
+        if (value == null) {
+            return -2;
+        }
+        return value.expiresAt == Long.MAX_VALUE ? -1 : value.expiresAt - System.currentTimeMillis();
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    public void flushAll() {
+        data.clear();
+    }
+
+    /**
+     * Registers write of the key, so transactions watching it are discarded
+     */
+    private void touch(String key) {
+        versions.put(key, writes.incrementAndGet());
+    }
+
+    private long version(String key) {
+        Long version = versions.get(key);
+        return version != null ? version : 0;
+    }
+
+    private Value value(String key) {
+        Value value = data.get(key);
+        if (value != null && value.isExpired(System.currentTimeMillis())) {
+            data.remove(key, value);
+            return null;
+        }
+        return value;
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            Connection connection = new Connection();
+            while (true) {
+                List<byte[]> args = readCommand(in);
+                if (args == null) {
+                    return;
+                }
+                boolean quit = execute(args, out, connection);
+                // pipelined commands are answered at once
+                if (quit || in.available() == 0) {
+                    out.flush();
+                }
+                if (quit) {
+                    return;
+                }
+            }
+        } catch (DropConnection | SocketException | EOFException e) {
+            // closed by client, failover or injected failure
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        } finally {
+            clients.remove(client);
+        }
+    }
+
+    private static List<byte[]> readCommand(InputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        if (type != '*') {
+            throw new IOException("Only RESP arrays are supported as commands, got: " + (char) type);
+        }
+        int n = Integer.parseInt(readLine(in));
+        List<byte[]> args = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            if (in.read() != '$') {
+                throw new IOException("Bulk string expected");
+            }
+            int length = Integer.parseInt(readLine(in));
+            byte[] arg = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int r = in.read(arg, read, length - read);
+                if (r < 0) {
+                    throw new EOFException();
+                }
+                read += r;
+            }
+            in.read(); // \r
+            in.read(); // \n
+            args.add(arg);
+        }
+        return args;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c == -1) {
+                throw new EOFException();
+            }
+            sb.append((char) c);
+        }
+        in.read(); // \n
+        return sb.toString();
+    }
+
+    private static String str(byte[] arg) {
+        return new String(arg, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean take(AtomicInteger counter) {
+        while (true) {
+            int n = counter.get();
+            if (n <= 0) {
+                return false;
+            }
+            if (counter.compareAndSet(n, n - 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if connection should be closed after reply
+     */
+    private boolean execute(List<byte[]> args, OutputStream out, Connection connection) throws IOException {
+        String command = str(args.get(0)).toUpperCase();
+        AtomicLong count = commands.get(command);
+        if (count == null) {
+            commands.putIfAbsent(command, new AtomicLong());
+            count = commands.get(command);
+        }
+        count.incrementAndGet();
+
+        long latency = latencyMillis;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DropConnection();
+            }
+        }
+        if (take(dropNext)) {
+            throw new DropConnection();
+        }
+        if (take(failNext)) {
+            error(out, "ERR injected failure");
+            return false;
+        }
+
+        switch (command) {
+        case "MULTI":
+            connection.queued = new ArrayList<>();
+            simple(out, "OK");
+            return false;
+        case "DISCARD":
+            connection.queued = null;
+            connection.watched.clear();
+            simple(out, "OK");
+            return false;
+        case "WATCH":
+            for (int i = 1; i < args.size(); i++) {
+                String key = str(args.get(i));
+                connection.watched.put(key, version(key));
+            }
+            simple(out, "OK");
+            return false;
+        case "UNWATCH":
+            connection.watched.clear();
+            simple(out, "OK");
+            return false;
+        case "EXEC":
+            exec(connection, out);
+            return false;
+        default:
+            if (connection.queued != null) {
+                connection.queued.add(args);
+                simple(out, "QUEUED");
+                return false;
+            }
+            synchronized (data) {
+                return run(command, args, out);
+            }
+        }
+    }
+
+    private void exec(Connection connection, OutputStream out) throws IOException {
+        List<List<byte[]>> queued = connection.queued;
+        connection.queued = null;
+        if (queued == null) {
+            error(out, "ERR EXEC without MULTI");
+            return;
+        }
+        synchronized (data) {
+            for (Map.Entry<String, Long> e : connection.watched.entrySet()) {
+                if (version(e.getKey()) != e.getValue()) {
+                    connection.watched.clear();
+                    out.write("*-1\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                    return;
+                }
+            }
+            connection.watched.clear();
+            out.write(("*" + queued.size() + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            for (List<byte[]> args : queued) {
+                run(str(args.get(0)).toUpperCase(), args, out);
+            }
+        }
+    }
+
+    /**
+     * Executes data command, must be called while holding lock of the data
+     * @return true if connection should be closed after reply
+     */
+    private boolean run(String command, List<byte[]> args, OutputStream out) throws IOException {
+        long now = System.currentTimeMillis();
+        switch (command) {
+        case "PING":
+            simple(out, "PONG");
+            return false;
+        case "AUTH":
+        case "SELECT":
+            simple(out, "OK");
+            return false;
+        case "QUIT":
+            simple(out, "OK");
+            return true;
+        case "GET": {
+            Value value = value(str(args.get(1)));
+            if (value != null && value.list != null) {
+                error(out, "WRONGTYPE Operation against a key holding the wrong kind of value");
+                return false;
+            }
+            bulk(out, value != null ? value.data : null);
+            return false;
+        }
+        case "GETRANGE": {
+            Value value = value(str(args.get(1)));
+            bulk(out, range(value != null ? value.data : new byte[0], Integer.parseInt(str(args.get(2))), Integer.parseInt(str(args.get(3)))));
+            return false;
+        }
+        case "MGET": {
+            out.write(("*" + (args.size() - 1) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            for (int i = 1; i < args.size(); i++) {
+                Value value = value(str(args.get(i)));
+                bulk(out, value != null ? value.data : null);
+            }
+            return false;
+        }
+        case "SET":
+            set(args, out, now);
+            return false;
+        case "SETEX":
+        case "PSETEX": {
+            long ttl = Long.parseLong(str(args.get(2)));
+            String key = str(args.get(1));
+            data.put(key, new Value(args.get(3), now + (command.equals("SETEX") ? ttl * 1000 : ttl)));
+            touch(key);
+            simple(out, "OK");
+            return false;
+        }
+        case "SETNX": {
+            String key = str(args.get(1));
+            value(key);
+            boolean done = data.putIfAbsent(key, new Value(args.get(2), Long.MAX_VALUE)) == null;
+            if (done) {
+                touch(key);
+            }
+            integer(out, done ? 1 : 0);
+            return false;
+        }
+        case "SETRANGE": {
+            String key = str(args.get(1));
+            int offset = Integer.parseInt(str(args.get(2)));
+            byte[] range = args.get(3);
+            Value value = value(key);
+            byte[] old = value != null ? value.data : new byte[0];
+            byte[] updated = Arrays.copyOf(old, Math.max(old.length, offset + range.length));
+            System.arraycopy(range, 0, updated, offset, range.length);
+            data.put(key, new Value(updated, value != null ? value.expiresAt : Long.MAX_VALUE));
+            touch(key);
+            integer(out, updated.length);
+            return false;
+        }
+        case "RPUSH": {
+            String key = str(args.get(1));
+            Value value = value(key);
+            if (value == null) {
+                value = new Value(new ArrayList<byte[]>(), Long.MAX_VALUE);
+                data.put(key, value);
+            }
+            value.list.addAll(args.subList(2, args.size()));
+            touch(key);
+            integer(out, value.list.size());
+            return false;
+        }
+        case "LRANGE": {
+            Value value = value(str(args.get(1)));
+            List<byte[]> list = value != null ? value.list : new ArrayList<byte[]>();
+            int size = list.size();
+            int start = Integer.parseInt(str(args.get(2)));
+            int end = Integer.parseInt(str(args.get(3)));
+            start = start < 0 ? Math.max(0, size + start) : start;
+            end = Math.min(end < 0 ? size + end : end, size - 1);
+            int n = Math.max(0, end - start + 1);
+            out.write(("*" + n + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            for (int i = start; i <= end; i++) {
+                bulk(out, list.get(i));
+            }
+            return false;
+        }
+        case "ZADD":
+            zadd(args, out);
+            return false;
+        case "ZREM": {
+            String key = str(args.get(1));
+            Value value = zset(key, out);
+            if (value == WRONG_TYPE) {
+                return false;
+            }
+            int n = 0;
+            for (int i = 2; value != null && i < args.size(); i++) {
+                if (value.zset.remove(str(args.get(i))) != null) {
+                    n++;
+                }
+            }
+            if (n > 0) {
+                removeIfEmpty(key, value);
+                touch(key);
+            }
+            integer(out, n);
+            return false;
+        }
+        case "ZCARD": {
+            Value value = zset(str(args.get(1)), out);
+            if (value != WRONG_TYPE) {
+                integer(out, value != null ? value.zset.size() : 0);
+            }
+            return false;
+        }
+        case "ZSCORE": {
+            Value value = zset(str(args.get(1)), out);
+            if (value != WRONG_TYPE) {
+                Double score = value != null ? value.zset.get(str(args.get(2))) : null;
+                bulk(out, score != null ? formatScore(score).getBytes(StandardCharsets.ISO_8859_1) : null);
+            }
+            return false;
+        }
+        case "ZCOUNT":
+        case "ZRANGEBYSCORE":
+        case "ZREMRANGEBYSCORE":
+            rangeByScore(command, args, out);
+            return false;
+        case "EXPIRE": {
+            String key = str(args.get(1));
+            Value value = value(key);
+            if (value != null) {
+                value.expiresAt = now + Long.parseLong(str(args.get(2))) * 1000;
+                touch(key);
+            }
+            integer(out, value != null ? 1 : 0);
+            return false;
+        }
+        case "PTTL":
+            integer(out, pttl(str(args.get(1))));
+            return false;
+        case "TTL": {
+            long pttl = pttl(str(args.get(1)));
+            integer(out, pttl < 0 ? pttl : (pttl + 999) / 1000);
+            return false;
+        }
+        case "DEL":
+        case "EXISTS": {
+            int n = 0;
+            for (int i = 1; i < args.size(); i++) {
+                String key = str(args.get(i));
+                if (value(key) != null && (command.equals("EXISTS") || data.remove(key) != null)) {
+                    if (command.equals("DEL")) {
+                        touch(key);
+                    }
+                    n++;
+                }
+            }
+            integer(out, n);
+            return false;
+        }
+        default:
+            error(out, "ERR unknown command '" + command + "'");
+            return false;
+        }
+    }
+
+    private void set(List<byte[]> args, OutputStream out, long now) throws IOException {
+        String key = str(args.get(1));
+        boolean nx = false;
+        boolean xx = false;
+        long expiresAt = Long.MAX_VALUE;
+        for (int i = 3; i < args.size(); i++) {
+            String option = str(args.get(i)).toUpperCase();
+            if (option.equals("NX")) {
+                nx = true;
+            } else if (option.equals("XX")) {
+                xx = true;
+            } else if (option.equals("EX")) {
+                expiresAt = now + Long.parseLong(str(args.get(++i))) * 1000;
+            } else if (option.equals("PX")) {
+                expiresAt = now + Long.parseLong(str(args.get(++i)));
+            } else {
+                error(out, "ERR syntax error");
+                return;
+            }
+        }
+
+        Value value = new Value(args.get(2), expiresAt);
+        boolean done;
+        value(key);
+        if (nx) {
+            done = data.putIfAbsent(key, value) == null;
+        } else if (xx) {
+            done = data.replace(key, value) != null;
+        } else {
+            data.put(key, value);
+            done = true;
+        }
+        if (done) {
+            touch(key);
+            simple(out, "OK");
+        } else {
+            bulk(out, null);
+        }
+    }
+
+    /** Marks key holding a value of another type, error is already replied */
+    private static final Value WRONG_TYPE = new Value(new byte[0], 0);
+
+    /**
+     * @return sorted set stored under the key, null if there is no such key, {@link #WRONG_TYPE} if key holds another type
+     */
+    private Value zset(String key, OutputStream out) throws IOException {
+        Value value = value(key);
+        if (value != null && value.zset == null) {
+            error(out, "WRONGTYPE Operation against a key holding the wrong kind of value");
+            return WRONG_TYPE;
+        }
+        return value;
+    }
+
+    private void removeIfEmpty(String key, Value value) {
+        if (value.zset.isEmpty()) {
+            data.remove(key, value);
+        }
+    }
+
+    private void zadd(List<byte[]> args, OutputStream out) throws IOException {
+        String key = str(args.get(1));
+        boolean nx = false;
+        boolean xx = false;
+        boolean ch = false;
+        int i = 2;
+        for (; i < args.size(); i++) {
+            String option = str(args.get(i)).toUpperCase();
+            if (option.equals("NX")) {
+                nx = true;
+            } else if (option.equals("XX")) {
+                xx = true;
+            } else if (option.equals("CH")) {
+                ch = true;
+            } else {
+                break;
+            }
+        }
+        if ((args.size() - i) % 2 != 0 || i == args.size() || (nx && xx)) {
+            error(out, "ERR syntax error");
+            return;
+        }
+
+        Value value = zset(key, out);
+        if (value == WRONG_TYPE) {
+            return;
+        }
+        Map<String, Double> zset = value != null ? value.zset : new HashMap<String, Double>();
+        int added = 0;
+        int changed = 0;
+        for (; i < args.size(); i += 2) {
+            double score = parseScore(str(args.get(i)));
+            String member = str(args.get(i + 1));
+            Double old = zset.get(member);
+            if (old == null ? xx : nx) {
+                continue;
+            }
+            zset.put(member, score);
+            if (old == null) {
+                added++;
+            } else if (old != score) {
+                changed++;
+            }
+        }
+        if (value == null && !zset.isEmpty()) {
+            data.put(key, new Value(zset, Long.MAX_VALUE));
+        }
+        if (added + changed > 0) {
+            touch(key);
+        }
+        integer(out, ch ? added + changed : added);
+    }
+
+    /**
+     * ZCOUNT, ZRANGEBYSCORE and ZREMRANGEBYSCORE, members are ordered by score, then by name
+     */
+    private void rangeByScore(String command, List<byte[]> args, OutputStream out) throws IOException {
+        String key = str(args.get(1));
+        String min = str(args.get(2));
+        String max = str(args.get(3));
+        boolean minExclusive = min.startsWith("(");
+        boolean maxExclusive = max.startsWith("(");
+        double from = parseScore(minExclusive ? min.substring(1) : min);
+        double to = parseScore(maxExclusive ? max.substring(1) : max);
+        int offset = 0;
+        int count = -1;
+        for (int i = 4; i < args.size(); i++) {
+            if (command.equals("ZRANGEBYSCORE") && str(args.get(i)).equalsIgnoreCase("LIMIT") && i + 2 < args.size()) {
+                offset = Integer.parseInt(str(args.get(++i)));
+                count = Integer.parseInt(str(args.get(++i)));
+            } else {
+                error(out, "ERR syntax error");
+                return;
+            }
+        }
+
+        Value value = zset(key, out);
+        if (value == WRONG_TYPE) {
+            return;
+        }
+        List<Map.Entry<String, Double>> matched = new ArrayList<>();
+        if (value != null) {
+            for (Map.Entry<String, Double> e : value.zset.entrySet()) {
+                double score = e.getValue();
+                if ((minExclusive ? score > from : score >= from) && (maxExclusive ? score < to : score <= to)) {
+                    matched.add(e);
+                }
+            }
+        }
+        Collections.sort(matched, new Comparator<Map.Entry<String, Double>>() {
+            @Override
+            public int compare(Map.Entry<String, Double> o1, Map.Entry<String, Double> o2) {
+                int c = Double.compare(o1.getValue(), o2.getValue());
+                return c != 0 ? c : o1.getKey().compareTo(o2.getKey());
+            }
+        });
+
+        switch (command) {
+        case "ZCOUNT":
+            integer(out, matched.size());
+            return;
+        case "ZREMRANGEBYSCORE":
+            for (Map.Entry<String, Double> e : matched) {
+                value.zset.remove(e.getKey());
+            }
+            if (!matched.isEmpty()) {
+                removeIfEmpty(key, value);
+                touch(key);
+            }
+            integer(out, matched.size());
+            return;
+        default:
+            int start = Math.min(offset, matched.size());
+            int end = count < 0 ? matched.size() : Math.min(matched.size(), start + count);
+            out.write(("*" + (end - start) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            for (Map.Entry<String, Double> e : matched.subList(start, end)) {
+                bulk(out, e.getKey().getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+    }
+
+    private static double parseScore(String score) {
+        switch (score.toLowerCase()) {
+        case "+inf":
+        case "inf":
+            return Double.POSITIVE_INFINITY;
+        case "-inf":
+            return Double.NEGATIVE_INFINITY;
+        default:
+            return Double.parseDouble(score);
+        }
+    }
+
+    private static String formatScore(double score) {
+        if (Double.isInfinite(score)) {
+            return score > 0 ? "inf" : "-inf";
+        }
+        return score == Math.rint(score) ? Long.toString((long) score) : Double.toString(score);
+    }
+
+    private static byte[] range(byte[] value, int start, int end) {
+        int length = value.length;
+        if (start < 0) {
+            start = Math.max(0, length + start);
+        }
+        if (end < 0) {
+            end = length + end;
+        }
+        end = Math.min(end, length - 1);
+        return start > end ? new byte[0] : Arrays.copyOfRange(value, start, end + 1);
+    }
+
+    private static void simple(OutputStream out, String reply) throws IOException {
+        out.write(("+" + reply + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static void error(OutputStream out, String message) throws IOException {
+        out.write(("-" + message + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static void integer(OutputStream out, long value) throws IOException {
+        out.write((":" + value + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static void bulk(OutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.write("$-1\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        } else {
+            out.write(("$" + value.length + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(value);
+            out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package ee.neotech.tomcat.session;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.catalina.core.StandardContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SessionDataFormatTest {
+
+    static class TestManager extends NonStickySessionManager {
+        final Map<String, byte[]> store = new HashMap<>();
+
+        TestManager(int dataFormatVersion, boolean lazyAttributes) {
+            setContext(new StandardContext());
+            setDataFormatVersion(dataFormatVersion);
+            setLazyAttributes(lazyAttributes);
+        }
+
+        @Override
+        protected byte[] load(String id) {
+            return store.get(id);
+        }
+
+        @Override
+        protected void save(String id, byte[] data, int expireSeconds) {
+        }
+
+        @Override
+        protected void expire(String id, int expireSeconds) {
+        }
+
+        @Override
+        protected void delete(String id) {
+        }
+    }
+
+    /** Counts deserializations of its instances */
+    static class Counted implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static final AtomicInteger READS = new AtomicInteger();
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            READS.incrementAndGet();
+        }
+    }
+
+    /** Reads and modifies the session it is serialized with while another thread waits to modify it */
+    static class Inspecting implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static volatile NonStickySession session;
+        static volatile Thread writer;
+        static volatile Object read;
+        static volatile IllegalStateException modification;
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    session.setAttribute("string", "concurrent");
+                }
+            });
+            writer.start();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (writer.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+                Thread.yield();
+            }
+            read = session.getAttribute("string");
+            try {
+                session.setAttribute("string", "changed");
+            } catch (IllegalStateException e) {
+                modification = e;
+            }
+        }
+    }
+
+    /** All combinations of data format version and attribute codec */
+    private static List<TestManager> writers() {
+        List<TestManager> writers = new ArrayList<>();
+        for (int version = 0; version <= SessionEnvelope.VERSION; version++) {
+            writers.add(new TestManager(version, false));
+            writers.add(new TestManager(version, true));
+        }
+        return writers;
+    }
+
+    private static NonStickySession createSession(NonStickySessionManager manager) {
+        // id is set before manager, so session is not added to the cache of not started manager
+        NonStickySession session = new NonStickySession(null);
+        session.setId("session-id", false);
+        session.setManager(manager);
+        session.setValid(true);
+        session.setCreationTime(1500000000000L);
+        session.setMaxInactiveInterval(1800);
+        session.setAttribute("string", "value");
+        session.setAttribute("list", new ArrayList<>(Arrays.asList(1, 2, 3)));
+        return session;
+    }
+
+    @Test
+    public void testMixedVersions() throws Exception {
+        for (TestManager writer : writers()) {
+            byte[] data = writer.toBinary(createSession(writer));
+            String format = "version " + writer.dataFormatVersion + (writer.lazyAttributes ? " lazy" : " standard");
+
+            Assert.assertEquals(format, writer.dataFormatVersion > 0, SessionEnvelope.isEnvelope(data));
+
+            for (TestManager reader : writers()) {
+                NonStickySession read = reader.fromBinary(data);
+                Assert.assertEquals(format, "session-id", read.getIdInternal());
+                Assert.assertEquals(format, 1500000000000L, read.getCreationTimeInternal());
+                Assert.assertEquals(format, 1800, read.getMaxInactiveInterval());
+                Assert.assertEquals(format, "value", read.getAttribute("string"));
+                Assert.assertEquals(format, Arrays.asList(1, 2, 3), read.getAttribute("list"));
+
+                // data read in any format is written by reader in its own format
+                Assert.assertEquals(format, reader.dataFormatVersion > 0, SessionEnvelope.isEnvelope(reader.toBinary(read)));
+            }
+        }
+    }
+
+    @Test
+    public void testDefaultFormatIsReadableByPreviousVersions() throws Exception {
+        InMemorySessionManager manager = new InMemorySessionManager();
+        manager.setContext(new StandardContext());
+        byte[] data = manager.toBinary(createSession(manager));
+
+        Assert.assertFalse(SessionEnvelope.isEnvelope(data));
+        Assert.assertEquals("value", new TestManager(0, false).fromBinary(data).getAttribute("string"));
+    }
+
+    @Test
+    public void testHeaderWithoutBody() throws IOException {
+        TestManager manager = new TestManager(SessionEnvelope.VERSION, true);
+        NonStickySession session = createSession(manager);
+        byte[] data = manager.toBinary(session);
+
+        SessionEnvelope envelope = SessionEnvelope.readHeader(Arrays.copyOf(data, SessionEnvelope.HEADER_SIZE));
+        Assert.assertEquals(SessionEnvelope.VERSION, envelope.getVersion());
+        Assert.assertEquals(SessionEnvelope.CODEC_LAZY, envelope.getCodec());
+        Assert.assertTrue(envelope.isValid());
+        Assert.assertEquals(1500000000000L, envelope.getCreationTime());
+        Assert.assertEquals(session.getLastAccessedTimeInternal(), envelope.getLastAccessedTime());
+        Assert.assertEquals(session.getLastAccessedTimeInternal() + 1800 * 1000L, envelope.getEarliestExpirationTime());
+        Assert.assertEquals(data.length - SessionEnvelope.HEADER_SIZE, envelope.getBodyLength());
+    }
+
+    @Test
+    public void testLazyAttributes() throws Exception {
+        TestManager manager = new TestManager(SessionEnvelope.VERSION, true);
+        NonStickySession session = createSession(manager);
+        session.setAttribute("counted", new Counted());
+        session.setAttribute("replaced", new Counted());
+        byte[] data = manager.toBinary(session);
+
+        NonStickySession read = manager.fromBinary(data);
+        Counted.READS.set(0);
+        // untouched attributes are written back as is, header differs by access time
+        byte[] written = manager.toBinary(read);
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, SessionEnvelope.HEADER_SIZE, data.length),
+                Arrays.copyOfRange(written, SessionEnvelope.HEADER_SIZE, written.length));
+        Assert.assertEquals(0, Counted.READS.get());
+
+        Assert.assertNotNull(read.getAttribute("counted"));
+        Assert.assertEquals(1, Counted.READS.get());
+        Assert.assertFalse(read.isModified());
+
+        // replaced value is not deserialized
+        read.setAttribute("replaced", "value");
+        Assert.assertEquals(1, Counted.READS.get());
+        Assert.assertTrue(read.isModified());
+        Assert.assertEquals("value", manager.fromBinary(manager.toBinary(read)).getAttribute("replaced"));
+    }
+
+    @Test
+    public void testHollowSession() throws IOException {
+        TestManager manager = new TestManager(SessionEnvelope.VERSION, true);
+        byte[] data = manager.toBinary(createSession(manager));
+        manager.store.put("session-id", data);
+
+        NonStickySession hollow = manager.createEmptySession();
+        hollow.initHollow("session-id", SessionEnvelope.readHeader(Arrays.copyOf(data, SessionEnvelope.HEADER_SIZE)));
+        Assert.assertTrue(hollow.isHollow());
+        Assert.assertTrue(hollow.isValid());
+        Assert.assertEquals(1800, hollow.getMaxInactiveInterval());
+        Assert.assertEquals(1500000000000L, hollow.getCreationTime());
+
+        Assert.assertEquals("value", hollow.getAttribute("string"));
+        Assert.assertFalse(hollow.isHollow());
+        Assert.assertSame(data, hollow.getLoadedBody());
+        Assert.assertEquals(Arrays.asList(1, 2, 3), hollow.getAttribute("list"));
+    }
+
+    @Test
+    public void testHollowSessionRemovedFromStore() throws IOException {
+        TestManager manager = new TestManager(SessionEnvelope.VERSION, false);
+        byte[] data = manager.toBinary(createSession(manager));
+
+        NonStickySession hollow = manager.createEmptySession();
+        hollow.initHollow("session-id", SessionEnvelope.readHeader(data));
+
+        try {
+            hollow.getAttribute("string");
+            Assert.fail("Session must be invalidated");
+        } catch (IllegalStateException e) {
+            Assert.assertFalse(hollow.isActualValid());
+        }
+    }
+
+    @Test
+    public void testUnsupportedVersionIsRejected() throws Exception {
+        TestManager manager = new TestManager(SessionEnvelope.VERSION, false);
+        byte[] data = manager.toBinary(createSession(manager));
+        data[4] = (byte) (SessionEnvelope.VERSION + 1);
+
+        try {
+            manager.fromBinary(data);
+            Assert.fail("Newer version must not be read");
+        } catch (SessionEnvelope.UnsupportedFormatException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCorruptedBodyIsDetected() throws Exception {
+        TestManager manager = new TestManager(SessionEnvelope.VERSION, false);
+        byte[] data = manager.toBinary(createSession(manager));
+        data[data.length - 1] ^= 1;
+
+        try {
+            manager.fromBinary(data);
+            Assert.fail("Checksum mismatch expected");
+        } catch (StreamCorruptedException e) {
+            // expected, corrupted data is not mistaken for newer format
+        }
+    }
+
+    @Test
+    public void testChangeLogReplay() throws Exception {
+        TestManager manager = new TestManager(SessionEnvelope.VERSION, true);
+        NonStickySession session = createSession(manager);
+        byte[] snapshot = manager.toBinary(session);
+
+        session.setAttribute("added", "new");
+        session.removeAttribute("string");
+        session.setMaxInactiveInterval(600);
+        byte[] first = manager.toBinary(session);
+        byte[] firstChange = SessionChangeLog.diff(snapshot, first);
+
+        session.setAttribute("added", "changed");
+        byte[] second = manager.toBinary(session);
+        byte[] secondChange = SessionChangeLog.diff(first, second);
+        Assert.assertTrue(secondChange.length < second.length);
+
+        Assert.assertSame(snapshot, SessionChangeLog.replay(snapshot, new ArrayList<byte[]>()));
+        Assert.assertArrayEquals(first, SessionChangeLog.replay(snapshot, Arrays.asList(firstChange)));
+        Assert.assertArrayEquals(second, SessionChangeLog.replay(snapshot, Arrays.asList(firstChange, secondChange)));
+
+        // store keeps header of the latest version in place of snapshot header
+        byte[] stored = snapshot.clone();
+        System.arraycopy(second, 0, stored, 0, SessionEnvelope.HEADER_SIZE);
+        NonStickySession read = manager.fromBinary(SessionChangeLog.replay(stored, Arrays.asList(firstChange, secondChange)));
+        Assert.assertEquals("changed", read.getAttribute("added"));
+        Assert.assertNull(read.getAttribute("string"));
+        Assert.assertEquals(600, read.getMaxInactiveInterval());
+
+        // only lazy attributes format could be diffed
+        TestManager standard = new TestManager(SessionEnvelope.VERSION, false);
+        Assert.assertNull(SessionChangeLog.diff(standard.toBinary(session), standard.toBinary(session)));
+        Assert.assertNull(SessionChangeLog.diff(Arrays.copyOf(first, SessionEnvelope.HEADER_SIZE), second));
+    }
+
+    @Test(timeout = 10000)
+    public void testReadWriteSerializationIsNotReentrantForWrites() throws Exception {
+        for (boolean lazy : new boolean[] { false, true }) {
+            TestManager manager = new TestManager(SessionEnvelope.VERSION, lazy);
+            manager.setConcurrencyPolicy(ConcurrencyPolicy.READ_WRITE.name());
+            NonStickySession session = new NonStickySession(manager);
+            session.setValid(true);
+            session.setAttribute("string", "value");
+            session.setAttribute("inspecting", new Inspecting());
+            Inspecting.session = session;
+            Inspecting.modification = null;
+
+            manager.toBinary(session);
+
+            // serializing thread reads the session while writer waits, its own modification fails instead of waiting forever
+            Assert.assertEquals("value", Inspecting.read);
+            Assert.assertNotNull(Inspecting.modification);
+            Inspecting.writer.join();
+            Assert.assertEquals("concurrent", session.getAttribute("string"));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package ee.neotech.tomcat.session;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ee.neotech.util.SharedAccessCache;
+import ee.neotech.util.SharedAccessCache.Lease;
+
+public class SessionManagerMetricsTest {
+
+    private static SharedAccessCache<String, String> createCache() {
+        return new SharedAccessCache<String, String>() {
+            @Override
+            protected String load(String key) {
+                return key.equals("missing") ? null : key;
+            }
+
+            @Override
+            protected void unload(String key, String item) {
+            }
+        };
+    }
+
+    @Test
+    public void testCountersAndReset() {
+        SessionManagerMetrics metrics = new SessionManagerMetrics();
+        metrics.recordRetry();
+        metrics.recordRetry();
+        metrics.recordFailure();
+        metrics.loadTime.record(2000000);
+        metrics.saveTime.record(3000000);
+        metrics.bytesRead.add(100);
+        metrics.bytesWritten.add(200);
+        metrics.checkpoints.increment();
+
+        Assert.assertEquals(2, metrics.getRetries());
+        Assert.assertEquals(1, metrics.getFailures());
+        Assert.assertEquals(1, metrics.getLoadCount());
+        Assert.assertEquals(1, metrics.getSaveCount());
+        Assert.assertTrue(metrics.getLoadTimeSummary(), metrics.getLoadTimeSummary().startsWith("count=1 "));
+        Assert.assertEquals(100, metrics.getBytesRead());
+        Assert.assertEquals(200, metrics.getBytesWritten());
+        Assert.assertEquals(1, metrics.getCheckpoints());
+
+        metrics.reset();
+        Assert.assertEquals(0, metrics.getRetries());
+        Assert.assertEquals(0, metrics.getFailures());
+        Assert.assertEquals(0, metrics.getLoadCount());
+        Assert.assertEquals(0, metrics.getSaveCount());
+        Assert.assertEquals(0, metrics.getBytesRead());
+        Assert.assertEquals(0, metrics.getBytesWritten());
+        Assert.assertEquals(0, metrics.getCheckpoints());
+    }
+
+    @Test
+    public void testCacheStatistics() {
+        SessionManagerMetrics metrics = new SessionManagerMetrics();
+        Assert.assertEquals(0, metrics.getCachedSessions());
+        Assert.assertEquals(0, metrics.getCacheMisses());
+        Assert.assertEquals("", metrics.getConcurrentAccessSummary());
+
+        SharedAccessCache<String, String> cache = createCache();
+        metrics.setCache(cache);
+        Lease<String, String> first = cache.acquire("a");
+        Lease<String, String> second = cache.acquire("a");
+        Assert.assertEquals(1, metrics.getCachedSessions());
+        Assert.assertEquals(1, metrics.getCacheMisses());
+        Assert.assertEquals(1, metrics.getCacheHits());
+        Assert.assertTrue(metrics.getConcurrentAccessSummary().startsWith("count=2 "));
+
+        second.close();
+        first.close();
+        Assert.assertEquals(0, metrics.getCachedSessions());
+
+        // lookup of missing session is not a hit
+        Assert.assertNull(cache.acquire("missing"));
+        Assert.assertEquals(2, metrics.getCacheMisses());
+        Assert.assertEquals(1, metrics.getCacheHits());
+
+        metrics.reset();
+        Assert.assertTrue(metrics.getConcurrentAccessSummary().startsWith("count=0"));
+    }
+}
@@ -0,0 +1,68 @@
+package ee.neotech.tomcat.session;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SessionProfilerTest {
+
+    private static NonStickySession createSession(NonStickySessionManager manager, String id) {
+        NonStickySession session = new NonStickySession(null);
+        session.setId(id, false);
+        session.setManager(manager);
+        session.setValid(true);
+        session.setAttribute("large", new byte[1000]);
+        session.setAttribute("small", "value");
+        return session;
+    }
+
+    @Test
+    public void testOversizedSessionProfiledOncePerInterval() throws Exception {
+        SessionDataFormatTest.TestManager manager = new SessionDataFormatTest.TestManager(SessionEnvelope.VERSION, true);
+        SessionProfiler profiler = manager.getProfiler();
+        profiler.setSessionSizeWarning(100);
+
+        NonStickySession first = createSession(manager, "first");
+        for (int i = 0; i < 3; i++) {
+            manager.toBinary(first);
+        }
+        manager.toBinary(createSession(manager, "second"));
+
+        Assert.assertTrue(profiler.getSessionSizeSummary().startsWith("count=4 "));
+        // attributes are profiled once per oversized session
+        String[] top = profiler.getTopAttributesBySize();
+        Assert.assertEquals(2, top.length);
+        Assert.assertTrue(top[0], top[0].startsWith("large [[B] size: count=2 "));
+
+        // reset forgets warned sessions
+        profiler.reset();
+        manager.toBinary(first);
+        Assert.assertTrue(profiler.getTopAttributesBySize()[0].startsWith("large [[B] size: count=1 "));
+    }
+
+    @Test
+    public void testSampledSessionsProfiled() throws Exception {
+        SessionDataFormatTest.TestManager manager = new SessionDataFormatTest.TestManager(SessionEnvelope.VERSION, false);
+        SessionProfiler profiler = manager.getProfiler();
+        profiler.setSampleRate(1);
+
+        NonStickySession session = createSession(manager, "sampled");
+        manager.toBinary(session);
+        manager.toBinary(session);
+        Assert.assertTrue(profiler.getTopAttributesBySize()[0].startsWith("large [[B] size: count=2 "));
+    }
+
+    @Test
+    public void testSavedAndLoadedSizesAreSeparate() throws Exception {
+        SessionDataFormatTest.TestManager manager = new SessionDataFormatTest.TestManager(SessionEnvelope.VERSION, true);
+        SessionProfiler profiler = manager.getProfiler();
+        profiler.setSessionSizeWarning(Integer.MAX_VALUE);
+
+        byte[] data = manager.toBinary(createSession(manager, "session"));
+        manager.fromBinary(data);
+        manager.fromBinary(data);
+
+        Assert.assertTrue(profiler.getSessionSizeSummary().startsWith("count=1 "));
+        Assert.assertTrue(profiler.getLoadedSizeSummary().startsWith("count=2 "));
+        Assert.assertEquals(0, profiler.getTopAttributesBySize().length);
+    }
+}
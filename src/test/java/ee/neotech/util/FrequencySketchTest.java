@@ -0,0 +1,48 @@
+package ee.neotech.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void testEstimate() {
+        FrequencySketch sketch = new FrequencySketch(1024, TimeUnit.MINUTES.toMillis(1));
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("hot");
+        }
+        for (int i = 0; i < 500; i++) {
+            sketch.increment("cold-" + i);
+        }
+
+        Assert.assertTrue(sketch.estimate("hot") >= 100);
+        int overestimated = 0;
+        for (int i = 0; i < 500; i++) {
+            int estimate = sketch.estimate("cold-" + i);
+            Assert.assertTrue(estimate >= 1);
+            if (estimate > 2) {
+                overestimated++;
+            }
+        }
+        Assert.assertTrue("overestimated: " + overestimated, overestimated < 10);
+        Assert.assertTrue(sketch.estimate("never") <= 2);
+    }
+
+    @Test
+    public void testHalving() throws InterruptedException {
+        FrequencySketch sketch = new FrequencySketch(64, TimeUnit.MINUTES.toMillis(1));
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("key");
+        }
+        sketch.halve();
+        Assert.assertEquals(5, sketch.estimate("key"));
+
+        sketch = new FrequencySketch(64, 10);
+        Assert.assertEquals(1, sketch.increment("key"));
+        Assert.assertEquals(2, sketch.increment("key"));
+        Thread.sleep(20);
+        Assert.assertEquals(2, sketch.increment("key"));
+    }
+}
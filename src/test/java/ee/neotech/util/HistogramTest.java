@@ -0,0 +1,46 @@
+package ee.neotech.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void testBuckets() {
+        for (long v : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE / 3, Long.MAX_VALUE }) {
+            int index = Histogram.bucketIndex(v);
+            Assert.assertTrue("value " + v + " below bucket " + index, Histogram.bucketLowerBound(index) <= v);
+            Assert.assertTrue("value " + v + " above bucket " + index, Histogram.bucketUpperBound(index) >= v);
+        }
+
+        for (int i = 1; i < 400; i++) {
+            Assert.assertEquals(i, Histogram.bucketIndex(Histogram.bucketLowerBound(i)));
+            Assert.assertEquals(i - 1, Histogram.bucketIndex(Histogram.bucketLowerBound(i) - 1));
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram h = new Histogram();
+        Assert.assertEquals(0, h.getPercentile(99));
+
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i);
+        }
+
+        Assert.assertEquals(1000, h.getCount());
+        Assert.assertEquals(500, h.getMean());
+        Assert.assertEquals(1000, h.getMax());
+        assertWithin(500, h.getPercentile(50), 0.13);
+        assertWithin(990, h.getPercentile(99), 0.13);
+        Assert.assertEquals(1000, h.getPercentile(100));
+
+        h.reset();
+        Assert.assertEquals(0, h.getCount());
+        Assert.assertEquals(0, h.getMax());
+    }
+
+    private static void assertWithin(long expected, long actual, double precision) {
+        Assert.assertTrue("expected ~" + expected + " but was " + actual, Math.abs(expected - actual) <= expected * precision);
+    }
+}
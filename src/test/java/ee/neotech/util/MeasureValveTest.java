@@ -0,0 +1,155 @@
+package ee.neotech.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ee.neotech.util.RequestTimings.Phase;
+
+public class MeasureValveTest {
+
+    private static final long ASYNC_DELAY = 300;
+
+    static class TimedServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            RequestTimings.add(Phase.STORE_IO, TimeUnit.MILLISECONDS.toNanos(5));
+            resp.getWriter().print("sync");
+        }
+    }
+
+    static class AsyncServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            final AsyncContext async = req.startAsync();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(ASYNC_DELAY);
+                        async.getResponse().getWriter().print("async");
+                    } catch (InterruptedException | IOException e) {
+                        // response is completed anyway
+                    }
+                    async.complete();
+                }
+            }).start();
+        }
+    }
+
+    private File baseDir;
+    private Tomcat tomcat;
+    private MeasureValve outer;
+    private MeasureValve inner;
+
+    @Before
+    public void setUp() throws Exception {
+        baseDir = Files.createTempDirectory("measure-valve").toFile();
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.getPath());
+        tomcat.setPort(0);
+
+        File docBase = new File(baseDir, "webapp");
+        docBase.mkdirs();
+        Context context = tomcat.addContext("", docBase.getPath());
+        outer = new MeasureValve();
+        outer.setUriPatterns("/async");
+        inner = new MeasureValve();
+        inner.setUriPatterns("/async");
+        context.getPipeline().addValve(outer);
+        context.getPipeline().addValve(inner);
+        Tomcat.addServlet(context, "timed", new TimedServlet());
+        context.addServletMappingDecoded("/timed", "timed");
+        Wrapper async = Tomcat.addServlet(context, "async", new AsyncServlet());
+        async.setAsyncSupported(true);
+        context.addServletMappingDecoded("/async", "async");
+
+        tomcat.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (tomcat != null) {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    private void get(String path) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + tomcat.getConnector().getLocalPort() + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        Assert.assertEquals(200, connection.getResponseCode());
+        connection.getInputStream().close();
+    }
+
+    private static String timing(MeasureValve valve, String prefix) {
+        for (String timing : valve.getTimings()) {
+            if (timing.startsWith(prefix)) {
+                return timing;
+            }
+        }
+        throw new AssertionError(prefix + " not found");
+    }
+
+    private static void awaitCount(MeasureValve valve, String prefix, int count) throws InterruptedException {
+        for (int i = 0; i < 100 && !timing(valve, prefix).startsWith(prefix + ": count=" + count + " "); i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertTrue(timing(valve, prefix), timing(valve, prefix).startsWith(prefix + ": count=" + count + " "));
+    }
+
+    @Test
+    public void testNestedValvesRecordPhases() throws Exception {
+        get("/timed");
+
+        for (MeasureValve valve : new MeasureValve[] { outer, inner }) {
+            awaitCount(valve, "(other)", 1);
+            Assert.assertTrue(timing(valve, "STORE_IO"), timing(valve, "STORE_IO").startsWith("STORE_IO: count=1 mean=5.00ms"));
+        }
+    }
+
+    @Test
+    public void testAsyncRequestRecordedOnCompletion() throws Exception {
+        get("/async");
+
+        for (MeasureValve valve : new MeasureValve[] { outer, inner }) {
+            awaitCount(valve, "/async", 1);
+            String timing = timing(valve, "/async");
+            double mean = Double.parseDouble(timing.substring(timing.indexOf("mean=") + 5, timing.indexOf("ms")));
+            Assert.assertTrue(timing, mean >= ASYNC_DELAY);
+        }
+    }
+
+    @Test
+    public void testReporterStoppedWithValves() throws Exception {
+        Assert.assertTrue(SlowOperationReporter.isRunning());
+
+        tomcat.stop();
+        tomcat.destroy();
+        tomcat = null;
+        Assert.assertFalse(SlowOperationReporter.isRunning());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            Assert.assertNotEquals("SlowOperationReporter", thread.getName());
+        }
+    }
+}
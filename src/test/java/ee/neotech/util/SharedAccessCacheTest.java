@@ -3,13 +3,19 @@ package ee.neotech.util;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import ee.neotech.util.SharedAccessCache.Lease;
+
 public class SharedAccessCacheTest {
 
     private final static long TOTAL_WORK_TIME = 2000;
@@ -90,14 +96,15 @@ public class SharedAccessCacheTest {
 
             while (!this.isInterrupted() && (System.currentTimeMillis() - start < TOTAL_WORK_TIME)) {
                 try {
-                    Item item = cache.get(uuid);
+                    Lease<UUID, Item> lease = cache.acquire(uuid);
+                    Item item = lease.data();
                     item.workTimes.incrementAndGet();
                     item.inworkCounter.incrementAndGet();
                     try {
                         Thread.sleep(THREAD_WORK_TIME);
                     } finally {
                         item.inworkCounter.decrementAndGet();
-                        cache.release(uuid);
+                        lease.close();
                     }
 
                     Thread.sleep(THREAD_SLEEP_TIME);
@@ -138,11 +145,11 @@ public class SharedAccessCacheTest {
 
         for (UUID uuid : uuids) {
             Item ti1 = new Item(uuid);
-            Item cti = cache.putnx(uuid, ti1);
+            Item cti = cache.putnx(uuid, ti1).data();
             Assert.assertEquals(ti1, cti);
 
             Item ti2 = new Item(uuid);
-            cti = cache.putnx(uuid, ti2);
+            cti = cache.putnx(uuid, ti2).data();
             Assert.assertEquals(ti1, cti);
 
             Stats stats = getStats(uuid);
@@ -151,9 +158,486 @@ public class SharedAccessCacheTest {
             Assert.assertEquals(stats.loadTimes, stats.unloadTimes);
 
             cache.remove(uuid);
-            cti = cache.putnx(uuid, ti2);
+            cti = cache.putnx(uuid, ti2).data();
             Assert.assertEquals(ti2, cti);
         }
     }
 
+
+    /** Cache with slow load of specific key */
+    static class SlowLoadCache extends SharedAccessCache<String, String> {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch loadAllowed = new CountDownLatch(1);
+        final AtomicInteger unloads = new AtomicInteger();
+
+        @Override
+        protected String load(String key) {
+            loads.incrementAndGet();
+            if (key.startsWith("slow")) {
+                loadStarted.countDown();
+                try {
+                    loadAllowed.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return key.endsWith("missing") ? null : "value-" + key;
+        }
+
+        @Override
+        protected void unload(String key, String item) {
+            unloads.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testConcurrentMissesAreCoalesced() throws InterruptedException {
+        final SlowLoadCache slowCache = new SlowLoadCache();
+        final AtomicInteger found = new AtomicInteger();
+        final CountDownLatch ready = new CountDownLatch(10);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    try (Lease<String, String> lease = slowCache.acquire("slow")) {
+                        if ("value-slow".equals(lease.data())) {
+                            found.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+
+        Assert.assertTrue(ready.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(slowCache.loadStarted.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        slowCache.loadAllowed.countDown();
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Assert.assertEquals(10, found.get());
+        Assert.assertTrue("concurrent requests must share single load, loads: " + slowCache.loads.get(), slowCache.loads.get() < 10);
+        Assert.assertEquals(slowCache.loads.get(), slowCache.unloads.get());
+        Assert.assertEquals(0, slowCache.size());
+    }
+
+    @Test
+    public void testCoalescedMissingItemIsMiss() throws InterruptedException {
+        final SlowLoadCache slowCache = new SlowLoadCache();
+        final AtomicInteger notFound = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    if (slowCache.acquire("slow-missing") == null) {
+                        notFound.incrementAndGet();
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+
+        Assert.assertTrue(slowCache.loadStarted.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        slowCache.loadAllowed.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Assert.assertEquals(2, notFound.get());
+        Assert.assertEquals(1, slowCache.loads.get());
+        Assert.assertEquals(0, slowCache.getHits());
+        Assert.assertEquals(2, slowCache.getMisses());
+    }
+
+    @Test
+    public void testSlowLoadDoesNotBlockOtherKeys() throws InterruptedException {
+        final SlowLoadCache slowCache = new SlowLoadCache();
+
+        Thread slow = new Thread() {
+            @Override
+            public void run() {
+                slowCache.acquire("slow").close();
+            }
+        };
+        slow.start();
+        Assert.assertTrue(slowCache.loadStarted.await(5, TimeUnit.SECONDS));
+
+        Lease<String, String> fast = slowCache.acquire("fast");
+        Assert.assertEquals("value-fast", fast.data());
+        fast.close();
+        Assert.assertEquals(1, slowCache.unloads.get());
+
+        slowCache.loadAllowed.countDown();
+        slow.join();
+        Assert.assertEquals(2, slowCache.unloads.get());
+    }
+
+    @Test
+    public void testWaitTimeout() throws InterruptedException {
+        final SlowLoadCache slowCache = new SlowLoadCache();
+        slowCache.setLoadWaitTimeout(50);
+
+        Thread slow = new Thread() {
+            @Override
+            public void run() {
+                slowCache.acquire("slow").close();
+            }
+        };
+        slow.start();
+        Assert.assertTrue(slowCache.loadStarted.await(5, TimeUnit.SECONDS));
+
+        try {
+            slowCache.acquire("slow");
+            Assert.fail("Wait timeout expected");
+        } catch (SharedAccessCache.WaitTimeoutException e) {
+            Assert.assertEquals(1, slowCache.getWaitTimeouts());
+        }
+
+        slowCache.loadAllowed.countDown();
+        slow.join();
+    }
+
+    @Test
+    public void testExclusiveAccess() throws InterruptedException {
+        final SlowLoadCache exclusiveCache = new SlowLoadCache();
+        exclusiveCache.setExclusiveAccess(true);
+        final AtomicInteger inWork = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 20; j++) {
+                        Lease<String, String> lease = exclusiveCache.acquire("key");
+                        if (inWork.incrementAndGet() > 1) {
+                            overlaps.incrementAndGet();
+                        }
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            break;
+                        } finally {
+                            inWork.decrementAndGet();
+                            lease.close();
+                        }
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Assert.assertEquals(0, overlaps.get());
+        Assert.assertEquals(exclusiveCache.loads.get(), exclusiveCache.unloads.get());
+        Assert.assertEquals(0, exclusiveCache.size());
+    }
+
+    @Test
+    public void testCheckpoint() {
+        final AtomicInteger checkpoints = new AtomicInteger();
+        SlowLoadCache checkpointCache = new SlowLoadCache() {
+            @Override
+            protected void checkpoint(String key, String item) {
+                checkpoints.incrementAndGet();
+            }
+        };
+
+        Lease<String, String> lease = checkpointCache.acquire("key");
+        Assert.assertEquals(0, checkpointCache.checkpoint(TimeUnit.MINUTES.toMillis(1), 10));
+        Assert.assertEquals(1, checkpointCache.checkpoint(0, 10));
+        Assert.assertEquals(1, checkpoints.get());
+        Assert.assertEquals(0, checkpointCache.unloads.get());
+        Assert.assertEquals(1, checkpointCache.size());
+
+        lease.close();
+        Assert.assertEquals(1, checkpointCache.unloads.get());
+        Assert.assertEquals(0, checkpointCache.checkpoint(0, 10));
+    }
+
+    @Test
+    public void testLeaseReleasedByAnotherThread() throws InterruptedException {
+        final SlowLoadCache asyncCache = new SlowLoadCache();
+
+        final Lease<String, String> first = asyncCache.acquire("key");
+        Lease<String, String> second = asyncCache.acquire("key");
+        Assert.assertEquals("value-key", first.data());
+        Assert.assertSame(first.data(), second.data());
+
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                first.close();
+            }
+        };
+        other.start();
+        other.join();
+
+        Assert.assertTrue(first.isReleased());
+        Assert.assertEquals(0, asyncCache.unloads.get());
+
+        first.close(); // repeated close must not release other leases
+        Assert.assertEquals(0, asyncCache.unloads.get());
+
+        second.close();
+        Assert.assertEquals(1, asyncCache.unloads.get());
+        Assert.assertEquals(0, asyncCache.size());
+    }
+
+    @Test
+    public void testRetain() throws InterruptedException {
+        SlowLoadCache retainingCache = new SlowLoadCache();
+
+        Assert.assertTrue(retainingCache.retain("key", "prefetched", TimeUnit.MINUTES.toMillis(1)));
+        Assert.assertFalse(retainingCache.retain("key", "other", TimeUnit.MINUTES.toMillis(1)));
+        Assert.assertTrue(retainingCache.retain("short", "prefetched", 10));
+
+        Lease<String, String> lease = retainingCache.acquire("key");
+        Assert.assertEquals("prefetched", lease.data());
+        Assert.assertEquals(0, retainingCache.loads.get());
+        Assert.assertEquals(1, retainingCache.getHits());
+
+        lease.close();
+        Assert.assertEquals("retention ends with the first lease", 1, retainingCache.unloads.get());
+        Assert.assertFalse(retainingCache.contains("key"));
+
+        Assert.assertEquals(0, retainingCache.evictRetained());
+        Assert.assertTrue(retainingCache.contains("short"));
+        Thread.sleep(50);
+        Assert.assertEquals(1, retainingCache.evictRetained());
+        Assert.assertFalse(retainingCache.contains("short"));
+        Assert.assertEquals(2, retainingCache.unloads.get());
+    }
+
+    @Test
+    public void testRetainOnRelease() throws InterruptedException {
+        final AtomicInteger persists = new AtomicInteger();
+        final AtomicInteger revalidations = new AtomicInteger();
+        final AtomicInteger stale = new AtomicInteger();
+        SlowLoadCache hotCache = new SlowLoadCache() {
+            @Override
+            protected long retainOnRelease(String key, String item) {
+                return key.startsWith("hot") ? 200 : 0;
+            }
+
+            @Override
+            protected void persist(String key, String item) {
+                persists.incrementAndGet();
+            }
+
+            @Override
+            protected boolean revalidate(String key, String item) {
+                revalidations.incrementAndGet();
+                return stale.get() == 0;
+            }
+        };
+
+        hotCache.acquire("cold").close();
+        Assert.assertEquals(1, hotCache.unloads.get());
+
+        Lease<String, String> lease = hotCache.acquire("hot");
+        Lease<String, String> shared = hotCache.acquire("hot");
+        lease.close();
+        shared.close();
+        Assert.assertEquals(1, persists.get());
+        Assert.assertEquals(1, hotCache.unloads.get());
+        Assert.assertEquals(1, hotCache.getRetainedOnRelease());
+
+        // reused without load after revalidation
+        lease = hotCache.acquire("hot");
+        Assert.assertEquals(1, revalidations.get());
+        Assert.assertEquals(2, hotCache.loads.get());
+        // leased item is not revalidated
+        hotCache.acquire("hot").close();
+        Assert.assertEquals(1, revalidations.get());
+        lease.close();
+        Assert.assertEquals(2, persists.get());
+
+        // stale item is dropped without unload
+        stale.set(1);
+        hotCache.acquire("hot").close();
+        Assert.assertEquals(2, revalidations.get());
+        Assert.assertEquals(3, hotCache.loads.get());
+        Assert.assertEquals(1, hotCache.unloads.get());
+        Assert.assertEquals(1, hotCache.getRetainedOnRelease());
+
+        Thread.sleep(250);
+        Assert.assertEquals(1, hotCache.evictRetained());
+        Assert.assertEquals(2, hotCache.unloads.get());
+        Assert.assertEquals(0, hotCache.getRetainedOnRelease());
+        Assert.assertEquals(0, hotCache.size());
+    }
+
+    @Test
+    public void testCheckpointsAreExclusive() throws InterruptedException {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger checkpoints = new AtomicInteger();
+        final AtomicInteger persists = new AtomicInteger();
+        final AtomicInteger compactions = new AtomicInteger();
+        final CountDownLatch checkpointStarted = new CountDownLatch(1);
+        final CountDownLatch checkpointAllowed = new CountDownLatch(1);
+        final SlowLoadCache hotCache = new SlowLoadCache() {
+            void save(AtomicInteger counter, CountDownLatch allowed) {
+                maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                counter.incrementAndGet();
+                try {
+                    allowed.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+
+            @Override
+            protected void checkpoint(String key, String item) {
+                // only the first checkpoint is held
+                CountDownLatch allowed = checkpointStarted.getCount() > 0 ? checkpointAllowed : new CountDownLatch(0);
+                checkpointStarted.countDown();
+                save(checkpoints, allowed);
+            }
+
+            @Override
+            protected void persist(String key, String item) {
+                save(persists, new CountDownLatch(0));
+            }
+
+            @Override
+            protected void compact(String key, String item) {
+                save(compactions, new CountDownLatch(0));
+            }
+
+            @Override
+            protected long weigh(String item) {
+                return 10;
+            }
+
+            @Override
+            protected long retainOnRelease(String key, String item) {
+                return TimeUnit.MINUTES.toMillis(1);
+            }
+        };
+
+        Lease<String, String> lease = hotCache.acquire("hot");
+        Thread checkpointer = new Thread() {
+            @Override
+            public void run() {
+                hotCache.checkpoint(0, 10);
+            }
+        };
+        checkpointer.start();
+        Assert.assertTrue(checkpointStarted.await(5, TimeUnit.SECONDS));
+
+        // item being saved is neither checkpointed nor compacted concurrently
+        Assert.assertEquals(0, hotCache.checkpoint(0, 10));
+        hotCache.setMaxWeight(1);
+        hotCache.shed();
+        hotCache.setMaxWeight(0);
+        // release during checkpoint is completed when it ends, so changes made by the lease are persisted
+        lease.close();
+        Assert.assertEquals(0, persists.get());
+
+        checkpointAllowed.countDown();
+        checkpointer.join();
+        Assert.assertEquals(1, checkpoints.get());
+        Assert.assertEquals(1, persists.get());
+        Assert.assertEquals(0, compactions.get());
+        Assert.assertEquals(1, maxRunning.get());
+        Assert.assertEquals(1, hotCache.getRetainedOnRelease());
+        Assert.assertEquals(0, hotCache.unloads.get());
+    }
+
+    @Test
+    public void testWeightBudget() {
+        final Set<String> compacted = ConcurrentHashMap.newKeySet();
+        SlowLoadCache boundedCache = new SlowLoadCache() {
+            @Override
+            protected long weigh(String item) {
+                return compacted.contains(item) ? 1 : 10;
+            }
+
+            @Override
+            protected void compact(String key, String item) {
+                if (key.startsWith("compactable")) {
+                    compacted.add(item);
+                }
+            }
+        };
+        boundedCache.setMaxWeight(25);
+
+        Lease<String, String> a = boundedCache.acquire("a");
+        Lease<String, String> b = boundedCache.acquire("b");
+        Assert.assertTrue(boundedCache.retain("prefetched", "value-prefetched", TimeUnit.MINUTES.toMillis(1)));
+        Assert.assertEquals(30, boundedCache.getWeight());
+        Assert.assertTrue(boundedCache.isOverBudget());
+        Assert.assertFalse(boundedCache.retain("other", "value-other", TimeUnit.MINUTES.toMillis(1)));
+
+        // retained item is unloaded to make room
+        Lease<String, String> c = boundedCache.acquire("compactable");
+        Assert.assertFalse(boundedCache.contains("prefetched"));
+        Assert.assertEquals(1, boundedCache.unloads.get());
+        // loaded item is compacted, as the cache is still over budget
+        Assert.assertEquals(21, boundedCache.getWeight());
+
+        Lease<String, String> d = boundedCache.acquire("d");
+        Assert.assertEquals(31, boundedCache.getWeight());
+        // acquiring threads do not repeat shedding which just ran
+        Assert.assertEquals(0, boundedCache.shedIfDue());
+        Assert.assertEquals(4, boundedCache.shed());
+        Assert.assertEquals(31, boundedCache.getWeight());
+        try {
+            boundedCache.acquire("e");
+            Assert.fail();
+        } catch (SharedAccessCache.OverBudgetException e) {
+            Assert.assertEquals(1, boundedCache.getBudgetRejections());
+        }
+        // cached items are still available
+        boundedCache.acquire("a").close();
+
+        b.close();
+        boundedCache.acquire("e").close();
+        a.close();
+        c.close();
+        d.close();
+        Assert.assertEquals(0, boundedCache.getWeight());
+        Assert.assertEquals(0, boundedCache.size());
+    }
+
+    @Test
+    public void testExpiredLeasesAreReaped() throws InterruptedException {
+        SlowLoadCache leakingCache = new SlowLoadCache();
+        leakingCache.setLeaseTimeout(10);
+
+        Lease<String, String> leaked = leakingCache.acquire("key");
+        Lease<String, String> renewed = leakingCache.acquire("key");
+        renewed.renew(TimeUnit.MINUTES.toMillis(1));
+        Thread.sleep(50);
+
+        Assert.assertEquals(1, leakingCache.reapExpiredLeases());
+        Assert.assertEquals(1, leakingCache.getExpiredLeases());
+        Assert.assertTrue(leaked.isReleased());
+        Assert.assertEquals(0, leakingCache.unloads.get());
+
+        renewed.close();
+        Assert.assertEquals(1, leakingCache.unloads.get());
+        Assert.assertEquals(0, leakingCache.reapExpiredLeases());
+    }
 }
@@ -0,0 +1,115 @@
+package ee.neotech.util;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ee.neotech.util.SharedAccessCache.Lease;
+
+/**
+ * Compares request throughput of the session cache with blocking store I/O on a platform thread pool and on virtual threads.
+ * <p>
+ * Each task leases a random item (load and unload simulate store round trips), holds it for the duration of simulated request work
+ * and updates it. Not run as part of the test suite. Run on Java 21+ to include virtual threads:
+ * </p>
+ * <pre><code>
+ * java -cp target/classes:target/test-classes:tomcat-juli.jar ee.neotech.util.VirtualThreadBenchmark [tasks] [keys] [poolSize]
+ * </code></pre>
+ */
+public class VirtualThreadBenchmark {
+
+    private static final long STORE_IO_MILLIS = 2;
+    private static final long REQUEST_WORK_MILLIS = 5;
+
+    static class StoreCache extends SharedAccessCache<Integer, AtomicLong> {
+        @Override
+        protected AtomicLong load(Integer key) {
+            sleep(STORE_IO_MILLIS);
+            return new AtomicLong();
+        }
+
+        @Override
+        protected void unload(Integer key, AtomicLong item) {
+            sleep(STORE_IO_MILLIS);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int poolSize = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        System.out.println("Tasks: " + tasks + ", keys: " + keys + ", store I/O: " + STORE_IO_MILLIS + "ms, request work: " + REQUEST_WORK_MILLIS + "ms");
+
+        // warm up
+        run(Executors.newFixedThreadPool(poolSize), tasks / 10, keys);
+
+        report("Platform pool (" + poolSize + " threads)", run(Executors.newFixedThreadPool(poolSize), tasks, keys), tasks);
+
+        ExecutorService virtual = newVirtualThreadExecutor();
+        if (virtual != null) {
+            report("Virtual threads", run(virtual, tasks, keys), tasks);
+        } else {
+            System.out.println("Virtual threads: not available on Java " + System.getProperty("java.version"));
+        }
+    }
+
+    /**
+     * @return virtual thread per task executor or null, if running on Java prior to 21
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static long run(ExecutorService executor, int tasks, final int keys) throws Exception {
+        final StoreCache cache = new StoreCache();
+
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>(tasks);
+        for (int i = 0; i < tasks; i++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Integer key = ThreadLocalRandom.current().nextInt(keys);
+                    try (Lease<Integer, AtomicLong> lease = cache.acquire(key)) {
+                        sleep(REQUEST_WORK_MILLIS);
+                        lease.data().incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        return elapsed;
+    }
+
+    private static void report(String name, long elapsedNanos, int tasks) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%s: %d tasks in %.2fs, %.0f tasks/s%n", name, tasks, seconds, tasks / seconds);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Thread interrupted", e);
+        }
+    }
+}